@@ -0,0 +1,250 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import io.skygear.skygear.Asset;
+import io.skygear.skygear.AssetSerializer;
+
+/**
+ * Content-addressed cache of uploaded assets.
+ *
+ * Assets created by {@link #newAsset(String, String, byte[])} are hashed once.
+ * After an asset is uploaded, later assets with the same content reuse the
+ * uploaded asset instead of being uploaded again.
+ */
+public final class AssetUploadCache {
+    private static final String TAG = "SkygearChatAssetCache";
+    private static final int MAX_ENTRIES = 500;
+    private static final Executor writeExecutor = Executors.newSingleThreadExecutor();
+
+    private final Map<Asset, String> contentHashes = new WeakHashMap<>();
+    private final LinkedHashMap<String, JSONObject> uploadedAssets =
+            new LinkedHashMap<String, JSONObject>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, JSONObject> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private File storeFile;
+    private boolean isWriteScheduled = false;
+
+    /**
+     * Instantiates a new in-memory asset upload cache.
+     */
+    AssetUploadCache() {
+        super();
+    }
+
+    /**
+     * Sets the file persisting the cache and loads the entries in it.
+     *
+     * @param file the file
+     */
+    public synchronized void setStoreFile(@NonNull File file) {
+        if (file.equals(this.storeFile)) {
+            return;
+        }
+
+        this.storeFile = file;
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            JSONObject stored = new JSONObject(readFile(file));
+            Iterator<String> hashes = stored.keys();
+            while (hashes.hasNext()) {
+                String eachHash = hashes.next();
+                if (!this.uploadedAssets.containsKey(eachHash)) {
+                    this.uploadedAssets.put(eachHash, stored.getJSONObject(eachHash));
+                }
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Fail to load asset upload cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates an asset whose content hash is remembered for de-duplication.
+     *
+     * @param name     the asset name
+     * @param mimeType the mime type
+     * @param data     the data
+     * @return the asset
+     */
+    @NonNull
+    public Asset newAsset(@NonNull String name, @NonNull String mimeType, @NonNull byte[] data) {
+        Asset asset = new Asset(name, mimeType, data);
+        String hash = hashOf(mimeType, data);
+        if (hash != null) {
+            synchronized (this) {
+                this.contentHashes.put(asset, hash);
+            }
+        }
+
+        return asset;
+    }
+
+    /**
+     * Gets the uploaded asset with the same content.
+     *
+     * @param asset the asset to be uploaded
+     * @return the uploaded asset, null if there is none
+     */
+    @Nullable
+    synchronized Asset getUploadedAsset(@NonNull Asset asset) {
+        String hash = this.contentHashes.get(asset);
+        if (hash == null) {
+            return null;
+        }
+
+        JSONObject uploaded = this.uploadedAssets.get(hash);
+        if (uploaded == null) {
+            return null;
+        }
+
+        try {
+            return AssetSerializer.deserialize(uploaded);
+        } catch (JSONException e) {
+            Log.w(TAG, "Fail to restore uploaded asset: " + e.getMessage());
+            this.uploadedAssets.remove(hash);
+            return null;
+        }
+    }
+
+    /**
+     * Remembers an uploaded asset.
+     *
+     * @param asset    the asset before upload
+     * @param uploaded the uploaded asset
+     */
+    synchronized void putUploadedAsset(@NonNull Asset asset, @NonNull Asset uploaded) {
+        String hash = this.contentHashes.get(asset);
+        if (hash == null) {
+            return;
+        }
+
+        JSONObject serialized = AssetSerializer.serialize(uploaded);
+        if (serialized == null) {
+            return;
+        }
+
+        this.uploadedAssets.put(hash, serialized);
+        this.contentHashes.put(uploaded, hash);
+        this.persist();
+    }
+
+    /**
+     * Drops all uploaded assets, in memory and in the store file.
+     */
+    synchronized void clear() {
+        this.contentHashes.clear();
+        this.uploadedAssets.clear();
+        this.persist();
+    }
+
+    private void persist() {
+        if (this.storeFile == null || this.isWriteScheduled) {
+            return;
+        }
+
+        this.isWriteScheduled = true;
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                AssetUploadCache.this.write();
+            }
+        });
+    }
+
+    private void write() {
+        File file;
+        String content;
+        synchronized (this) {
+            this.isWriteScheduled = false;
+            file = this.storeFile;
+            content = new JSONObject(this.uploadedAssets).toString();
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        OutputStream output = null;
+        try {
+            output = new FileOutputStream(tempFile);
+            output.write(content.getBytes("UTF-8"));
+            output.close();
+            output = null;
+
+            if (!tempFile.renameTo(file)) {
+                Log.w(TAG, "Fail to replace asset upload cache");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Fail to persist asset upload cache: " + e.getMessage());
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private static String hashOf(@NonNull String mimeType, @NonNull byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(mimeType.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            byte[] hash = digest.digest(data);
+
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte eachByte : hash) {
+                builder.append(String.format("%02x", eachByte));
+            }
+
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            Log.w(TAG, "Fail to hash asset content: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static String readFile(@NonNull File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = input.read(buffer)) != -1) {
+                output.write(buffer, 0, length);
+            }
+
+            return output.toString("UTF-8");
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The aggregated result of a bulk membership operation.
+ */
+public class BulkMembershipResult {
+    private final Map<String, Conversation> updatedConversations;
+    private final Map<String, String> failReasons;
+    private final long elapsedMillis;
+
+    /**
+     * Instantiates a new bulk membership result.
+     *
+     * @param updatedConversations the updated conversations by conversation id
+     * @param failReasons          the fail reasons by conversation id
+     * @param elapsedMillis        the elapsed time of the whole operation
+     */
+    BulkMembershipResult(@NonNull Map<String, Conversation> updatedConversations,
+                         @NonNull Map<String, String> failReasons,
+                         long elapsedMillis) {
+        super();
+
+        this.updatedConversations = Collections.unmodifiableMap(updatedConversations);
+        this.failReasons = Collections.unmodifiableMap(failReasons);
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Gets the updated conversations.
+     *
+     * @return the updated conversations by conversation id
+     */
+    @NonNull
+    public Map<String, Conversation> getUpdatedConversations() {
+        return updatedConversations;
+    }
+
+    /**
+     * Gets the fail reasons.
+     *
+     * @return the fail reasons by conversation id
+     */
+    @NonNull
+    public Map<String, String> getFailReasons() {
+        return failReasons;
+    }
+
+    /**
+     * Whether all conversations are updated.
+     *
+     * @return the boolean
+     */
+    public boolean isAllSucceeded() {
+        return failReasons.isEmpty();
+    }
+
+    /**
+     * Gets elapsed time.
+     *
+     * @return the elapsed time in milliseconds
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * Gets throughput.
+     *
+     * @return the number of conversations processed per second
+     */
+    public double getThroughput() {
+        int count = updatedConversations.size() + failReasons.size();
+        if (elapsedMillis <= 0) {
+            return count;
+        }
+
+        return count * 1000.0 / elapsedMillis;
+    }
+}
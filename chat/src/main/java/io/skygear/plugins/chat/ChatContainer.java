@@ -1,6 +1,9 @@
 package io.skygear.plugins.chat;
 
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
@@ -13,16 +16,22 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import io.skygear.skygear.Asset;
 import io.skygear.skygear.AssetPostRequest;
@@ -44,14 +53,53 @@ import io.skygear.skygear.Reference;
  * The Container for Chat Plugin
  */
 public final class ChatContainer {
-    private static final int GET_MESSAGES_DEFAULT_LIMIT = 50; // default value
+    private static final int MESSAGE_STREAM_DEFAULT_CAPACITY = 256;
     private static final String TAG = "SkygearChatContainer";
+    // lambdas with small responses, whose latency is about one round trip
+    private static final Set<String> ROUND_TRIP_LAMBDAS = new HashSet<>(Arrays.asList(
+            "chat:mark_as_read", "chat:mark_as_delivered", "chat:typing", "chat:total_unread"
+    ));
 
     private static ChatContainer sharedInstance;
 
     private final Container skygear;
     private final Map<String, Subscription> messageSubscription = new HashMap<>();
     private final Map<String, Subscription> typingSubscription = new HashMap<>();
+    private final Map<String, MessageSubscriptionCallback> messageCallbacks = new HashMap<>();
+    private final Map<String, TypingSubscriptionCallback> typingCallbacks = new HashMap<>();
+    private final Map<String, List<ChatEventStream<MessageEvent>>> messageStreams = new HashMap<>();
+    private final Map<String, List<ChatEventStream<Map<String, Typing>>>> typingStreams = new HashMap<>();
+    private final Map<String, Map<String, Typing>> typingStates = new HashMap<>();
+    private final RequestCoalescer requestCoalescer = new RequestCoalescer();
+    private final RequestScheduler requestScheduler = new RequestScheduler();
+    private final MessagePageSizer messagePageSizer = new MessagePageSizer();
+    private final MessageStatusTracker messageStatusTracker = new MessageStatusTracker();
+    private final ReceiptCache receiptCache = new ReceiptCache(new ReceiptCache.Source() {
+        @NonNull
+        @Override
+        public Executor getDeliveryExecutor() {
+            return ChatContainer.this.getDeliveryExecutor();
+        }
+
+        @Override
+        public void fetchMessageReceipts(@NonNull String messageId,
+                                         @NonNull GetCallback<List<MessageReceipt>> callback) {
+            ChatContainer.this.fetchMessageReceipts(messageId, callback);
+        }
+
+        @Override
+        public void onReceiptsLoaded(@NonNull String messageId, @NonNull List<MessageReceipt> receipts) {
+            ChatContainer.this.messageStatusTracker.onReceiptsLoaded(messageId, receipts);
+        }
+    });
+    private final Map<String, Date> conversationVersions = new HashMap<>();
+    private final AssetUploadCache assetUploadCache = new AssetUploadCache();
+    private final MessageSearchIndex messageSearchIndex = new MessageSearchIndex();
+    private final MessagePrefetcher messagePrefetcher = new MessagePrefetcher(this);
+    private LambdaMetricsListener lambdaMetricsListener;
+    private ChatSnapshot snapshot;
+    private Executor parseExecutor = Executors.newSingleThreadExecutor();
+    private Executor deliveryExecutor = new MainThreadExecutor();
 
     /* --- Constructor --- */
 
@@ -69,6 +117,33 @@ public final class ChatContainer {
         return sharedInstance;
     }
 
+    /**
+     * Gets the shared instance, which restores the warm start snapshot from
+     * the file on creation.
+     *
+     * The conversation list and the latest pages of recently opened
+     * conversations are kept in the snapshot. Use
+     * {@link #getCachedConversations()} and {@link #getCachedMessages(Conversation)}
+     * to show them before the network requests return.
+     *
+     * The message search index is kept next to the snapshot file, in a
+     * file with the ".index" suffix.
+     *
+     * @param container    the container
+     * @param snapshotFile the snapshot file
+     * @return the instance
+     */
+    public static ChatContainer getInstance(@NonNull final Container container,
+                                            @NonNull final File snapshotFile) {
+        ChatContainer instance = ChatContainer.getInstance(container);
+        if (instance.snapshot == null) {
+            instance.snapshot = ChatSnapshot.restore(snapshotFile);
+            instance.messageSearchIndex.setStoreFile(new File(snapshotFile.getPath() + ".index"));
+        }
+
+        return instance;
+    }
+
     private ChatContainer(final Container container) {
         if (container != null) {
             this.skygear = container;
@@ -77,6 +152,299 @@ public final class ChatContainer {
         }
     }
 
+    /* --- Cached Data --- */
+
+    /**
+     * Drops the data kept for the current user, in memory and on disk.
+     *
+     * Call this when the user logs out, so that the warm start snapshot, the
+     * message search index and the uploaded assets are not left for the next
+     * user.
+     */
+    public void clearCachedData() {
+        if (this.snapshot != null) {
+            this.snapshot.clear();
+        }
+        this.messageSearchIndex.clear();
+        this.messagePrefetcher.clear();
+        this.receiptCache.clear();
+        this.assetUploadCache.clear();
+    }
+
+    /* --- Threading --- */
+
+    /**
+     * Sets the executor converting lambda responses to models.
+     *
+     * By default, responses are converted on a background thread, in the
+     * order they arrive.
+     *
+     * @param executor the executor
+     */
+    public void setParseExecutor(@NonNull final Executor executor) {
+        this.parseExecutor = executor;
+    }
+
+    /**
+     * Sets the executor delivering the converted responses to callbacks.
+     *
+     * By default, callbacks are invoked on the main thread.
+     *
+     * @param executor the executor
+     */
+    public void setDeliveryExecutor(@NonNull final Executor executor) {
+        this.deliveryExecutor = executor;
+    }
+
+    /**
+     * Gets the executor delivering results to callbacks.
+     *
+     * @return the executor
+     */
+    @NonNull
+    Executor getDeliveryExecutor() {
+        return this.deliveryExecutor;
+    }
+
+    /**
+     * Converts a lambda response with the parse executor, then delivers the
+     * result to the callback with the delivery executor.
+     *
+     * @param parser   the parser
+     * @param callback the callback
+     * @param <T>      the result type
+     */
+    private <T> void parseResponse(@NonNull final ResponseParser<T> parser,
+                                   @NonNull final GetCallback<T> callback) {
+        final Executor delivery = this.deliveryExecutor;
+        this.parseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                T parsed = null;
+                Exception failure = null;
+                try {
+                    parsed = parser.parse();
+                } catch (JSONException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    // e.g. a malformed time, which must still fail the
+                    // request so that coalesced callers are released
+                    Log.w(TAG, "Fail to parse response", e);
+                    failure = e;
+                }
+
+                final T result = parsed;
+                final String reason = failure == null
+                        ? null
+                        : (failure.getMessage() != null ? failure.getMessage() : failure.toString());
+                delivery.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (reason == null) {
+                            callback.onSucc(result);
+                        } else {
+                            callback.onFail(reason);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Converts a lambda response to models, off the main thread.
+     *
+     * @param <T> the result type
+     */
+    private interface ResponseParser<T> {
+        T parse() throws JSONException;
+    }
+
+    private static final class MainThreadExecutor implements Executor {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            this.handler.post(runnable);
+        }
+    }
+
+    /* --- Instrumentation --- */
+
+    /**
+     * Sets the listener receiving metrics of every lambda call.
+     *
+     * @param listener the listener, null to disable instrumentation
+     */
+    public void setLambdaMetricsListener(@Nullable final LambdaMetricsListener listener) {
+        this.lambdaMetricsListener = listener;
+    }
+
+    /**
+     * Gets the lambda metrics listener.
+     *
+     * @return the listener
+     */
+    @Nullable
+    public LambdaMetricsListener getLambdaMetricsListener() {
+        return this.lambdaMetricsListener;
+    }
+
+    /**
+     * Sets how long results of read requests (get_conversation, get_messages
+     * and get_receipt) are reused by identical requests.
+     *
+     * Concurrent identical read requests always share one in-flight request,
+     * this only controls reuse after the response arrives. It is disabled by
+     * default.
+     *
+     * @param millis the time to live in milliseconds, 0 to disable
+     */
+    public void setReadResponseCacheTTL(final long millis) {
+        this.requestCoalescer.setCacheTTL(millis);
+    }
+
+    /**
+     * Sets the maximum number of requests in flight.
+     *
+     * Requests beyond the limit are queued and sent by priority class.
+     *
+     * @param limit the limit, 4 by default
+     */
+    public void setMaxRequestConcurrency(final int limit) {
+        this.requestScheduler.setMaxConcurrency(limit);
+    }
+
+    /**
+     * Sets the maximum number of requests of a priority class in flight.
+     *
+     * Keep the limits of background and fire-and-forget requests below the
+     * maximum request concurrency, so that interactive requests always have
+     * a free slot.
+     *
+     * @param priority the priority class
+     * @param limit    the limit, 4 for interactive, 2 for background and 1
+     *                 for fire-and-forget requests by default
+     */
+    public void setRequestConcurrency(@NonNull final RequestPriority priority, final int limit) {
+        this.requestScheduler.setConcurrency(priority, limit);
+    }
+
+    /**
+     * Sets how long a queued request waits before it moves up one priority
+     * class, so that lower priority requests are not starved.
+     *
+     * @param millis the aging interval in milliseconds, 1 second by default, 0 to disable aging
+     */
+    public void setRequestAgingInterval(final long millis) {
+        this.requestScheduler.setAgingInterval(millis);
+    }
+
+    private void callLambda(@NonNull final String lambda,
+                            @Nullable final Object[] args,
+                            @NonNull final RequestPriority priority,
+                            @Nullable final LambdaResponseHandler handler) {
+        this.callLambda(lambda, args, priority, null, handler);
+    }
+
+    private void callLambda(@NonNull final String lambda,
+                            @Nullable final Object[] args,
+                            @NonNull final RequestPriority priority,
+                            @Nullable final String key,
+                            @Nullable final LambdaResponseHandler handler) {
+        this.requestScheduler.submit(priority, key, new RequestScheduler.Task() {
+            @Override
+            public void run(@NonNull final Runnable done) {
+                final long sentAt = SystemClock.elapsedRealtime();
+                ChatContainer.this.sendLambda(lambda, args, new LambdaResponseHandler() {
+                    @Override
+                    public void onLambdaSuccess(JSONObject result) {
+                        done.run();
+                        ChatContainer.this.onLambdaResponse(
+                                lambda,
+                                result,
+                                SystemClock.elapsedRealtime() - sentAt
+                        );
+                        if (handler != null) {
+                            handler.onLambdaSuccess(result);
+                        }
+                    }
+
+                    @Override
+                    public void onLambdaFail(Error error) {
+                        done.run();
+                        if (handler != null) {
+                            handler.onLambdaFail(error);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Keeps the network estimates up to date with a lambda response.
+     *
+     * @param lambda        the lambda name
+     * @param result        the result
+     * @param latencyMillis the latency in milliseconds, excluding the time queued
+     */
+    private void onLambdaResponse(@NonNull final String lambda,
+                                  @Nullable final JSONObject result,
+                                  final long latencyMillis) {
+        if ("chat:get_messages".equals(lambda) && result != null) {
+            JSONArray results = result.optJSONArray("results");
+            this.messagePageSizer.recordResponse(results == null ? 0 : results.length(), latencyMillis);
+        } else if (ROUND_TRIP_LAMBDAS.contains(lambda)) {
+            this.messagePageSizer.recordRoundTrip(latencyMillis);
+        }
+    }
+
+    private void sendLambda(@NonNull final String lambda,
+                            @Nullable final Object[] args,
+                            @Nullable final LambdaResponseHandler handler) {
+        final LambdaMetricsListener listener = this.lambdaMetricsListener;
+        if (listener == null) {
+            this.skygear.callLambdaFunction(lambda, args, handler);
+            return;
+        }
+
+        int requestBytes = 0;
+        if (args != null) {
+            JSONArray argsJSON = new JSONArray();
+            for (Object eachArg : args) {
+                argsJSON.put(eachArg);
+            }
+            requestBytes = argsJSON.toString().length();
+        }
+
+        listener.onLambdaStart(lambda, requestBytes);
+        final long startNanos = System.nanoTime();
+        this.skygear.callLambdaFunction(lambda, args, new LambdaResponseHandler() {
+            @Override
+            public void onLambdaSuccess(JSONObject result) {
+                long latencyMicros = (System.nanoTime() - startNanos) / 1000;
+                int responseBytes = result == null ? 0 : result.toString().length();
+                listener.onLambdaEnd(lambda, latencyMicros, responseBytes, null);
+
+                if (handler != null) {
+                    handler.onLambdaSuccess(result);
+                }
+            }
+
+            @Override
+            public void onLambdaFail(Error error) {
+                long latencyMicros = (System.nanoTime() - startNanos) / 1000;
+                String reason = error == null ? "Unknown error" : error.getMessage();
+                listener.onLambdaEnd(lambda, latencyMicros, 0, reason);
+
+                if (handler != null) {
+                    handler.onLambdaFail(error);
+                }
+            }
+        });
+    }
+
     /* --- Conversation --- */
 
     /**
@@ -93,18 +461,21 @@ public final class ChatContainer {
                                    @Nullable final Map<String, Object> metadata,
                                    @Nullable final Map<Conversation.OptionKey, Object> options,
                                    @Nullable final SaveCallback<Conversation> callback) {
-        this.skygear.callLambdaFunction("chat:create_conversation",
+        this.callLambda("chat:create_conversation",
                 new Object[] {
                         new JSONArray(participantIds),
                         title,
                         metadata == null ? null : new JSONObject(metadata),
                         options == null ? null : new JSONObject(convertOptionsMap(options))
                 },
+                RequestPriority.INTERACTIVE,
                 new LambdaResponseHandler(){
                     @Override
                     public void onLambdaSuccess(JSONObject result){
                         try {
-                            Conversation conversation = Conversation.fromJson((JSONObject) result.get("conversation"));
+                            Conversation conversation = ChatContainer.this.rememberConversationVersion(
+                                    Conversation.fromJson((JSONObject) result.get("conversation"))
+                            );
                             if (callback != null) {
                                 callback.onSucc(conversation);
                             }
@@ -160,10 +531,11 @@ public final class ChatContainer {
      * Gets all conversations with last_message and last_read_message.
      *
      * @param callback the callback
+     * @return the request
      */
 
-    public void getConversations(@Nullable final GetCallback<List<Conversation>> callback) {
-        this.getConversations(callback, true);
+    public ChatRequest getConversations(@Nullable final GetCallback<List<Conversation>> callback) {
+        return this.getConversations(callback, true);
     }
 
 
@@ -173,28 +545,14 @@ public final class ChatContainer {
      * @param conversationId the conversation id
      * @param callback       the callback
      * @param getLastMessage get last_message and last_read_message if getLastMessage is true
+     * @return the request
      */
-    public void getConversation(@NonNull final String conversationId,
-                                @Nullable final GetCallback<Conversation> callback, boolean getLastMessage) {
-        this.getConversation(
-                conversationId,
-                getLastMessage,
-                new GetCallback<Conversation>() {
-                    @Override
-                    public void onSucc(@Nullable Conversation conversation) {
-                        if (callback != null) {
-
-                            callback.onSucc(conversation);
-                        }
-                    }
-
-                    @Override
-                    public void onFail(@Nullable String failReason) {
-                        if (callback != null) {
-                            callback.onFail(failReason);
-                        }
-                    }
-                });
+    public ChatRequest getConversation(@NonNull final String conversationId,
+                                       @Nullable final GetCallback<Conversation> callback,
+                                       boolean getLastMessage) {
+        ChatRequest request = new ChatRequest();
+        this.getConversation(conversationId, getLastMessage, request.guard(callback));
+        return request;
     }
 
     /**
@@ -202,10 +560,11 @@ public final class ChatContainer {
      *
      * @param conversationId the conversation id
      * @param callback       the callback
+     * @return the request
      */
-    public void getConversation(@NonNull final String conversationId,
-                                @Nullable final GetCallback<Conversation> callback) {
-        this.getConversation(conversationId, true, callback);
+    public ChatRequest getConversation(@NonNull final String conversationId,
+                                       @Nullable final GetCallback<Conversation> callback) {
+        return this.getConversation(conversationId, callback, true);
     }
 
     /**
@@ -228,15 +587,20 @@ public final class ChatContainer {
     private void updateConversationMembership(@NonNull final Conversation conversation,
                                               @NonNull final String lambda,
                                               @NonNull final List<String> memberIds,
+                                              @NonNull final RequestPriority priority,
                                               @Nullable final SaveCallback<Conversation> callback)
     {
-        this.skygear.callLambdaFunction(lambda,
+        this.callLambda(lambda,
                 new Object[]{conversation.getId(), new JSONArray(memberIds)},
+                priority,
                 new LambdaResponseHandler(){
                     @Override
                     public void onLambdaSuccess(JSONObject result){
+                        ChatContainer.this.requestCoalescer.invalidate("chat:get_conversation");
                         try {
-                            Conversation conversation = Conversation.fromJson((JSONObject) result.get("conversation"));
+                            Conversation conversation = ChatContainer.this.rememberConversationVersion(
+                                    Conversation.fromJson((JSONObject) result.get("conversation"))
+                            );
                             if (callback != null) {
                                 callback.onSucc(conversation);
                             }
@@ -282,7 +646,7 @@ public final class ChatContainer {
     public void addConversationAdmins(@NonNull final Conversation conversation,
                                       @NonNull final List<String> adminIds,
                                       @Nullable final SaveCallback<Conversation> callback) {
-        updateConversationMembership(conversation, "chat:add_admins", adminIds, callback);
+        updateConversationMembership(conversation, "chat:add_admins", adminIds, RequestPriority.INTERACTIVE, callback);
     }
 
     /**
@@ -295,7 +659,7 @@ public final class ChatContainer {
     public void removeConversationAdmins(@NonNull final Conversation conversation,
                                         @NonNull final List<String> adminIds,
                                         @Nullable final SaveCallback<Conversation> callback) {
-        updateConversationMembership(conversation, "chat:remove_admins", adminIds, callback);
+        updateConversationMembership(conversation, "chat:remove_admins", adminIds, RequestPriority.INTERACTIVE, callback);
     }
 
     /**
@@ -322,7 +686,7 @@ public final class ChatContainer {
     public void addConversationParticipants(@NonNull final Conversation conversation,
                                            @NonNull final List<String> participantIds,
                                            @Nullable final SaveCallback<Conversation> callback) {
-        updateConversationMembership(conversation, "chat:add_participants", participantIds, callback);
+        updateConversationMembership(conversation, "chat:add_participants", participantIds, RequestPriority.INTERACTIVE, callback);
     }
 
     /**
@@ -348,7 +712,7 @@ public final class ChatContainer {
     public void removeConversationParticipants(@NonNull final Conversation conversation,
                                                @NonNull final List<String> participantIds,
                                                @Nullable final SaveCallback<Conversation> callback) {
-        updateConversationMembership(conversation, "chat:remove_participants", participantIds, callback);
+        updateConversationMembership(conversation, "chat:remove_participants", participantIds, RequestPriority.INTERACTIVE, callback);
     }
 
     /**
@@ -364,6 +728,189 @@ public final class ChatContainer {
         removeConversationParticipants(conversation, Arrays.asList(participantId), callback);
     }
 
+    /* --- Conversation (Bulk Membership) --- */
+
+    /**
+     * Add participants to many conversations.
+     *
+     * @param participantIds the participant ids by conversation
+     * @param maxConcurrency the maximum number of requests in flight, capped by the background request limit,
+     *                       which is used if not positive
+     * @param callback       the callback receiving the aggregated result
+     */
+    public void addParticipantsToConversations(@NonNull final Map<Conversation, List<String>> participantIds,
+                                               final int maxConcurrency,
+                                               @Nullable final SaveCallback<BulkMembershipResult> callback) {
+        new BulkMembershipOperation("chat:add_participants", participantIds, maxConcurrency, callback).start();
+    }
+
+    /**
+     * Remove participants from many conversations.
+     *
+     * @param participantIds the participant ids by conversation
+     * @param maxConcurrency the maximum number of requests in flight, capped by the background request limit,
+     *                       which is used if not positive
+     * @param callback       the callback receiving the aggregated result
+     */
+    public void removeParticipantsFromConversations(@NonNull final Map<Conversation, List<String>> participantIds,
+                                                    final int maxConcurrency,
+                                                    @Nullable final SaveCallback<BulkMembershipResult> callback) {
+        new BulkMembershipOperation("chat:remove_participants", participantIds, maxConcurrency, callback).start();
+    }
+
+    /**
+     * Add admins to many conversations.
+     *
+     * @param adminIds       the admin ids by conversation
+     * @param maxConcurrency the maximum number of requests in flight, capped by the background request limit,
+     *                       which is used if not positive
+     * @param callback       the callback receiving the aggregated result
+     */
+    public void addAdminsToConversations(@NonNull final Map<Conversation, List<String>> adminIds,
+                                         final int maxConcurrency,
+                                         @Nullable final SaveCallback<BulkMembershipResult> callback) {
+        new BulkMembershipOperation("chat:add_admins", adminIds, maxConcurrency, callback).start();
+    }
+
+    /**
+     * Remove admins from many conversations.
+     *
+     * @param adminIds       the admin ids by conversation
+     * @param maxConcurrency the maximum number of requests in flight, capped by the background request limit,
+     *                       which is used if not positive
+     * @param callback       the callback receiving the aggregated result
+     */
+    public void removeAdminsFromConversations(@NonNull final Map<Conversation, List<String>> adminIds,
+                                              final int maxConcurrency,
+                                              @Nullable final SaveCallback<BulkMembershipResult> callback) {
+        new BulkMembershipOperation("chat:remove_admins", adminIds, maxConcurrency, callback).start();
+    }
+
+    /**
+     * Pipelines membership lambda calls for many conversations with bounded
+     * concurrency and aggregates the results.
+     */
+    private final class BulkMembershipOperation {
+        private final String lambda;
+        private final List<Map.Entry<Conversation, List<String>>> pendingEntries;
+        private final int maxConcurrency;
+        private final SaveCallback<BulkMembershipResult> callback;
+
+        private final Map<String, Conversation> updatedConversations = new HashMap<>();
+        private final Map<String, String> failReasons = new HashMap<>();
+        private int nextIndex = 0;
+        private int inFlightCount = 0;
+        private long startTime;
+
+        BulkMembershipOperation(@NonNull final String lambda,
+                                @NonNull final Map<Conversation, List<String>> memberIds,
+                                final int maxConcurrency,
+                                @Nullable final SaveCallback<BulkMembershipResult> callback) {
+            this.lambda = lambda;
+            this.pendingEntries = new ArrayList<>(memberIds.entrySet());
+
+            // requests beyond the background limit would only wait in the scheduler
+            int limit = ChatContainer.this.requestScheduler.getConcurrency(RequestPriority.BACKGROUND);
+            this.maxConcurrency = maxConcurrency > 0
+                    ? Math.min(maxConcurrency, limit)
+                    : limit;
+            this.callback = callback;
+        }
+
+        void start() {
+            this.startTime = SystemClock.elapsedRealtime();
+            if (this.pendingEntries.isEmpty()) {
+                this.finish();
+                return;
+            }
+
+            this.sendNext();
+        }
+
+        private void sendNext() {
+            while (true) {
+                final Map.Entry<Conversation, List<String>> entry;
+                synchronized (this) {
+                    if (this.inFlightCount >= this.maxConcurrency
+                            || this.nextIndex >= this.pendingEntries.size()) {
+                        return;
+                    }
+
+                    entry = this.pendingEntries.get(this.nextIndex);
+                    this.nextIndex++;
+                    this.inFlightCount++;
+                }
+
+                final String conversationId = entry.getKey().getId();
+                ChatContainer.this.updateConversationMembership(
+                        entry.getKey(),
+                        this.lambda,
+                        entry.getValue(),
+                        RequestPriority.BACKGROUND,
+                        new SaveCallback<Conversation>() {
+                            @Override
+                            public void onSucc(@Nullable Conversation conversation) {
+                                BulkMembershipOperation.this.onEntryDone(conversationId, conversation, null);
+                            }
+
+                            @Override
+                            public void onFail(@Nullable String failReason) {
+                                BulkMembershipOperation.this.onEntryDone(
+                                        conversationId,
+                                        null,
+                                        failReason == null ? "Unknown error" : failReason
+                                );
+                            }
+                        });
+            }
+        }
+
+        private void onEntryDone(@NonNull final String conversationId,
+                                 @Nullable final Conversation conversation,
+                                 @Nullable final String failReason) {
+            boolean isFinished;
+            synchronized (this) {
+                this.inFlightCount--;
+                if (failReason != null) {
+                    this.failReasons.put(conversationId, failReason);
+                } else {
+                    this.updatedConversations.put(conversationId, conversation);
+                }
+
+                isFinished = this.inFlightCount == 0
+                        && this.nextIndex >= this.pendingEntries.size();
+            }
+
+            if (isFinished) {
+                this.finish();
+            } else {
+                this.sendNext();
+            }
+        }
+
+        private void finish() {
+            long elapsed = SystemClock.elapsedRealtime() - this.startTime;
+            BulkMembershipResult result = new BulkMembershipResult(
+                    this.updatedConversations,
+                    this.failReasons,
+                    elapsed
+            );
+            Log.i(TAG, String.format(
+                    Locale.US,
+                    "Bulk %s: %d succeeded, %d failed in %d ms (%.1f conversations/s)",
+                    this.lambda,
+                    this.updatedConversations.size(),
+                    this.failReasons.size(),
+                    elapsed,
+                    result.getThroughput()
+            ));
+
+            if (this.callback != null) {
+                this.callback.onSucc(result);
+            }
+        }
+    }
+
     /**
      * Sets whether the conversation is distinct by participants.
      *
@@ -405,8 +952,9 @@ public final class ChatContainer {
      */
     public void leaveConversation(@NonNull final Conversation conversation,
                                   @Nullable final LambdaResponseHandler callback) {
-        this.skygear.callLambdaFunction("chat:leave_conversation",
+        this.callLambda("chat:leave_conversation",
                                         new Object[]{conversation.getId()},
+                                        RequestPriority.INTERACTIVE,
                                         callback);
     }
 
@@ -418,8 +966,9 @@ public final class ChatContainer {
      */
     public void deleteConversation(@NonNull final Conversation conversation,
                                   @Nullable final DeleteCallback<Boolean> callback) {
-        this.skygear.callLambdaFunction("chat:delete_conversation",
+        this.callLambda("chat:delete_conversation",
                 new Object[]{conversation.getId()},
+                RequestPriority.INTERACTIVE,
                 new LambdaResponseHandler() {
                     @Override
                     public void onLambdaSuccess(JSONObject result) {
@@ -438,6 +987,14 @@ public final class ChatContainer {
     /**
      * Update a conversation.
      *
+     * Only the updated keys are sent, based on the given conversation. If a
+     * newer version of the conversation has been seen by the container, the
+     * latest conversation is fetched before saving.
+     *
+     * The save is not conditional on the server. Updates are last-writer-wins:
+     * a change saved by another client in the meantime is not detected, and
+     * the updated keys overwrite it.
+     *
      * @param conversation the conversation
      * @param updates      the updates
      * @param callback     the callback
@@ -445,6 +1002,50 @@ public final class ChatContainer {
     public void updateConversation(@NonNull final Conversation conversation,
                                    @NonNull final Map<String, Object> updates,
                                    @Nullable final SaveCallback<Conversation> callback) {
+        if (this.isConversationOutdated(conversation)) {
+            Log.i(TAG, "Conversation is outdated, fetch the latest one before update");
+            this.updateConversationWithRefetch(conversation, updates, callback);
+            return;
+        }
+
+        final Record partialRecord;
+        try {
+            JSONObject partialJSON = new JSONObject();
+            partialJSON.put("_id", Conversation.TYPE_KEY + "/" + conversation.getId());
+            partialRecord = Record.fromJson(partialJSON);
+        } catch (JSONException e) {
+            Log.w(TAG, "Fail to create partial conversation record: " + e.getMessage());
+            this.updateConversationWithRefetch(conversation, updates, callback);
+            return;
+        }
+
+        for (Map.Entry<String, Object> entry : updates.entrySet()) {
+            partialRecord.set(entry.getKey(), entry.getValue());
+        }
+
+        Database publicDB = this.skygear.getPublicDatabase();
+        publicDB.save(partialRecord, new SaveResponseAdapter<Conversation>(callback) {
+            @Override
+            public Conversation convert(Record record) {
+                ChatContainer.this.requestCoalescer.invalidate("chat:get_conversation");
+                return ChatContainer.this.rememberConversationVersion(
+                        ChatContainer.this.mergeConversation(conversation, record)
+                );
+            }
+        });
+    }
+
+    /**
+     * Update a conversation by fetching the latest conversation and saving
+     * the whole record.
+     *
+     * @param conversation the conversation
+     * @param updates      the updates
+     * @param callback     the callback
+     */
+    private void updateConversationWithRefetch(@NonNull final Conversation conversation,
+                                               @NonNull final Map<String, Object> updates,
+                                               @Nullable final SaveCallback<Conversation> callback) {
         final Database publicDB = this.skygear.getPublicDatabase();
 
         this.getConversation(conversation.getId(), true, new GetCallback<Conversation>() {
@@ -460,14 +1061,23 @@ public final class ChatContainer {
                     return;
                 }
 
-                Record conversationRecord = conversation.record;
+                // the fetched conversation may be shared with other callers
+                Record conversationRecord;
+                try {
+                    conversationRecord = Record.fromJson(conversation.record.toJson());
+                } catch (JSONException e) {
+                    callback.onFail(e.getMessage());
+                    return;
+                }
+
                 for (Map.Entry<String, Object> entry : updates.entrySet()) {
                     conversationRecord.set(entry.getKey(), entry.getValue());
                 }
                 publicDB.save(conversationRecord, new SaveResponseAdapter<Conversation>(callback) {
                     @Override
                     public Conversation convert(Record record) {
-                        return new Conversation(record);
+                        ChatContainer.this.requestCoalescer.invalidate("chat:get_conversation");
+                        return ChatContainer.this.rememberConversationVersion(new Conversation(record));
                     }
                 });
             }
@@ -482,44 +1092,124 @@ public final class ChatContainer {
     }
 
     /**
-     * Mark last read message of a conversation.
+     * Records the updated time of a conversation received from the server.
      *
      * @param conversation the conversation
-     * @param message      the message
+     * @return the same conversation
      */
-    public void markConversationLastReadMessage(@NonNull final Conversation conversation,
-                                                @NonNull final Message message) {
-        markMessagesAsRead(Arrays.asList(new Message[]{message}));
+    private Conversation rememberConversationVersion(@NonNull final Conversation conversation) {
+        Date updatedAt = conversation.record.getUpdatedAt();
+        if (updatedAt != null) {
+            synchronized (this.conversationVersions) {
+                Date knownUpdatedAt = this.conversationVersions.get(conversation.getId());
+                if (knownUpdatedAt == null || knownUpdatedAt.before(updatedAt)) {
+                    this.conversationVersions.put(conversation.getId(), updatedAt);
+                }
+            }
+        }
+
+        return conversation;
     }
 
     /**
-     * Gets total unread message count.
+     * Whether a newer version of the conversation has been received by this
+     * container. Versions saved by other clients and not received yet are
+     * not known.
      *
-     * @param callback the callback
+     * @param conversation the conversation
+     * @return the boolean
      */
-    public void getTotalUnreadMessageCount(@Nullable final GetCallback<Integer> callback) {
-        this.skygear.callLambdaFunction("chat:total_unread", null, new LambdaResponseHandler() {
-            @Override
-            public void onLambdaSuccess(JSONObject result) {
-                try {
-                    int count = result.getInt("message");
-                    if (callback != null) {
-                        callback.onSucc(count);
-                    }
-                } catch (JSONException e) {
-                    if (callback != null) {
-                        callback.onFail(e.getMessage());
-                    }
-                }
-            }
+    private boolean isConversationOutdated(@NonNull final Conversation conversation) {
+        Date updatedAt = conversation.record.getUpdatedAt();
+        if (updatedAt == null) {
+            // never saved, no way to know its version
+            return true;
+        }
+
+        synchronized (this.conversationVersions) {
+            Date knownUpdatedAt = this.conversationVersions.get(conversation.getId());
+            return knownUpdatedAt != null && knownUpdatedAt.after(updatedAt);
+        }
+    }
+
+    /**
+     * Merges the fields of a saved partial record into a conversation.
+     *
+     * @param conversation the conversation
+     * @param savedRecord  the saved record
+     * @return the merged conversation
+     */
+    private Conversation mergeConversation(@NonNull final Conversation conversation,
+                                           @NonNull final Record savedRecord) {
+        try {
+            JSONObject merged = conversation.record.toJson();
+            JSONObject saved = savedRecord.toJson();
+            Iterator<String> savedKeys = saved.keys();
+            while (savedKeys.hasNext()) {
+                String eachKey = savedKeys.next();
+                merged.put(eachKey, saved.get(eachKey));
+            }
+
+            return Conversation.fromJson(merged);
+        } catch (JSONException e) {
+            Log.w(TAG, "Fail to merge saved conversation: " + e.getMessage());
+            return new Conversation(savedRecord);
+        }
+    }
+
+    /**
+     * Mark last read message of a conversation.
+     *
+     * @param conversation the conversation
+     * @param message      the message
+     */
+    public void markConversationLastReadMessage(@NonNull final Conversation conversation,
+                                                @NonNull final Message message) {
+        markMessagesAsRead(Arrays.asList(new Message[]{message}));
+    }
+
+    /**
+     * Gets total unread message count.
+     *
+     * @param callback the callback
+     * @return the request
+     */
+    public ChatRequest getTotalUnreadMessageCount(@Nullable final GetCallback<Integer> callback) {
+        ChatRequest request = new ChatRequest();
+        final GetCallback<Integer> guardedCallback = request.guard(callback);
+        this.callLambda("chat:total_unread", null, RequestPriority.BACKGROUND, new LambdaResponseHandler() {
+            @Override
+            public void onLambdaSuccess(JSONObject result) {
+                try {
+                    int count = result.getInt("message");
+                    guardedCallback.onSucc(count);
+                } catch (JSONException e) {
+                    guardedCallback.onFail(e.getMessage());
+                }
+            }
 
             @Override
             public void onLambdaFail(Error reason) {
-                if (callback != null) {
-                    callback.onFail(reason.getMessage());
-                }
+                guardedCallback.onFail(reason.getMessage());
             }
         });
+        return request;
+    }
+
+    /**
+     * Gets the conversations of the last getConversations call, from the
+     * warm start snapshot.
+     *
+     * @return the conversations, null if there is no snapshot for current user
+     */
+    @Nullable
+    public List<Conversation> getCachedConversations() {
+        String userId = this.getCurrentUserId();
+        if (this.snapshot == null || userId == null) {
+            return null;
+        }
+
+        return this.snapshot.getConversations(userId);
     }
 
     /* --- Conversation (Private) --- */
@@ -535,30 +1225,50 @@ public final class ChatContainer {
     private void getConversation(@NonNull final String conversationId,
                                       @NonNull final boolean getLastMessages,
                                       @Nullable final GetCallback<Conversation> callback) {
-        this.skygear.callLambdaFunction("chat:get_conversation",
-                new Object[]{conversationId, getLastMessages},
+        Object[] args = new Object[]{conversationId, getLastMessages};
+        final String requestKey = RequestCoalescer.keyOf("chat:get_conversation", args);
+        if (!this.requestCoalescer.join(requestKey, callback)) {
+            // joined an in-flight request or served from cache
+            return;
+        }
+
+        final GetCallback<Conversation> completion = this.requestCoalescer.completion(requestKey);
+        this.callLambda("chat:get_conversation",
+                args,
+                RequestPriority.INTERACTIVE,
                 new LambdaResponseHandler(){
                     @Override
-                    public void onLambdaSuccess(JSONObject result){
-                        try {
-                            Conversation conversation = Conversation.fromJson(result.getJSONObject("conversation"));
-                            if (callback != null) {
-                                callback.onSucc(conversation);
+                    public void onLambdaSuccess(final JSONObject result){
+                        if (ChatContainer.this.requestCoalescer.isAbandoned(requestKey)) {
+                            completion.onFail(ChatRequest.CANCELLED_REASON);
+                            return;
+                        }
+
+                        ChatContainer.this.parseResponse(new ResponseParser<Conversation>() {
+                            @Override
+                            public Conversation parse() throws JSONException {
+                                Conversation conversation =
+                                        Conversation.fromJson(result.getJSONObject("conversation"));
+                                conversation.getLastMessage();
+                                conversation.getLastReadMessage();
+                                return ChatContainer.this.rememberConversationVersion(conversation);
                             }
-                        } catch (JSONException e)
-                        {
-                            if (callback != null) {
-                                callback.onFail(e.getMessage());
+                        }, new GetCallback<Conversation>() {
+                            @Override
+                            public void onSucc(@Nullable Conversation conversation) {
+                                completion.onSucc(conversation);
                             }
-                        }
+
+                            @Override
+                            public void onFail(@Nullable String failReason) {
+                                completion.onFail(failReason);
+                            }
+                        });
                     }
 
                     @Override
                     public void onLambdaFail(Error error) {
-
-                        if (callback != null) {
-                            callback.onFail(error.getMessage());
-                        }
+                        completion.onFail(error.getMessage());
                     }
                 });
     }
@@ -568,102 +1278,366 @@ public final class ChatContainer {
      *
      * @param getLastMessages if true, then last_message and last_read_message are fetched.
      * @param callback        the callback
+     * @return the request
      */
 
-    public void getConversations(@Nullable final GetCallback<List<Conversation>> callback,
-                                  @NonNull final Boolean getLastMessages
+    public ChatRequest getConversations(@Nullable final GetCallback<List<Conversation>> callback,
+                                        @NonNull final Boolean getLastMessages
     ) {
-        this.skygear.callLambdaFunction("chat:get_conversations",
+        final ChatRequest request = new ChatRequest();
+        final GetCallback<List<Conversation>> guardedCallback = request.guard(callback);
+        this.callLambda("chat:get_conversations",
                 new Object[]{1, 50, getLastMessages},
+                RequestPriority.INTERACTIVE,
                 new LambdaResponseHandler() {
                     @Override
-                    public void onLambdaSuccess(JSONObject result) {
-                        try {
-                            JSONArray items = result.getJSONArray("conversations");
-                            ArrayList<Conversation> conversations = new ArrayList<>();
-                            int n = items.length();
-                            for (int i = 0; i < n; i++) {
-                                JSONObject o = items.getJSONObject(i);
-                                conversations.add(Conversation.fromJson(o));
+                    public void onLambdaSuccess(final JSONObject result) {
+                        if (request.isCancelled()) {
+                            return;
+                        }
+
+                        ChatContainer.this.parseResponse(new ResponseParser<List<Conversation>>() {
+                            @Override
+                            public List<Conversation> parse() throws JSONException {
+                                JSONArray items = result.getJSONArray("conversations");
+                                ArrayList<Conversation> conversations = new ArrayList<>();
+                                int n = items.length();
+                                for (int i = 0; i < n; i++) {
+                                    JSONObject o = items.getJSONObject(i);
+                                    Conversation conversation = Conversation.fromJson(o);
+                                    // decode the embedded messages here rather than on first access
+                                    conversation.getLastMessage();
+                                    conversation.getLastReadMessage();
+                                    conversations.add(ChatContainer.this.rememberConversationVersion(
+                                            conversation
+                                    ));
+                                }
+
+                                String userId = ChatContainer.this.getCurrentUserId();
+                                if (ChatContainer.this.snapshot != null && userId != null) {
+                                    ChatContainer.this.snapshot.putConversations(userId, conversations);
+                                }
+                                return conversations;
                             }
-                            if (callback != null) {
-                                callback.onSucc(conversations);
+                        }, new GetCallback<List<Conversation>>() {
+                            @Override
+                            public void onSucc(@Nullable List<Conversation> conversations) {
+                                if (conversations != null) {
+                                    for (Conversation eachConversation : conversations) {
+                                        ChatContainer.this.trackParticipantCount(eachConversation);
+                                    }
+                                }
+                                guardedCallback.onSucc(conversations);
+                                ChatContainer.this.messagePrefetcher.prefetch(conversations);
                             }
-                        } catch (JSONException e) {
-                            if (callback != null) {
-                                callback.onFail(e.getMessage());
+
+                            @Override
+                            public void onFail(@Nullable String failReason) {
+                                guardedCallback.onFail(failReason);
                             }
-                        }
+                        });
                     }
 
                     @Override
                     public void onLambdaFail(Error error) {
-
-                        if (callback != null) {
-                            callback.onFail(error.getMessage());
-                        }
+                        guardedCallback.onFail(error.getMessage());
                     }
                 });
+        return request;
     }
     /* --- Message --- */
     /**
      * Gets messages.
      *
      * @param conversation the conversation
+     * @param limit        the limit, 0 for the size chosen by {@link #getMessagePageSizer()}
+     * @param before       the before
+     * @param order        the order, either 'edited_at' or '_created_at'
+     * @param callback     the callback
+     * @return the request
+     */
+    public ChatRequest getMessages(@NonNull final Conversation conversation,
+                                   final int limit,
+                                   @Nullable final Date before,
+                                   @Nullable final String order,
+                                   @Nullable final GetCallback<List<Message>> callback) {
+        ChatRequest request = new ChatRequest();
+        final String userId = this.getCurrentUserId();
+        if (this.snapshot == null || userId == null || before != null || order != null) {
+            this.getMessagesFromServer(
+                    conversation,
+                    limit,
+                    before,
+                    order,
+                    RequestPriority.INTERACTIVE,
+                    request.guard(callback)
+            );
+            return request;
+        }
+
+        // keep the latest page viewed for warm start
+        this.getMessagesFromServer(conversation, limit, null, null, RequestPriority.INTERACTIVE, request.guard(new GetCallback<List<Message>>() {
+            @Override
+            public void onSucc(@Nullable List<Message> messages) {
+                if (messages != null) {
+                    ChatContainer.this.snapshot.putMessages(userId, conversation.getId(), messages);
+                }
+
+                if (callback != null) {
+                    callback.onSucc(messages);
+                }
+            }
+
+            @Override
+            public void onFail(@Nullable String failReason) {
+                if (callback != null) {
+                    callback.onFail(failReason);
+                }
+            }
+        }));
+        return request;
+    }
+
+    /**
+     * Gets the latest page of messages of the conversation last viewed,
+     * from the warm start snapshot.
+     *
+     * @param conversation the conversation
+     * @return the messages ordered from the newest, null if there is none
+     */
+    @Nullable
+    public List<Message> getCachedMessages(@NonNull final Conversation conversation) {
+        String userId = this.getCurrentUserId();
+        if (this.snapshot == null || userId == null) {
+            return null;
+        }
+
+        return this.snapshot.getMessages(userId, conversation.getId());
+    }
+
+    /**
+     * Gets messages without keeping them in the warm start snapshot.
+     *
+     * @param conversation the conversation
      * @param limit        the limit
      * @param before       the before
      * @param order        the order, either 'edited_at' or '_created_at'
+     * @param priority     the priority class
      * @param callback     the callback
      */
-    public void getMessages(@NonNull final Conversation conversation,
-                            final int limit,
-                            @Nullable final Date before,
-                            @Nullable final String order,
-                            @Nullable final GetCallback<List<Message>> callback) {
+    void getMessagesFromServer(@NonNull final Conversation conversation,
+                               final int limit,
+                               @Nullable final Date before,
+                               @Nullable final String order,
+                               @NonNull final RequestPriority priority,
+                               @Nullable final GetCallback<List<Message>> callback) {
         int limitCount = limit;
-        String beforeTimeISO8601 = DateUtils.toISO8601(before != null ? before : new Date());
-
         if (limitCount <= 0) {
-            limitCount = GET_MESSAGES_DEFAULT_LIMIT;
+            limitCount = before == null
+                    ? this.messagePageSizer.getInitialPageSize()
+                    : this.messagePageSizer.getLoadMorePageSize(0);
+        }
+
+        // requests of any size share one request, e.g. a prefetch and the
+        // screen opening the conversation, and the page is trimmed for each
+        // caller; requests for the latest page share the same key whenever
+        // they are sent
+        final String requestKey = RequestCoalescer.keyOf(
+                "chat:get_messages",
+                conversation.getId(),
+                before != null ? DateUtils.toISO8601(before) : null,
+                order
+        );
+        MessagePageCallback pageCallback =
+                new MessagePageCallback(conversation, limitCount, before, order, priority, callback);
+        if (!this.requestCoalescer.join(requestKey, pageCallback)) {
+            // joined an in-flight request or served from cache, which may
+            // still be queued as background work
+            this.requestScheduler.promote(requestKey, priority);
+            return;
         }
 
-        Object[] args = new Object[]{conversation.getId(), limitCount, beforeTimeISO8601, order};
-        this.skygear.callLambdaFunction("chat:get_messages", args, new LambdaResponseHandler() {
+        this.fetchMessagePage(conversation, limitCount, before, order, priority, requestKey);
+    }
+
+    private void fetchMessagePage(@NonNull final Conversation conversation,
+                                  final int pageSize,
+                                  @Nullable final Date before,
+                                  @Nullable final String order,
+                                  @NonNull final RequestPriority priority,
+                                  @NonNull final String requestKey) {
+        String beforeTimeISO8601 = DateUtils.toISO8601(before != null ? before : new Date());
+        final GetCallback<MessagePage> completion = this.requestCoalescer.completion(requestKey);
+        Object[] args = new Object[]{conversation.getId(), pageSize, beforeTimeISO8601, order};
+        this.callLambda("chat:get_messages", args, priority, requestKey, new LambdaResponseHandler() {
             @Override
-            public void onLambdaSuccess(JSONObject result) {
-                List<Message> messages = null;
-                JSONArray results = result.optJSONArray("results");
+            public void onLambdaSuccess(final JSONObject result) {
+                if (ChatContainer.this.requestCoalescer.isAbandoned(requestKey)) {
+                    completion.onFail(ChatRequest.CANCELLED_REASON);
+                    return;
+                }
 
-                if (results != null) {
-                    messages = new ArrayList<>(results.length());
+                ChatContainer.this.parseResponse(new ResponseParser<List<Message>>() {
+                    @Override
+                    public List<Message> parse() {
+                        JSONArray results = result.optJSONArray("results");
+                        if (results == null) {
+                            return null;
+                        }
+
+                        List<Message> messages = new ArrayList<>(results.length());
+                        for (int i = 0; i < results.length(); i++) {
+                            try {
+                                JSONObject object = results.getJSONObject(i);
+                                messages.add(Message.fromJson(object));
+                            } catch (JSONException e) {
+                                Log.e(TAG, "Fail to get message: " + e.getMessage());
+                            }
+                        }
 
-                    for (int i = 0; i < results.length(); i++) {
                         try {
-                            JSONObject object = results.getJSONObject(i);
-                            Record record = Record.fromJson(object);
-                            Message message = new Message(record);
-                            messages.add(message);
-                        } catch (JSONException e) {
-                            Log.e(TAG, "Fail to get message: " + e.getMessage());
+                            ChatContainer.this.messageSearchIndex.addMessages(messages);
+                            if (before == null && order == null) {
+                                ChatContainer.this.messagePrefetcher.putPage(
+                                        conversation.getId(), messages, pageSize);
+                            }
+                        } catch (RuntimeException e) {
+                            // the page is still delivered without the local caches
+                            Log.w(TAG, "Fail to cache messages", e);
                         }
+                        return messages;
                     }
+                }, new GetCallback<List<Message>>() {
+                    @Override
+                    public void onSucc(@Nullable List<Message> messages) {
+                        ChatContainer.this.trackParticipantCount(conversation);
+                        if (messages == null) {
+                            completion.onSucc(null);
+                            return;
+                        }
 
-                    ChatContainer.this.markMessagesAsDelivered(messages);
-                }
-                if (callback != null) {
-                    callback.onSucc(messages);
-                }
+                        for (Message eachMessage : messages) {
+                            ChatContainer.this.messageStatusTracker.track(eachMessage);
+                        }
+                        ChatContainer.this.markMessagesAsDelivered(messages);
+                        completion.onSucc(new MessagePage(messages, pageSize));
+                    }
+
+                    @Override
+                    public void onFail(@Nullable String failReason) {
+                        completion.onFail(failReason);
+                    }
+                });
             }
 
             @Override
             public void onLambdaFail(Error reason) {
-                if (callback != null) {
-                    callback.onFail(reason.getMessage());
-                }
+                completion.onFail(reason.getMessage());
             }
         });
     }
 
+    /**
+     * A page of messages shared by the callers of a request.
+     */
+    private static final class MessagePage {
+        final List<Message> messages;
+        final int pageSize;
+
+        MessagePage(List<Message> messages, int pageSize) {
+            this.messages = messages;
+            this.pageSize = pageSize;
+        }
+    }
+
+    /**
+     * Delivers a shared page of messages in the size a caller asked for.
+     *
+     * The page is trimmed if it is larger. If it is smaller and the
+     * conversation may have more messages, a page of the requested size is
+     * fetched instead.
+     */
+    private final class MessagePageCallback implements GetCallback<MessagePage>, ChatRequest.Abandonable {
+        private final Conversation conversation;
+        private final int limit;
+        private final Date before;
+        private final String order;
+        private final RequestPriority priority;
+        private final GetCallback<List<Message>> callback;
+
+        MessagePageCallback(@NonNull final Conversation conversation,
+                            final int limit,
+                            @Nullable final Date before,
+                            @Nullable final String order,
+                            @NonNull final RequestPriority priority,
+                            @Nullable final GetCallback<List<Message>> callback) {
+            this.conversation = conversation;
+            this.limit = limit;
+            this.before = before;
+            this.order = order;
+            this.priority = priority;
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean isAbandoned() {
+            return ChatRequest.isAbandoned(this.callback);
+        }
+
+        @Override
+        public void onSucc(@Nullable MessagePage page) {
+            if (page == null) {
+                this.deliver(null);
+                return;
+            }
+
+            int size = page.messages.size();
+            if (size > this.limit) {
+                this.deliver(new ArrayList<>(page.messages.subList(0, this.limit)));
+            } else if (size == this.limit || size < page.pageSize) {
+                this.deliver(page.messages);
+            } else {
+                this.fetchRequestedSize();
+            }
+        }
+
+        @Override
+        public void onFail(@Nullable String failReason) {
+            if (this.callback != null) {
+                this.callback.onFail(failReason);
+            }
+        }
+
+        private void fetchRequestedSize() {
+            String requestKey = RequestCoalescer.keyOf(
+                    "chat:get_messages",
+                    this.conversation.getId(),
+                    this.before != null ? DateUtils.toISO8601(this.before) : null,
+                    this.order,
+                    this.limit
+            );
+            if (!ChatContainer.this.requestCoalescer.join(requestKey, this)) {
+                ChatContainer.this.requestScheduler.promote(requestKey, this.priority);
+                return;
+            }
+
+            ChatContainer.this.fetchMessagePage(
+                    this.conversation,
+                    this.limit,
+                    this.before,
+                    this.order,
+                    this.priority,
+                    requestKey
+            );
+        }
+
+        private void deliver(@Nullable List<Message> messages) {
+            if (this.callback != null) {
+                this.callback.onSucc(messages);
+            }
+        }
+    }
+
     /**
      * Send message.
      *
@@ -672,12 +1646,14 @@ public final class ChatContainer {
      * @param asset        the asset
      * @param metadata     the metadata
      * @param callback     the callback
+     * @return the request
      */
-    public void sendMessage(@NonNull final Conversation conversation,
-                            @Nullable final String body,
-                            @Nullable final Asset asset,
-                            @Nullable final JSONObject metadata,
-                            @Nullable final SaveCallback<Message> callback) {
+    public ChatRequest sendMessage(@NonNull final Conversation conversation,
+                                   @Nullable final String body,
+                                   @Nullable final Asset asset,
+                                   @Nullable final JSONObject metadata,
+                                   @Nullable final SaveCallback<Message> callback) {
+        ChatRequest request = new ChatRequest();
         if (!StringUtils.isEmpty(body) || asset != null || metadata != null) {
             Record record = new Record("message");
             Reference reference = new Reference("conversation", conversation.getId());
@@ -690,15 +1666,14 @@ public final class ChatContainer {
             }
 
             if (asset == null) {
-                this.saveMessageRecord(record, callback);
+                this.saveMessageRecord(record, request.guard(callback));
             } else {
-                this.saveMessageRecord(record, asset, callback);
+                this.saveMessageRecord(record, asset, request, request.guard(callback));
             }
         } else {
-            if (callback != null) {
-                callback.onFail("Please provide either body, asset or metadata");
-            }
+            request.guard(callback).onFail("Please provide either body, asset or metadata");
         }
+        return request;
     }
 
     /**
@@ -720,16 +1695,21 @@ public final class ChatContainer {
      */
     public void markMessagesAsRead(@NonNull List<Message> messages) {
         JSONArray messageIds = new JSONArray();
+        final List<String> messageIdList = new ArrayList<>(messages.size());
         for (Message eachMessage : messages) {
             messageIds.put(eachMessage.getId());
+            messageIdList.add(eachMessage.getId());
         }
 
-        this.skygear.callLambdaFunction(
+        this.callLambda(
                 "chat:mark_as_read",
                 new Object[]{messageIds},
+                RequestPriority.BACKGROUND,
                 new LambdaResponseHandler() {
                     @Override
                     public void onLambdaSuccess(JSONObject result) {
+                        ChatContainer.this.requestCoalescer.invalidate("chat:get_receipt");
+                        ChatContainer.this.putCurrentUserReceipt(messageIdList, new Date(), null);
                         Log.i(TAG, "Successfully mark messages as read");
                     }
 
@@ -759,16 +1739,20 @@ public final class ChatContainer {
      */
     public void markMessagesAsDelivered(@NonNull List<Message> messages) {
         JSONArray messageIds = new JSONArray();
+        final List<String> messageIdList = new ArrayList<>(messages.size());
         for (Message eachMessage : messages) {
             messageIds.put(eachMessage.getId());
+            messageIdList.add(eachMessage.getId());
         }
 
-        this.skygear.callLambdaFunction(
+        this.callLambda(
                 "chat:mark_as_delivered",
                 new Object[]{messageIds},
+                RequestPriority.FIRE_AND_FORGET,
                 new LambdaResponseHandler() {
                     @Override
                     public void onLambdaSuccess(JSONObject result) {
+                        ChatContainer.this.putCurrentUserReceipt(messageIdList, null, new Date());
                         Log.i(TAG, "Successfully mark messages as delivered");
                     }
 
@@ -785,21 +1769,24 @@ public final class ChatContainer {
      * @param message the message to be edited
      * @param conversation the conversation
      * @param callback save callback
+     * @return the request
      */
 
-    public void addMessage(@NonNull Message message,
-                           @NonNull final Conversation conversation,
-                           @Nullable final SaveCallback<Message> callback)
+    public ChatRequest addMessage(@NonNull Message message,
+                                  @NonNull final Conversation conversation,
+                                  @Nullable final SaveCallback<Message> callback)
     {
+        ChatRequest request = new ChatRequest();
         Record record = message.getRecord();
         Reference reference = new Reference("conversation", conversation.getId());
         record.set("conversation", reference);
 
         if (message.getAsset() == null) {
-            this.saveMessageRecord(record, callback);
+            this.saveMessageRecord(record, request.guard(callback));
         } else {
-            this.saveMessageRecord(record, message.getAsset(), callback);
+            this.saveMessageRecord(record, message.getAsset(), request, request.guard(callback));
         }
+        return request;
     }
 
     /**
@@ -808,14 +1795,17 @@ public final class ChatContainer {
      * @param message the message to be edited
      * @param body    the new message body
      * @param callback save callback
+     * @return the request
      */
 
-    public void editMessage(@NonNull Message message,
-                            @NonNull String body,
-                            @Nullable final SaveCallback<Message> callback)
+    public ChatRequest editMessage(@NonNull Message message,
+                                   @NonNull String body,
+                                   @Nullable final SaveCallback<Message> callback)
     {
+        ChatRequest request = new ChatRequest();
         message.setBody(body);
-        this.saveMessageRecord(message.getRecord(), callback);
+        this.saveMessageRecord(message.getRecord(), request.guard(callback));
+        return request;
     }
 
 
@@ -828,12 +1818,16 @@ public final class ChatContainer {
 
     public void deleteMessage(@NonNull final Message message, @Nullable final DeleteCallback<Message> callback)
     {
-        this.skygear.callLambdaFunction(
+        this.callLambda(
                 "chat:delete_message",
                 new Object[]{ message.getId() },
+                RequestPriority.INTERACTIVE,
                 new LambdaResponseHandler() {
                     @Override
                     public void onLambdaSuccess(JSONObject result) {
+                        ChatContainer.this.requestCoalescer.invalidate("chat:get_messages");
+                        ChatContainer.this.messageSearchIndex.removeMessage(message.getId());
+                        ChatContainer.this.messagePrefetcher.removeMessage(message);
                         if (callback == null) {
                             return;
                         }
@@ -859,7 +1853,11 @@ public final class ChatContainer {
                 new SaveResponseAdapter<Message>(callback) {
                     @Override
                     public Message convert(Record record) {
-                        return new Message(record);
+                        ChatContainer.this.requestCoalescer.invalidate("chat:get_messages");
+                        Message message = new Message(record);
+                        ChatContainer.this.messageSearchIndex.addMessage(message);
+                        ChatContainer.this.messagePrefetcher.putMessage(message);
+                        return message;
                     }
                 }
         );
@@ -867,62 +1865,254 @@ public final class ChatContainer {
 
     private void saveMessageRecord(final Record message,
                                    final Asset asset,
+                                   final ChatRequest request,
                                    @Nullable final SaveCallback<Message> callback) {
+        Asset uploadedAsset = this.assetUploadCache.getUploadedAsset(asset);
+        if (uploadedAsset != null) {
+            // same content has been uploaded, reuse it
+            message.set("attachment", uploadedAsset);
+            this.saveMessageRecord(message, callback);
+            return;
+        }
+
         this.skygear.getPublicDatabase().uploadAsset(asset, new AssetPostRequest.ResponseHandler() {
             @Override
-            public void onPostSuccess(Asset asset, String response) {
-                message.set("attachment", asset);
+            public void onPostSuccess(Asset uploaded, String response) {
+                ChatContainer.this.assetUploadCache.putUploadedAsset(asset, uploaded);
+                if (request.isCancelled()) {
+                    // the uploaded asset is still reused by the next send
+                    return;
+                }
+
+                message.set("attachment", uploaded);
                 ChatContainer.this.saveMessageRecord(message, callback);
             }
 
             @Override
             public void onPostFail(Asset asset, Error reason) {
                 Log.w(TAG, "Fail to upload asset: " + reason.getMessage());
+                if (request.isCancelled()) {
+                    return;
+                }
+
                 ChatContainer.this.saveMessageRecord(message, callback);
             }
         });
     }
 
+    /**
+     * Gets the asset upload cache.
+     *
+     * Assets created by {@link AssetUploadCache#newAsset(String, String, byte[])}
+     * are uploaded only once for the same content.
+     *
+     * @return the asset upload cache
+     */
+    @NonNull
+    public AssetUploadCache getAssetUploadCache() {
+        return this.assetUploadCache;
+    }
+
+    /**
+     * Gets the on-device message search index.
+     *
+     * Messages fetched, sent or received through subscription are indexed.
+     * The index is persisted when the instance is created with a snapshot
+     * file.
+     *
+     * @return the message search index
+     */
+    @NonNull
+    public MessageSearchIndex getMessageSearchIndex() {
+        return this.messageSearchIndex;
+    }
+
+    /**
+     * Search messages on device.
+     *
+     * @param query        the query, every word is matched as a prefix
+     * @param conversation the conversation to search in, null to search all conversations
+     * @param limit        the maximum number of results
+     * @return the results, the most recent first
+     */
+    @NonNull
+    public List<MessageSearchIndex.Result> searchMessages(@NonNull final String query,
+                                                          @Nullable final Conversation conversation,
+                                                          final int limit) {
+        return this.messageSearchIndex.search(
+                query,
+                conversation == null ? null : conversation.getId(),
+                limit
+        );
+    }
+
+    /**
+     * Gets the message prefetcher.
+     *
+     * After conversations are fetched, the latest pages of the most recently
+     * active ones are prefetched and kept warm by the prefetcher.
+     *
+     * @return the message prefetcher
+     */
+    @NonNull
+    public MessagePrefetcher getMessagePrefetcher() {
+        return this.messagePrefetcher;
+    }
+
+    /**
+     * Gets the message page sizer.
+     *
+     * Requests for messages without a limit are sized by it from the
+     * measured network conditions.
+     *
+     * @return the message page sizer
+     */
+    @NonNull
+    public MessagePageSizer getMessagePageSizer() {
+        return this.messagePageSizer;
+    }
+
     /* --- Message Receipt --- */
 
     /**
      * Gets the receipts for a message .
      *
+     * Receipts are served from the receipt cache when they are fresh.
+     *
      * @param message  the message
      * @param callback the callback
+     * @return the request
+     */
+    public ChatRequest getMessageReceipt(@NonNull final Message message,
+                                         @Nullable final GetCallback<List<MessageReceipt>> callback) {
+        ChatRequest request = new ChatRequest();
+        final String messageId = message.getId();
+        this.receiptCache.load(
+                Collections.singletonList(messageId),
+                request.guard(new GetCallback<Map<String, List<MessageReceipt>>>() {
+                    @Override
+                    public void onSucc(@Nullable Map<String, List<MessageReceipt>> receipts) {
+                        if (callback != null) {
+                            callback.onSucc(receipts == null ? null : receipts.get(messageId));
+                        }
+                    }
+
+                    @Override
+                    public void onFail(@Nullable String failReason) {
+                        if (callback != null) {
+                            callback.onFail(failReason);
+                        }
+                    }
+                }));
+
+        return request;
+    }
+
+    /**
+     * Gets the receipts for some messages.
+     *
+     * Receipts are served from the receipt cache when they are fresh. Each
+     * message missing from the cache is still fetched with its own request,
+     * which lookups made together, e.g. while binding a page of messages,
+     * share.
+     *
+     * @param messages the messages
+     * @param callback the callback, with receipts by message ID
+     * @return the request
      */
-    public void getMessageReceipt(@NonNull final Message message,
-                                  @Nullable final GetCallback<List<MessageReceipt>> callback) {
-        this.skygear.callLambdaFunction(
+    public ChatRequest getMessageReceipts(@NonNull final List<Message> messages,
+                                          @Nullable final GetCallback<Map<String, List<MessageReceipt>>> callback) {
+        ChatRequest request = new ChatRequest();
+        List<String> messageIds = new ArrayList<>(messages.size());
+        for (Message eachMessage : messages) {
+            messageIds.add(eachMessage.getId());
+        }
+
+        this.receiptCache.load(messageIds, request.guard(callback));
+        return request;
+    }
+
+    /**
+     * Gets the receipt cache.
+     *
+     * Subscribe to it for receipt changes of messages on screen.
+     *
+     * @return the receipt cache
+     */
+    @NonNull
+    public ReceiptCache getReceiptCache() {
+        return this.receiptCache;
+    }
+
+    /**
+     * Gets the message status tracker.
+     *
+     * Statuses of fetched and subscribed messages are derived from their
+     * receipts as they change, add a listener to it for status changes.
+     *
+     * @return the message status tracker
+     */
+    @NonNull
+    public MessageStatusTracker getMessageStatusTracker() {
+        return this.messageStatusTracker;
+    }
+
+    /**
+     * Fetches the receipts for a message from server.
+     *
+     * @param messageId the message id
+     * @param callback  the callback
+     */
+    void fetchMessageReceipts(@NonNull final String messageId,
+                              @NonNull final GetCallback<List<MessageReceipt>> callback) {
+        Object[] args = new Object[]{ messageId };
+        final String requestKey = RequestCoalescer.keyOf("chat:get_receipt", args);
+        if (!this.requestCoalescer.join(requestKey, callback)) {
+            // joined an in-flight request or served from cache
+            return;
+        }
+
+        final GetCallback<List<MessageReceipt>> completion = this.requestCoalescer.completion(requestKey);
+        this.callLambda(
                 "chat:get_receipt",
-                new Object[]{ message.getId() },
+                args,
+                RequestPriority.BACKGROUND,
                 new LambdaResponseHandler() {
                     @Override
-                    public void onLambdaSuccess(JSONObject result) {
-                        if (callback == null) {
-                            // nothing to do
+                    public void onLambdaSuccess(final JSONObject result) {
+                        if (ChatContainer.this.requestCoalescer.isAbandoned(requestKey)) {
+                            completion.onFail(ChatRequest.CANCELLED_REASON);
                             return;
                         }
 
-                        try {
-                            List<MessageReceipt> receiptList = new LinkedList<>();
-                            JSONArray receipts = result.getJSONArray("receipts");
-                            for (int idx = 0; idx < receipts.length(); idx++) {
-                                JSONObject eachReceiptJSON = receipts.getJSONObject(idx);
-                                receiptList.add(MessageReceipt.fromJSON(eachReceiptJSON));
+                        ChatContainer.this.parseResponse(new ResponseParser<List<MessageReceipt>>() {
+                            @Override
+                            public List<MessageReceipt> parse() throws JSONException {
+                                List<MessageReceipt> receiptList = new LinkedList<>();
+                                JSONArray receipts = result.getJSONArray("receipts");
+                                for (int idx = 0; idx < receipts.length(); idx++) {
+                                    JSONObject eachReceiptJSON = receipts.getJSONObject(idx);
+                                    receiptList.add(MessageReceipt.fromJSON(eachReceiptJSON));
+                                }
+
+                                return receiptList;
+                            }
+                        }, new GetCallback<List<MessageReceipt>>() {
+                            @Override
+                            public void onSucc(@Nullable List<MessageReceipt> receipts) {
+                                completion.onSucc(receipts);
                             }
 
-                            callback.onSucc(receiptList);
-                        } catch (JSONException e) {
-                            callback.onFail("Fail to parse the result: " + e.getMessage());
-                        }
+                            @Override
+                            public void onFail(@Nullable String failReason) {
+                                completion.onFail("Fail to parse the result: " + failReason);
+                            }
+                        });
                     }
 
                     @Override
                     public void onLambdaFail(Error reason) {
-                        if (callback != null) {
-                            callback.onFail(reason.getMessage());
-                        }
+                        completion.onFail(reason.getMessage());
                     }
                 }
         );
@@ -941,7 +2131,7 @@ public final class ChatContainer {
         DateTimeFormatter dateTimeFormatter = ISODateTimeFormat.dateTime().withZoneUTC();
         String timestamp = dateTimeFormatter.print(new DateTime());
         Object[] args = {conversation.getId(), state.getName(), timestamp};
-        this.skygear.callLambdaFunction("chat:typing", args, new LambdaResponseHandler(){
+        this.callLambda("chat:typing", args, RequestPriority.FIRE_AND_FORGET, new LambdaResponseHandler(){
             @Override
             public void onLambdaSuccess(JSONObject result) {
                 Log.i(TAG, "Successfully send typing indicator");
@@ -957,6 +2147,10 @@ public final class ChatContainer {
     /**
      * Subscribe typing indicator for a conversation.
      *
+     * One subscription is made per conversation, which is shared with
+     * {@link #streamTypingIndicator(Conversation)}. A callback replaces the
+     * one given earlier for the conversation.
+     *
      * @param conversation the conversation
      * @param callback     the callback
      */
@@ -964,16 +2158,39 @@ public final class ChatContainer {
                                          @Nullable final TypingSubscriptionCallback callback) {
         final PubsubContainer pubsub = this.skygear.getPubsub();
         final String conversationId = conversation.getId();
+        if (callback != null) {
+            typingCallbacks.put(conversationId, callback);
+        }
+
+        final TypingSubscriptionCallback containerCallback = new TypingSubscriptionCallback(conversation) {
+            @Override
+            public void notify(@NonNull Map<String, Typing> typingMap) {
+                ChatContainer.this.onTypingEvent(conversationId, typingMap);
+                TypingSubscriptionCallback currentCallback = typingCallbacks.get(conversationId);
+                if (currentCallback != null) {
+                    currentCallback.notify(typingMap);
+                }
+            }
+
+            @Override
+            public void onSubscriptionFail(@Nullable String reason) {
+                TypingSubscriptionCallback currentCallback = typingCallbacks.get(conversationId);
+                if (currentCallback != null) {
+                    currentCallback.onSubscriptionFail(reason);
+                }
+            }
+        };
 
         if (typingSubscription.get(conversationId) == null) {
             getOrCreateUserChannel(new GetCallback<Record>() {
                 @Override
                 public void onSucc(@Nullable Record userChannelRecord) {
-                    if (userChannelRecord != null) {
+                    // another call may have subscribed while querying the channel
+                    if (userChannelRecord != null && typingSubscription.get(conversationId) == null) {
                         Subscription subscription = new Subscription(
                                 conversationId,
                                 (String) userChannelRecord.get("name"),
-                                callback
+                                containerCallback
                         );
                         subscription.attach(pubsub);
                         typingSubscription.put(conversationId, subscription);
@@ -983,9 +2200,7 @@ public final class ChatContainer {
                 @Override
                 public void onFail(@Nullable String failReason) {
                     Log.w(TAG, "Fail to subscribe typing indicator: " + failReason);
-                    if (callback != null) {
-                        callback.onSubscriptionFail(failReason);
-                    }
+                    containerCallback.onSubscriptionFail(failReason);
                 }
             });
         }
@@ -1000,6 +2215,7 @@ public final class ChatContainer {
         final PubsubContainer pubsub = this.skygear.getPubsub();
         String conversationId = conversation.getId();
         Subscription subscription = typingSubscription.get(conversationId);
+        typingCallbacks.remove(conversationId);
 
         if (subscription != null) {
             subscription.detach(pubsub);
@@ -1013,13 +2229,50 @@ public final class ChatContainer {
      * Gets users for the chat plugins.
      *
      * @param callback the callback
+     * @return the request
      */
-    public void getChatUsers(@Nullable final GetCallback<List<ChatUser>> callback) {
+    public ChatRequest getChatUsers(@Nullable final GetCallback<List<ChatUser>> callback) {
+        final ChatRequest request = new ChatRequest();
         Query query = new Query("user");
         Database publicDB = this.skygear.getPublicDatabase();
-        publicDB.query(query, new QueryResponseAdapter<List<ChatUser>>(callback) {
+        publicDB.query(query, new QueryResponseAdapter<List<ChatUser>>(request.guard(callback)) {
+            @Override
+            public List<ChatUser> convert(Record[] records) {
+                if (request.isCancelled()) {
+                    return null;
+                }
+
+                List<ChatUser> users = new ArrayList<>(records.length);
+
+                for (Record record : records) {
+                    users.add(new ChatUser(record));
+                }
+
+                return users;
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Gets some users for the chat plugins.
+     *
+     * @param userIds  the user ids
+     * @param callback the callback
+     * @return the request
+     */
+    public ChatRequest getChatUsers(@NonNull final List<String> userIds,
+                                    @Nullable final GetCallback<List<ChatUser>> callback) {
+        final ChatRequest request = new ChatRequest();
+        Query query = new Query("user").contains("_id", userIds);
+        Database publicDB = this.skygear.getPublicDatabase();
+        publicDB.query(query, new QueryResponseAdapter<List<ChatUser>>(request.guard(callback)) {
             @Override
             public List<ChatUser> convert(Record[] records) {
+                if (request.isCancelled()) {
+                    return null;
+                }
+
                 List<ChatUser> users = new ArrayList<>(records.length);
 
                 for (Record record : records) {
@@ -1029,6 +2282,7 @@ public final class ChatContainer {
                 return users;
             }
         });
+        return request;
     }
 
     /* --- Subscription--- */
@@ -1036,6 +2290,10 @@ public final class ChatContainer {
     /**
      * Subscribe conversation message.
      *
+     * One subscription is made per conversation, which is shared with
+     * {@link #streamConversationMessages(Conversation)}. A callback replaces
+     * the one given earlier for the conversation.
+     *
      * @param conversation the conversation
      * @param callback     the callback
      */
@@ -1043,16 +2301,40 @@ public final class ChatContainer {
                                              @Nullable final MessageSubscriptionCallback callback) {
         final PubsubContainer pubsub = this.skygear.getPubsub();
         final String conversationId = conversation.getId();
+        this.trackParticipantCount(conversation);
+        if (callback != null) {
+            messageCallbacks.put(conversationId, callback);
+        }
+
+        final MessageSubscriptionCallback containerCallback = new MessageSubscriptionCallback(conversation) {
+            @Override
+            public void notify(@NonNull String eventType, @NonNull Message message) {
+                ChatContainer.this.onMessageEvent(eventType, message);
+                MessageSubscriptionCallback currentCallback = messageCallbacks.get(conversationId);
+                if (currentCallback != null) {
+                    currentCallback.notify(eventType, message);
+                }
+            }
+
+            @Override
+            public void onSubscriptionFail(@Nullable String reason) {
+                MessageSubscriptionCallback currentCallback = messageCallbacks.get(conversationId);
+                if (currentCallback != null) {
+                    currentCallback.onSubscriptionFail(reason);
+                }
+            }
+        };
 
         if (messageSubscription.get(conversationId) == null) {
             getOrCreateUserChannel(new GetCallback<Record>() {
                 @Override
                 public void onSucc(@Nullable Record userChannelRecord) {
-                    if (userChannelRecord != null) {
+                    // another call may have subscribed while querying the channel
+                    if (userChannelRecord != null && messageSubscription.get(conversationId) == null) {
                         Subscription subscription = new Subscription(
                                 conversationId,
                                 (String) userChannelRecord.get("name"),
-                                callback
+                                containerCallback
                         );
                         subscription.attach(pubsub);
                         messageSubscription.put(conversationId, subscription);
@@ -1062,14 +2344,76 @@ public final class ChatContainer {
                 @Override
                 public void onFail(@Nullable String failReason) {
                     Log.w(TAG, "Fail to subscribe conversation message: " + failReason);
-                    if (callback != null) {
-                        callback.onSubscriptionFail(failReason);
-                    }
+                    containerCallback.onSubscriptionFail(failReason);
                 }
             });
         }
     }
 
+    /**
+     * Keeps the container states up to date with a message event.
+     *
+     * @param eventType the event type
+     * @param message   the message
+     */
+    private void onMessageEvent(@NonNull String eventType, @NonNull Message message) {
+        // a cached page would miss the change, as it does after a send or delete
+        this.requestCoalescer.invalidate("chat:get_messages");
+        if (MessageSubscriptionCallback.EVENT_TYPE_DELETE.equals(eventType)) {
+            this.messageSearchIndex.removeMessage(message.getId());
+            this.messagePrefetcher.removeMessage(message);
+            this.messageStatusTracker.untrack(message.getId());
+        } else {
+            this.messageSearchIndex.addMessage(message);
+            this.messagePrefetcher.putMessage(message);
+            this.receiptCache.onMessageUpdated(message);
+            this.messageStatusTracker.track(message);
+        }
+
+        List<ChatEventStream<MessageEvent>> streams;
+        synchronized (this.messageStreams) {
+            streams = this.messageStreams.get(message.getConversationId());
+            streams = streams == null ? null : new ArrayList<>(streams);
+        }
+        if (streams != null) {
+            MessageEvent event = new MessageEvent(eventType, message);
+            for (ChatEventStream<MessageEvent> eachStream : streams) {
+                eachStream.emit(event);
+            }
+        }
+    }
+
+    /**
+     * Keeps the typing states up to date with a typing event.
+     *
+     * @param conversationId the conversation id
+     * @param typingMap      the typings map (user ID to {@link Typing})
+     */
+    private void onTypingEvent(@NonNull String conversationId, @NonNull Map<String, Typing> typingMap) {
+        List<ChatEventStream<Map<String, Typing>>> streams;
+        Map<String, Typing> states;
+        synchronized (this.typingStreams) {
+            streams = this.typingStreams.get(conversationId);
+            if (streams == null) {
+                return;
+            }
+            streams = new ArrayList<>(streams);
+
+            // streams may conflate, so every event carries the states of all users
+            states = this.typingStates.get(conversationId);
+            if (states == null) {
+                states = new HashMap<>();
+                this.typingStates.put(conversationId, states);
+            }
+            states.putAll(typingMap);
+            states = new HashMap<>(states);
+        }
+
+        for (ChatEventStream<Map<String, Typing>> eachStream : streams) {
+            eachStream.emit(states);
+        }
+    }
+
     /**
      * Unsubscribe conversation message.
      *
@@ -1079,6 +2423,7 @@ public final class ChatContainer {
         final PubsubContainer pubsub = this.skygear.getPubsub();
         String conversationId = conversation.getId();
         Subscription subscription = messageSubscription.get(conversationId);
+        messageCallbacks.remove(conversationId);
 
         if (subscription != null) {
             subscription.detach(pubsub);
@@ -1086,6 +2431,166 @@ public final class ChatContainer {
         }
     }
 
+    /**
+     * Keeps the number of participants of a conversation for deriving
+     * message statuses.
+     *
+     * @param conversation the conversation
+     */
+    private void trackParticipantCount(@NonNull Conversation conversation) {
+        Set<String> participantIds = conversation.getParticipantIds();
+        if (participantIds != null) {
+            this.messageStatusTracker.setParticipantCount(conversation.getId(), participantIds.size());
+        }
+    }
+
+    /**
+     * Updates the cached receipts of the current user.
+     *
+     * @param messageIds  the message ids
+     * @param readAt      the read time, null if not read
+     * @param deliveredAt the delivered time, null if not delivered
+     */
+    private void putCurrentUserReceipt(@NonNull List<String> messageIds,
+                                       @Nullable Date readAt,
+                                       @Nullable Date deliveredAt) {
+        String currentUserId = this.getCurrentUserId();
+        if (currentUserId != null) {
+            this.receiptCache.putUserReceipt(messageIds, currentUserId, readAt, deliveredAt);
+        }
+    }
+
+    @Nullable
+    private String getCurrentUserId() {
+        Record currentUser = this.skygear.getAuth().getCurrentUser();
+        return currentUser == null ? null : currentUser.getId();
+    }
+
+    /* --- Streams --- */
+
+    /**
+     * Streams messages of a conversation received through subscription,
+     * keeping at most 256 events for a slow collector and dropping the
+     * oldest ones beyond that.
+     *
+     * @param conversation the conversation
+     * @return the stream
+     */
+    @NonNull
+    public ChatEventStream<MessageEvent> streamConversationMessages(@NonNull final Conversation conversation) {
+        return this.streamConversationMessages(
+                conversation,
+                MESSAGE_STREAM_DEFAULT_CAPACITY,
+                ChatEventStream.BufferPolicy.DROP_OLDEST
+        );
+    }
+
+    /**
+     * Streams messages of a conversation received through subscription.
+     *
+     * The conversation message subscription is made if there is none. It is
+     * shared with {@link #subscribeConversationMessage(Conversation, MessageSubscriptionCallback)},
+     * unsubscribing the conversation message also stops the stream.
+     *
+     * @param conversation the conversation
+     * @param capacity     the buffer capacity
+     * @param policy       the buffer policy
+     * @return the stream
+     */
+    @NonNull
+    public ChatEventStream<MessageEvent> streamConversationMessages(@NonNull final Conversation conversation,
+                                                                    final int capacity,
+                                                                    @NonNull final ChatEventStream.BufferPolicy policy) {
+        final String conversationId = conversation.getId();
+        final ChatEventStream<MessageEvent> stream =
+                new ChatEventStream<>(capacity, policy, this.deliveryExecutor);
+        stream.setCloseListener(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChatContainer.this.messageStreams) {
+                    List<ChatEventStream<MessageEvent>> streams =
+                            ChatContainer.this.messageStreams.get(conversationId);
+                    if (streams != null) {
+                        streams.remove(stream);
+                        if (streams.isEmpty()) {
+                            ChatContainer.this.messageStreams.remove(conversationId);
+                        }
+                    }
+                }
+            }
+        });
+
+        synchronized (this.messageStreams) {
+            List<ChatEventStream<MessageEvent>> streams = this.messageStreams.get(conversationId);
+            if (streams == null) {
+                streams = new ArrayList<>();
+                this.messageStreams.put(conversationId, streams);
+            }
+            streams.add(stream);
+        }
+
+        this.subscribeConversationMessage(conversation, null);
+        return stream;
+    }
+
+    /**
+     * Streams the typing states of all users in a conversation.
+     *
+     * Only the latest states are kept for a slow collector. The typing
+     * indicator subscription is made if there is none, and is shared with
+     * {@link #subscribeTypingIndicator(Conversation, TypingSubscriptionCallback)}.
+     *
+     * @param conversation the conversation
+     * @return the stream
+     */
+    @NonNull
+    public ChatEventStream<Map<String, Typing>> streamTypingIndicator(@NonNull final Conversation conversation) {
+        final String conversationId = conversation.getId();
+        final ChatEventStream<Map<String, Typing>> stream =
+                new ChatEventStream<>(1, ChatEventStream.BufferPolicy.CONFLATE, this.deliveryExecutor);
+        stream.setCloseListener(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChatContainer.this.typingStreams) {
+                    List<ChatEventStream<Map<String, Typing>>> streams =
+                            ChatContainer.this.typingStreams.get(conversationId);
+                    if (streams != null) {
+                        streams.remove(stream);
+                        if (streams.isEmpty()) {
+                            ChatContainer.this.typingStreams.remove(conversationId);
+                            ChatContainer.this.typingStates.remove(conversationId);
+                        }
+                    }
+                }
+            }
+        });
+
+        synchronized (this.typingStreams) {
+            List<ChatEventStream<Map<String, Typing>>> streams = this.typingStreams.get(conversationId);
+            if (streams == null) {
+                streams = new ArrayList<>();
+                this.typingStreams.put(conversationId, streams);
+            }
+            streams.add(stream);
+        }
+
+        this.subscribeTypingIndicator(conversation, null);
+        return stream;
+    }
+
+    /**
+     * Gets the message history of a conversation, which loads older pages
+     * only when they are asked for.
+     *
+     * @param conversation the conversation
+     * @param pageSize     the page size, 0 for the default
+     * @return the message history
+     */
+    @NonNull
+    public MessageHistory getMessageHistory(@NonNull final Conversation conversation, final int pageSize) {
+        return new MessageHistory(this, conversation, pageSize);
+    }
+
     private void getOrCreateUserChannel(@Nullable final GetCallback<Record> callback) {
         try {
             Query query = new Query("user_channel");
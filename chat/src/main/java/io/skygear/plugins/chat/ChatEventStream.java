@@ -0,0 +1,230 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * A hot stream of events with an explicit buffer policy.
+ *
+ * Events are buffered until they are delivered to the collector, one event
+ * per task of the delivery executor. When the collector is slower than the
+ * producer, the buffer never grows beyond its capacity, events are dropped
+ * according to the buffer policy and counted instead.
+ *
+ * @param <T> the event type
+ */
+public final class ChatEventStream<T> {
+    /**
+     * What to do with a new event when the buffer is full.
+     */
+    public enum BufferPolicy {
+        /**
+         * Keep only the latest event, the buffer capacity is ignored.
+         */
+        CONFLATE,
+        /**
+         * Drop the oldest buffered event.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new event.
+         */
+        DROP_LATEST
+    }
+
+    /**
+     * The collector of a stream.
+     *
+     * @param <T> the event type
+     */
+    public interface Collector<T> {
+        /**
+         * Event callback
+         *
+         * @param event the event
+         */
+        void onEvent(@NonNull T event);
+    }
+
+    private final int capacity;
+    private final BufferPolicy policy;
+    private final Executor deliveryExecutor;
+    private final ArrayDeque<T> buffer = new ArrayDeque<>();
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            ChatEventStream.this.drainOne();
+        }
+    };
+    private Collector<T> collector;
+    private Runnable closeListener;
+    private boolean isDraining = false;
+    private boolean isClosed = false;
+    private long droppedCount = 0;
+
+    /**
+     * Instantiates a new event stream.
+     *
+     * @param capacity         the buffer capacity
+     * @param policy           the buffer policy
+     * @param deliveryExecutor the executor delivering events to the collector
+     */
+    ChatEventStream(final int capacity,
+                    @NonNull final BufferPolicy policy,
+                    @NonNull final Executor deliveryExecutor) {
+        super();
+        this.capacity = capacity < 1 ? 1 : capacity;
+        this.policy = policy;
+        this.deliveryExecutor = deliveryExecutor;
+    }
+
+    /**
+     * Starts delivering events to the collector, including the events
+     * buffered before this call.
+     *
+     * @param collector the collector
+     */
+    public void collect(@NonNull final Collector<T> collector) {
+        synchronized (this) {
+            this.collector = collector;
+        }
+
+        this.scheduleDrain();
+    }
+
+    /**
+     * Stops the stream and drops the buffered events.
+     */
+    public void close() {
+        Runnable listener;
+        synchronized (this) {
+            if (this.isClosed) {
+                return;
+            }
+
+            this.isClosed = true;
+            this.buffer.clear();
+            this.collector = null;
+            listener = this.closeListener;
+            this.closeListener = null;
+        }
+
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Checks whether the stream is closed.
+     *
+     * @return true if the stream is closed
+     */
+    public synchronized boolean isClosed() {
+        return this.isClosed;
+    }
+
+    /**
+     * Gets the number of events dropped by the buffer policy.
+     *
+     * @return the dropped count
+     */
+    public synchronized long getDroppedCount() {
+        return this.droppedCount;
+    }
+
+    /**
+     * Gets the number of events waiting for delivery.
+     *
+     * @return the buffered count
+     */
+    public synchronized int getBufferedCount() {
+        return this.buffer.size();
+    }
+
+    /**
+     * Sets the listener invoked once when the stream is closed.
+     *
+     * @param listener the listener
+     */
+    synchronized void setCloseListener(@Nullable final Runnable listener) {
+        this.closeListener = listener;
+    }
+
+    /**
+     * Emits an event.
+     *
+     * @param event the event
+     */
+    void emit(@NonNull final T event) {
+        synchronized (this) {
+            if (this.isClosed) {
+                return;
+            }
+
+            switch (this.policy) {
+                case CONFLATE:
+                    this.droppedCount += this.buffer.size();
+                    this.buffer.clear();
+                    break;
+                case DROP_OLDEST:
+                    if (this.buffer.size() >= this.capacity) {
+                        this.buffer.pollFirst();
+                        this.droppedCount++;
+                    }
+                    break;
+                case DROP_LATEST:
+                    if (this.buffer.size() >= this.capacity) {
+                        this.droppedCount++;
+                        return;
+                    }
+                    break;
+            }
+
+            this.buffer.addLast(event);
+        }
+
+        this.scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        synchronized (this) {
+            if (this.isDraining || this.collector == null || this.buffer.isEmpty()) {
+                return;
+            }
+
+            this.isDraining = true;
+        }
+
+        this.deliveryExecutor.execute(this.drainTask);
+    }
+
+    private void drainOne() {
+        T event;
+        Collector<T> currentCollector;
+        synchronized (this) {
+            event = this.buffer.pollFirst();
+            currentCollector = this.collector;
+            if (event == null || currentCollector == null) {
+                this.isDraining = false;
+                return;
+            }
+        }
+
+        currentCollector.onEvent(event);
+
+        // yield to the executor between events, so that a slow collector
+        // lets other work in and the events pile up in the bounded buffer
+        synchronized (this) {
+            if (this.buffer.isEmpty() || this.collector == null) {
+                this.isDraining = false;
+                return;
+            }
+        }
+
+        this.deliveryExecutor.execute(this.drainTask);
+    }
+}
@@ -0,0 +1,214 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * The handle of a request.
+ *
+ * After a request is cancelled, its callback is never invoked, and the
+ * response is not converted unless another caller shares the request.
+ */
+public final class ChatRequest {
+    /**
+     * The fail reason of abandoned requests, which is never delivered to
+     * callbacks.
+     */
+    static final String CANCELLED_REASON = "Request is cancelled";
+
+    /**
+     * A callback which can tell that nobody is waiting for its result, so
+     * that the response need not be converted.
+     */
+    interface Abandonable {
+        /**
+         * Checks whether the result is still wanted.
+         *
+         * @return true if the result will be dropped
+         */
+        boolean isAbandoned();
+    }
+
+    private volatile boolean cancelled = false;
+    private volatile boolean finished = false;
+    private ChatRequestScope scope;
+
+    /**
+     * Instantiates a new request handle.
+     */
+    public ChatRequest() {
+        super();
+    }
+
+    /**
+     * Gets the handle of a request which finished at once, e.g. when its
+     * result is served from a cache.
+     *
+     * @return the finished request
+     */
+    @NonNull
+    public static ChatRequest finished() {
+        ChatRequest request = new ChatRequest();
+        request.finished = true;
+        return request;
+    }
+
+    /**
+     * Cancels the request.
+     */
+    public void cancel() {
+        this.cancelled = true;
+        this.detach();
+    }
+
+    /**
+     * Checks whether the request is cancelled.
+     *
+     * @return true if the request is cancelled
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Checks whether the callback of the request has been invoked.
+     *
+     * @return true if the request is finished
+     */
+    public boolean isFinished() {
+        return this.finished;
+    }
+
+    /**
+     * Marks the request as finished, which removes it from its scope.
+     */
+    void finish() {
+        this.finished = true;
+        this.detach();
+    }
+
+    /**
+     * Wraps a callback, which is not invoked after the request is cancelled.
+     *
+     * @param callback the callback
+     * @param <T>      the result type
+     * @return the wrapped callback
+     */
+    @NonNull
+    <T> GetCallback<T> guard(@Nullable final GetCallback<T> callback) {
+        return new GuardedGetCallback<>(this, callback);
+    }
+
+    /**
+     * Wraps a callback, which is not invoked after the request is cancelled.
+     *
+     * @param callback the callback
+     * @param <T>      the result type
+     * @return the wrapped callback
+     */
+    @NonNull
+    <T> SaveCallback<T> guard(@Nullable final SaveCallback<T> callback) {
+        return new GuardedSaveCallback<>(this, callback);
+    }
+
+    /**
+     * Checks whether a callback is guarded by a cancelled request, or is
+     * otherwise abandoned.
+     *
+     * @param callback the callback
+     * @return true if the callback will never be invoked
+     */
+    static boolean isAbandoned(@Nullable final Object callback) {
+        return callback instanceof Abandonable && ((Abandonable) callback).isAbandoned();
+    }
+
+    synchronized void attach(@NonNull final ChatRequestScope scope) {
+        this.scope = scope;
+    }
+
+    private void detach() {
+        ChatRequestScope attachedScope;
+        synchronized (this) {
+            attachedScope = this.scope;
+            this.scope = null;
+        }
+
+        if (attachedScope != null) {
+            attachedScope.remove(this);
+        }
+    }
+
+    private static final class GuardedGetCallback<T> implements GetCallback<T>, Abandonable {
+        final ChatRequest request;
+        final GetCallback<T> callback;
+
+        GuardedGetCallback(ChatRequest request, GetCallback<T> callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean isAbandoned() {
+            return this.request.isCancelled();
+        }
+
+        @Override
+        public void onSucc(@Nullable T object) {
+            if (this.request.isCancelled()) {
+                return;
+            }
+
+            this.request.finish();
+            if (this.callback != null) {
+                this.callback.onSucc(object);
+            }
+        }
+
+        @Override
+        public void onFail(@Nullable String failReason) {
+            if (this.request.isCancelled()) {
+                return;
+            }
+
+            this.request.finish();
+            if (this.callback != null) {
+                this.callback.onFail(failReason);
+            }
+        }
+    }
+
+    private static final class GuardedSaveCallback<T> implements SaveCallback<T> {
+        final ChatRequest request;
+        final SaveCallback<T> callback;
+
+        GuardedSaveCallback(ChatRequest request, SaveCallback<T> callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onSucc(@Nullable T object) {
+            if (this.request.isCancelled()) {
+                return;
+            }
+
+            this.request.finish();
+            if (this.callback != null) {
+                this.callback.onSucc(object);
+            }
+        }
+
+        @Override
+        public void onFail(@Nullable String failReason) {
+            if (this.request.isCancelled()) {
+                return;
+            }
+
+            this.request.finish();
+            if (this.callback != null) {
+                this.callback.onFail(failReason);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A group of requests cancelled together, e.g. the requests of a screen.
+ *
+ * Finished requests leave the scope by themselves. The scope can be reused
+ * after {@link #cancelAll()}.
+ */
+public final class ChatRequestScope {
+    private final Set<ChatRequest> requests = new LinkedHashSet<>();
+
+    /**
+     * Instantiates a new request scope.
+     */
+    public ChatRequestScope() {
+        super();
+    }
+
+    /**
+     * Adds a request to the scope.
+     *
+     * @param request the request
+     * @return the request
+     */
+    @NonNull
+    public ChatRequest add(@NonNull final ChatRequest request) {
+        if (request.isCancelled() || request.isFinished()) {
+            return request;
+        }
+
+        synchronized (this) {
+            this.requests.add(request);
+        }
+        request.attach(this);
+
+        // the request may have finished while being added
+        if (request.isFinished()) {
+            this.remove(request);
+        }
+
+        return request;
+    }
+
+    /**
+     * Cancels all requests in the scope.
+     */
+    public void cancelAll() {
+        List<ChatRequest> cancelling;
+        synchronized (this) {
+            cancelling = new ArrayList<>(this.requests);
+            this.requests.clear();
+        }
+
+        for (ChatRequest eachRequest : cancelling) {
+            eachRequest.cancel();
+        }
+    }
+
+    /**
+     * Gets the number of unfinished requests in the scope.
+     *
+     * @return the request count
+     */
+    public synchronized int size() {
+        return this.requests.size();
+    }
+
+    synchronized void remove(@NonNull final ChatRequest request) {
+        this.requests.remove(request);
+    }
+}
@@ -0,0 +1,391 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Snapshot of the last conversation list and the latest pages of the
+ * recently opened conversations, persisted for warm start.
+ *
+ * The snapshot file is read into memory when it is restored, records are
+ * only decoded when they are first accessed. Writes are coalesced and done
+ * on a background thread, where new records are encoded.
+ */
+final class ChatSnapshot {
+    private static final String TAG = "SkygearChatSnapshot";
+    private static final int MAGIC = 0x534b4353; // "SKCS"
+    private static final int VERSION = 1;
+    private static final int MAX_PAGES = 10;
+    private static final Executor writeExecutor = Executors.newSingleThreadExecutor();
+
+    private final File file;
+    private String userId;
+    private List<byte[]> conversationData;
+    private List<Conversation> conversations;
+    private final LinkedHashMap<String, Page> pages =
+            new LinkedHashMap<String, Page>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+                    return size() > MAX_PAGES;
+                }
+            };
+    private boolean isWriteScheduled = false;
+
+    private ChatSnapshot(@NonNull final File file) {
+        super();
+        this.file = file;
+    }
+
+    /**
+     * Restores the snapshot from a file.
+     *
+     * An empty snapshot is returned if the file does not exist or cannot be read.
+     *
+     * @param file the snapshot file
+     * @return the snapshot
+     */
+    @NonNull
+    static ChatSnapshot restore(@NonNull final File file) {
+        ChatSnapshot snapshot = new ChatSnapshot(file);
+        if (!file.exists()) {
+            return snapshot;
+        }
+
+        DataInputStream input = null;
+        try {
+            long remaining = file.length();
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                Log.w(TAG, "Ignore snapshot of unknown format");
+                return snapshot;
+            }
+
+            String userId = input.readUTF();
+            List<byte[]> conversationData = readRecords(input, remaining);
+            Map<String, Page> pages = new LinkedHashMap<>();
+            int pageCount = readCount(input, remaining);
+            for (int i = 0; i < pageCount; i++) {
+                String conversationId = input.readUTF();
+                pages.put(conversationId, new Page(readRecords(input, remaining), null));
+            }
+
+            snapshot.userId = userId;
+            snapshot.conversationData = conversationData;
+            snapshot.pages.putAll(pages);
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            // a broken snapshot is a cache miss, and is replaced by the next write
+            Log.w(TAG, "Fail to restore snapshot: " + e);
+            if (!file.delete()) {
+                Log.w(TAG, "Fail to delete snapshot");
+            }
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Gets the conversations in the snapshot.
+     *
+     * @param userId the current user id
+     * @return the conversations, null if there is none for the user
+     */
+    @Nullable
+    synchronized List<Conversation> getConversations(@NonNull final String userId) {
+        if (!userId.equals(this.userId)
+                || (this.conversationData == null && this.conversations == null)) {
+            return null;
+        }
+
+        if (this.conversations == null) {
+            List<Conversation> conversations = new ArrayList<>(this.conversationData.size());
+            for (byte[] eachData : this.conversationData) {
+                try {
+                    conversations.add(Conversation.fromJson(decode(eachData)));
+                } catch (JSONException | RuntimeException e) {
+                    Log.w(TAG, "Fail to decode conversation: " + e.getMessage());
+                }
+            }
+            this.conversations = conversations;
+        }
+
+        return new ArrayList<>(this.conversations);
+    }
+
+    /**
+     * Gets the latest page of a conversation in the snapshot.
+     *
+     * @param userId         the current user id
+     * @param conversationId the conversation id
+     * @return the messages ordered from the newest, null if there is none
+     */
+    @Nullable
+    synchronized List<Message> getMessages(@NonNull final String userId,
+                                           @NonNull final String conversationId) {
+        if (!userId.equals(this.userId)) {
+            return null;
+        }
+
+        Page page = this.pages.get(conversationId);
+        if (page == null) {
+            return null;
+        }
+
+        if (page.messages == null) {
+            List<Message> messages = new ArrayList<>(page.data.size());
+            for (byte[] eachData : page.data) {
+                try {
+                    messages.add(Message.fromJson(decode(eachData)));
+                } catch (JSONException | RuntimeException e) {
+                    Log.w(TAG, "Fail to decode message: " + e.getMessage());
+                }
+            }
+            page.messages = messages;
+        }
+
+        return new ArrayList<>(page.messages);
+    }
+
+    /**
+     * Replaces the conversations in the snapshot.
+     *
+     * @param userId        the current user id
+     * @param conversations the conversations
+     */
+    synchronized void putConversations(@NonNull final String userId,
+                                       @NonNull final List<Conversation> conversations) {
+        this.switchUser(userId);
+
+        this.conversationData = null;
+        this.conversations = new ArrayList<>(conversations);
+        this.scheduleWrite();
+    }
+
+    /**
+     * Replaces the latest page of a conversation in the snapshot.
+     *
+     * @param userId         the current user id
+     * @param conversationId the conversation id
+     * @param messages       the messages ordered from the newest
+     */
+    synchronized void putMessages(@NonNull final String userId,
+                                  @NonNull final String conversationId,
+                                  @NonNull final List<Message> messages) {
+        this.switchUser(userId);
+
+        this.pages.put(conversationId, new Page(null, new ArrayList<>(messages)));
+        this.scheduleWrite();
+    }
+
+    /**
+     * Drops everything in the snapshot and deletes the snapshot file.
+     */
+    synchronized void clear() {
+        this.userId = null;
+        this.conversationData = null;
+        this.conversations = null;
+        this.pages.clear();
+        this.scheduleWrite();
+    }
+
+    private void switchUser(@NonNull final String userId) {
+        if (userId.equals(this.userId)) {
+            return;
+        }
+
+        this.userId = userId;
+        this.conversationData = null;
+        this.conversations = null;
+        this.pages.clear();
+    }
+
+    private void scheduleWrite() {
+        if (this.isWriteScheduled) {
+            return;
+        }
+
+        this.isWriteScheduled = true;
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ChatSnapshot.this.write();
+            }
+        });
+    }
+
+    private void write() {
+        String userId;
+        List<byte[]> conversationData;
+        List<Conversation> conversations;
+        Map<String, Page> pages;
+        synchronized (this) {
+            this.isWriteScheduled = false;
+            userId = this.userId;
+            conversationData = this.conversationData;
+            conversations = this.conversations;
+            pages = new LinkedHashMap<>(this.pages);
+        }
+
+        if (userId == null) {
+            if (this.file.exists() && !this.file.delete()) {
+                Log.w(TAG, "Fail to delete snapshot");
+            }
+            return;
+        }
+
+        File tempFile = new File(this.file.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(userId);
+            if (conversationData != null) {
+                writeRecords(output, conversationData);
+            } else if (conversations != null) {
+                List<byte[]> data = new ArrayList<>(conversations.size());
+                for (Conversation eachConversation : conversations) {
+                    data.add(encode(eachConversation.toJson()));
+                }
+                writeRecords(output, data);
+                this.keepConversationData(conversations, data);
+            } else {
+                writeRecords(output, new ArrayList<byte[]>());
+            }
+
+            output.writeInt(pages.size());
+            for (Map.Entry<String, Page> eachPage : pages.entrySet()) {
+                Page page = eachPage.getValue();
+                List<byte[]> data = page.data;
+                if (data == null) {
+                    data = new ArrayList<>(page.messages.size());
+                    for (Message eachMessage : page.messages) {
+                        data.add(eachMessage.toEncodedJson());
+                    }
+                    page.data = data;
+                }
+
+                output.writeUTF(eachPage.getKey());
+                writeRecords(output, data);
+            }
+            output.close();
+            output = null;
+
+            // replace at once, so that a crash never leaves a partial snapshot
+            if (!tempFile.renameTo(this.file)) {
+                Log.w(TAG, "Fail to replace snapshot");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Fail to write snapshot: " + e.getMessage());
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    private synchronized void keepConversationData(@NonNull final List<Conversation> conversations,
+                                                   @NonNull final List<byte[]> data) {
+        // the conversations may have been replaced during the write
+        if (this.conversations == conversations) {
+            this.conversationData = data;
+        }
+    }
+
+    private static List<byte[]> readRecords(@NonNull final DataInputStream input,
+                                            final long fileLength) throws IOException {
+        int count = readCount(input, fileLength);
+        List<byte[]> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[readCount(input, fileLength)];
+            input.readFully(data);
+            records.add(data);
+        }
+
+        return records;
+    }
+
+    /**
+     * Reads a count or a length, which cannot be larger than the file for
+     * a valid snapshot.
+     */
+    private static int readCount(@NonNull final DataInputStream input,
+                                 final long fileLength) throws IOException {
+        int count = input.readInt();
+        if (count < 0 || count > fileLength) {
+            throw new IOException("Malformed snapshot");
+        }
+
+        return count;
+    }
+
+    private static void writeRecords(@NonNull final DataOutputStream output,
+                                     @NonNull final List<byte[]> records) throws IOException {
+        output.writeInt(records.size());
+        for (byte[] eachData : records) {
+            output.writeInt(eachData.length);
+            output.write(eachData);
+        }
+    }
+
+    private static byte[] encode(@Nullable final JSONObject json) {
+        try {
+            return (json == null ? "{}" : json.toString()).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static JSONObject decode(@NonNull final byte[] data) throws JSONException {
+        try {
+            return new JSONObject(new String(data, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The latest page of a conversation, either encoded or decoded or both.
+     */
+    private static final class Page {
+        volatile List<byte[]> data;
+        volatile List<Message> messages;
+
+        Page(List<byte[]> data, List<Message> messages) {
+            this.data = data;
+            this.messages = messages;
+        }
+    }
+}
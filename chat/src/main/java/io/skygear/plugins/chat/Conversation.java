@@ -54,27 +54,37 @@ public class Conversation {
 
         JSONArray adminIds = (JSONArray) record.get(ADMIN_IDS_KEY);
         if (adminIds != null) {
-            Set<String> ids = new HashSet<>();
-            for (int i = 0; i < adminIds.length(); i++) {
-                String id = adminIds.optString(i);
-                if (id != null) {
-                    ids.add(id);
-                }
-            }
-            this.adminIds = ids;
+            this.adminIds = internIds(adminIds);
         }
 
         JSONArray participantIds = (JSONArray) record.get(PARTICIPANT_IDS_KEY);
         if (participantIds != null) {
-            Set<String> ids = new HashSet<>();
-            for (int i = 0; i < participantIds.length(); i++) {
-                String id = participantIds.optString(i);
-                if (id != null) {
-                    ids.add(id);
+            this.participantIds = internIds(participantIds);
+        }
+    }
+
+    /**
+     * Interns the IDs in a JSON array, in place, so that the record shares
+     * them with the returned set.
+     *
+     * @param idArray the JSON array of IDs
+     * @return the set of interned IDs
+     */
+    private static Set<String> internIds(@NonNull final JSONArray idArray) {
+        Set<String> ids = new HashSet<>(idArray.length() * 4 / 3 + 1);
+        for (int i = 0; i < idArray.length(); i++) {
+            String id = IdPool.intern(idArray.optString(i, null));
+            if (id != null) {
+                try {
+                    idArray.put(i, id);
+                } catch (JSONException e) {
+                    // never thrown for a string
                 }
+                ids.add(id);
             }
-            this.participantIds = ids;
         }
+
+        return ids;
     }
 
     /**
@@ -0,0 +1,48 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.Nullable;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Interns identifiers, so that models parsed from different responses
+ * share one string for the same ID.
+ *
+ * Entries are weakly referenced, an ID is dropped from the pool once no
+ * model holds it.
+ */
+final class IdPool {
+    private static final Map<String, WeakReference<String>> pool = new WeakHashMap<>();
+
+    private IdPool() {
+        super();
+    }
+
+    /**
+     * Gets the pooled instance of an ID.
+     *
+     * @param id the ID
+     * @return the pooled instance, null if the ID is null
+     */
+    @Nullable
+    static String intern(@Nullable final String id) {
+        if (id == null) {
+            return null;
+        }
+
+        synchronized (pool) {
+            WeakReference<String> reference = pool.get(id);
+            String pooled = reference == null ? null : reference.get();
+            if (pooled == null) {
+                // copy, as the ID may share the characters of a larger string
+                pooled = new String(id);
+                pool.put(pooled, new WeakReference<>(pooled));
+            }
+
+            return pooled;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The built-in lambda metrics collector.
+ *
+ * Latency is recorded into a fixed-size log-linear histogram (HDR-style:
+ * 8 linear sub-buckets per power of two), so recording is allocation free
+ * and percentiles are accurate to about 12.5%.
+ */
+public class LambdaMetrics implements LambdaMetricsListener {
+    private final Map<String, Stats> statsMap = new HashMap<>();
+
+    @Override
+    public void onLambdaStart(@NonNull String lambda, int requestBytes) {
+        Stats stats = this.getOrCreateStats(lambda);
+        synchronized (stats) {
+            stats.started++;
+            stats.requestBytes += requestBytes;
+        }
+    }
+
+    @Override
+    public void onLambdaEnd(@NonNull String lambda,
+                            long latencyMicros,
+                            int responseBytes,
+                            @Nullable String error) {
+        Stats stats = this.getOrCreateStats(lambda);
+        synchronized (stats) {
+            stats.finished++;
+            stats.responseBytes += responseBytes;
+            if (error != null) {
+                stats.failed++;
+            }
+            stats.latency.record(latencyMicros);
+        }
+    }
+
+    /**
+     * Gets the latency percentile of a lambda.
+     *
+     * @param lambda     the lambda name
+     * @param percentile the percentile, from 0 to 100
+     * @return the latency in microseconds, 0 if there is no record
+     */
+    public long getLatencyPercentile(@NonNull String lambda, double percentile) {
+        Stats stats;
+        synchronized (this.statsMap) {
+            stats = this.statsMap.get(lambda);
+        }
+
+        if (stats == null) {
+            return 0;
+        }
+
+        synchronized (stats) {
+            return stats.latency.percentile(percentile);
+        }
+    }
+
+    /**
+     * Gets the names of the lambdas that have been recorded.
+     *
+     * @return the lambda names
+     */
+    @NonNull
+    public List<String> getLambdaNames() {
+        List<String> names;
+        synchronized (this.statsMap) {
+            names = new ArrayList<>(this.statsMap.keySet());
+        }
+        Collections.sort(names);
+
+        return names;
+    }
+
+    /**
+     * Clears all records.
+     */
+    public void reset() {
+        synchronized (this.statsMap) {
+            this.statsMap.clear();
+        }
+    }
+
+    /**
+     * Dumps the metrics of all lambdas in a human readable table.
+     *
+     * @return the dump
+     */
+    @NonNull
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(
+                Locale.US,
+                "%-32s %8s %8s %10s %10s %10s %10s %12s %12s%n",
+                "lambda", "calls", "errors", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)",
+                "req(bytes)", "resp(bytes)"
+        ));
+
+        for (String eachName : this.getLambdaNames()) {
+            Stats stats;
+            synchronized (this.statsMap) {
+                stats = this.statsMap.get(eachName);
+            }
+            if (stats == null) {
+                continue;
+            }
+
+            synchronized (stats) {
+                builder.append(String.format(
+                        Locale.US,
+                        "%-32s %8d %8d %10.1f %10.1f %10.1f %10.1f %12d %12d%n",
+                        eachName,
+                        stats.finished,
+                        stats.failed,
+                        stats.latency.percentile(50) / 1000.0,
+                        stats.latency.percentile(90) / 1000.0,
+                        stats.latency.percentile(99) / 1000.0,
+                        stats.latency.max / 1000.0,
+                        stats.requestBytes,
+                        stats.responseBytes
+                ));
+            }
+        }
+
+        return builder.toString();
+    }
+
+    private Stats getOrCreateStats(String lambda) {
+        synchronized (this.statsMap) {
+            Stats stats = this.statsMap.get(lambda);
+            if (stats == null) {
+                stats = new Stats();
+                this.statsMap.put(lambda, stats);
+            }
+
+            return stats;
+        }
+    }
+
+    private static final class Stats {
+        long started;
+        long finished;
+        long failed;
+        long requestBytes;
+        long responseBytes;
+        final Histogram latency = new Histogram();
+    }
+
+    /**
+     * Log-linear histogram for non-negative values.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 40;
+        private static final int BUCKET_COUNT = (MAX_EXPONENT - 1) * SUB_BUCKET_COUNT;
+
+        private final long[] counts = new long[BUCKET_COUNT];
+        private long total;
+        private long max;
+
+        void record(long value) {
+            long v = value < 0 ? 0 : value;
+            this.counts[indexOf(v)]++;
+            this.total++;
+            if (v > this.max) {
+                this.max = v;
+            }
+        }
+
+        long percentile(double percentile) {
+            if (this.total == 0) {
+                return 0;
+            }
+
+            long target = (long) Math.ceil(this.total * Math.min(100.0, percentile) / 100.0);
+            if (target < 1) {
+                target = 1;
+            }
+
+            long seen = 0;
+            for (int idx = 0; idx < BUCKET_COUNT; idx++) {
+                seen += this.counts[idx];
+                if (seen >= target) {
+                    return Math.min(upperBoundOf(idx), this.max);
+                }
+            }
+
+            return this.max;
+        }
+
+        static int indexOf(long value) {
+            if (value < SUB_BUCKET_COUNT) {
+                return (int) value;
+            }
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) ((value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1));
+            int idx = (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+
+            return Math.min(idx, BUCKET_COUNT - 1);
+        }
+
+        static long upperBoundOf(int idx) {
+            if (idx < SUB_BUCKET_COUNT) {
+                return idx;
+            }
+
+            int exponent = idx / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+            int subBucket = idx % SUB_BUCKET_COUNT;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+
+            return ((SUB_BUCKET_COUNT + subBucket) * width) + width - 1;
+        }
+    }
+}
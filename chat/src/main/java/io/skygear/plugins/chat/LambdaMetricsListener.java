@@ -0,0 +1,31 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * The listener interface for lambda call instrumentation.
+ */
+public interface LambdaMetricsListener {
+    /**
+     * Called when a lambda call is sent.
+     *
+     * @param lambda       the lambda name, e.g. chat:get_messages
+     * @param requestBytes the serialized length of the arguments
+     */
+    void onLambdaStart(@NonNull String lambda, int requestBytes);
+
+    /**
+     * Called when a lambda call is finished.
+     *
+     * @param lambda        the lambda name, e.g. chat:get_messages
+     * @param latencyMicros the time from sending the call to receiving the response
+     * @param responseBytes the serialized length of the response, 0 on failure
+     * @param error         the fail reason, null on success
+     */
+    void onLambdaEnd(@NonNull String lambda,
+                     long latencyMicros,
+                     int responseBytes,
+                     @Nullable String error);
+}
@@ -4,17 +4,29 @@ package io.skygear.plugins.chat;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.UnsupportedEncodingException;
 import java.util.Date;
+import java.util.Iterator;
 
 import io.skygear.skygear.Asset;
+import io.skygear.skygear.AssetSerializer;
 import io.skygear.skygear.Record;
 import io.skygear.skygear.Reference;
 
 /**
  * The Message model for Chat Plugin.
+ *
+ * Messages parsed from JSON are kept compact: the fields read by lists
+ * are read straight from the JSON and kept flat with interned IDs, the
+ * metadata stays encoded until it is first asked for, and only the other
+ * fields are kept encoded for rebuilding the record. The Skygear Record is
+ * only built when {@link #getRecord()} or a setter is called, and it is
+ * the source of truth afterwards.
  */
 public class Message {
     // TODO: Implement RecordWrapper when it is available
@@ -24,14 +36,36 @@ public class Message {
     static final String METADATA_KEY = "metadata";
     static final String ATTACHMENT_KEY = "attachment";
     static final String MESSAGE_STATUS_KEY = "message_status";
+    static final String CONVERSATION_KEY = "conversation";
+    private static final String ID_KEY = "_id";
+    private static final String OWNER_ID_KEY = "_ownerID";
+    private static final String CREATED_AT_KEY = "_created_at";
+    private static final String UPDATED_AT_KEY = "_updated_at";
+    private static final long NO_TIME = Long.MIN_VALUE;
 
-    final Record record;
+    private static DateTimeFormatter dateTimeParser = ISODateTimeFormat.dateTimeParser().withZoneUTC();
+    private static DateTimeFormatter dateTimeFormatter = ISODateTimeFormat.dateTime().withZoneUTC();
+
+    private volatile Record record;
+
+    // the compact form, unused once the record is built
+    private final String id;
+    private final String conversationId;
+    private final String ownerId;
+    private final String body;
+    private final Asset asset;
+    private final Status status;
+    private final long createdTime;
+    private final long updatedTime;
+    private byte[] encodedMetadata;
+    private JSONObject metadata;
+    private byte[] encodedOtherFields;
 
     /**
      * Instantiates a new Message with new Skygear Record.
      */
     public Message() {
-        this.record = new Record("message");
+        this(new Record("message"));
     }
 
     /**
@@ -41,6 +75,50 @@ public class Message {
      */
     Message(@NonNull final Record record) {
         this.record = record;
+        this.id = null;
+        this.conversationId = null;
+        this.ownerId = null;
+        this.body = null;
+        this.asset = null;
+        this.status = null;
+        this.createdTime = NO_TIME;
+        this.updatedTime = NO_TIME;
+    }
+
+    /**
+     * Instantiates a new compact Message from its JSON, which is not kept.
+     *
+     * @param json the JSON object
+     * @throws JSONException the JSON exception
+     */
+    private Message(@NonNull final JSONObject json) throws JSONException {
+        String typedId = json.getString(ID_KEY);
+        JSONObject conversation = json.optJSONObject(CONVERSATION_KEY);
+        JSONObject attachment = json.optJSONObject(ATTACHMENT_KEY);
+
+        this.id = typedId.substring(typedId.indexOf('/') + 1);
+        this.conversationId = conversation == null
+                ? null
+                : IdPool.intern(idOf(conversation.optString("$id", null)));
+        this.ownerId = IdPool.intern(optString(json, OWNER_ID_KEY));
+        this.body = optString(json, BODY_KEY);
+        this.asset = attachment == null ? null : AssetSerializer.deserialize(attachment);
+        this.status = Status.fromName(optString(json, MESSAGE_STATUS_KEY));
+        this.createdTime = parseTime(optString(json, CREATED_AT_KEY));
+        this.updatedTime = parseTime(optString(json, UPDATED_AT_KEY));
+
+        JSONObject metadata = json.optJSONObject(METADATA_KEY);
+        this.encodedMetadata = metadata == null ? null : encode(metadata);
+
+        JSONObject otherFields = new JSONObject();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String eachKey = keys.next();
+            if (!isFlatKey(eachKey)) {
+                otherFields.put(eachKey, json.get(eachKey));
+            }
+        }
+        this.encodedOtherFields = otherFields.length() == 0 ? null : encode(otherFields);
     }
 
     /**
@@ -50,7 +128,12 @@ public class Message {
      */
     @NonNull
     public String getId() {
-        return record.getId();
+        Record materialized = this.record;
+        if (materialized != null) {
+            return materialized.getId();
+        }
+
+        return this.id;
     }
 
     /**
@@ -60,8 +143,28 @@ public class Message {
      */
     @NonNull
     public String getConversationId() {
-        Reference reference = (Reference) record.get("conversation");
-        return reference.getId();
+        Record materialized = this.record;
+        if (materialized != null) {
+            Reference reference = (Reference) materialized.get(CONVERSATION_KEY);
+            return reference.getId();
+        }
+
+        return this.conversationId;
+    }
+
+    /**
+     * Gets owner id.
+     *
+     * @return the owner id
+     */
+    @Nullable
+    public String getOwnerId() {
+        Record materialized = this.record;
+        if (materialized != null) {
+            return materialized.getOwnerId();
+        }
+
+        return this.ownerId;
     }
 
     /**
@@ -69,7 +172,7 @@ public class Message {
      *
      */
     public void setBody(String body) {
-        record.set(BODY_KEY, body);
+        this.getRecord().set(BODY_KEY, body);
     }
 
     /**
@@ -79,7 +182,12 @@ public class Message {
      */
     @Nullable
     public String getBody() {
-        return (String)record.get(BODY_KEY);
+        Record materialized = this.record;
+        if (materialized != null) {
+            return (String) materialized.get(BODY_KEY);
+        }
+
+        return this.body;
     }
 
     /**
@@ -89,20 +197,31 @@ public class Message {
      */
     @Nullable
     public void setMetadata(JSONObject metadata) {
-        record.set(METADATA_KEY, metadata);
+        this.getRecord().set(METADATA_KEY, metadata);
     }
 
     /**
      * Gets metadata.
      *
+     * For a compact message, the metadata is decoded on the first call and
+     * kept afterwards.
+     *
      * @return the metadata
      */
     @Nullable
     public JSONObject getMetadata() {
-        if (!record.get(METADATA_KEY).equals(JSONObject.NULL)) {
-            return (JSONObject) record.get(METADATA_KEY);
-        } else {
-            return null;
+        Record materialized = this.record;
+        if (materialized != null) {
+            Object metadata = materialized.get(METADATA_KEY);
+            return metadata instanceof JSONObject ? (JSONObject) metadata : null;
+        }
+
+        synchronized (this) {
+            if (this.record != null) {
+                return this.getMetadata();
+            }
+
+            return this.decodeMetadata();
         }
     }
 
@@ -113,7 +232,12 @@ public class Message {
      */
     @Nullable
     public Status getStatus() {
-        return Status.fromName((String) this.record.get(MESSAGE_STATUS_KEY));
+        Record materialized = this.record;
+        if (materialized != null) {
+            return Status.fromName((String) materialized.get(MESSAGE_STATUS_KEY));
+        }
+
+        return this.status;
     }
 
     /**
@@ -123,7 +247,12 @@ public class Message {
      */
     @NonNull
     public Date getCreatedTime() {
-        return this.record.getCreatedAt();
+        Record materialized = this.record;
+        if (materialized != null) {
+            return materialized.getCreatedAt();
+        }
+
+        return this.createdTime == NO_TIME ? null : new Date(this.createdTime);
     }
 
     /**
@@ -133,7 +262,12 @@ public class Message {
      */
     @NonNull
     public Date getUpdatedTime() {
-        return this.record.getUpdatedAt();
+        Record materialized = this.record;
+        if (materialized != null) {
+            return materialized.getUpdatedAt();
+        }
+
+        return this.updatedTime == NO_TIME ? null : new Date(this.updatedTime);
     }
 
     /**
@@ -143,7 +277,7 @@ public class Message {
      */
     @Nullable
     public void setAsset(Asset asset) {
-        record.set(ATTACHMENT_KEY, asset);
+        this.getRecord().set(ATTACHMENT_KEY, asset);
     }
 
     /**
@@ -153,16 +287,53 @@ public class Message {
      */
     @Nullable
     public Asset getAsset() {
-        return (Asset) record.get(ATTACHMENT_KEY);
+        Record materialized = this.record;
+        if (materialized != null) {
+            return (Asset) materialized.get(ATTACHMENT_KEY);
+        }
+
+        return this.asset;
     }
 
     /**
      * Gets record.
      *
+     * For a compact message, the record is built on the first call and kept
+     * afterwards.
+     *
      * @return the Skygear record
      */
     public Record getRecord() {
-        return record;
+        Record materialized = this.record;
+        if (materialized != null) {
+            return materialized;
+        }
+
+        synchronized (this) {
+            if (this.record == null) {
+                try {
+                    this.record = Record.fromJson(this.buildJson());
+                } catch (JSONException e) {
+                    // the JSON was read into the compact form before
+                    throw new IllegalStateException(e);
+                }
+
+                this.encodedMetadata = null;
+                this.metadata = null;
+                this.encodedOtherFields = null;
+            }
+
+            return this.record;
+        }
+    }
+
+    /**
+     * Checks whether the Skygear Record is built.
+     *
+     * @return false if the message is still compact
+     */
+    boolean isMaterialized() {
+        return this.record != null;
     }
 
     /**
@@ -194,18 +365,137 @@ public class Message {
      */
     @Nullable
     public JSONObject toJson() {
-        return record.toJson();
+        Record materialized = this.record;
+        if (materialized != null) {
+            return materialized.toJson();
+        }
+
+        synchronized (this) {
+            if (this.record != null) {
+                return this.record.toJson();
+            }
+
+            try {
+                return this.buildJson();
+            } catch (JSONException e) {
+                return null;
+            }
+        }
     }
 
     /**
-     * Deserialization from a JSON Object
+     * Serializes to UTF-8 encoded JSON
+     *
+     * @return the encoded JSON
+     */
+    @NonNull
+    byte[] toEncodedJson() {
+        return encode(this.toJson());
+    }
+
+    /**
+     * Deserialization from a JSON Object, which gives a compact message
      *
      * @param jsonObject the JSON object
      * @return the message
      * @throws JSONException the JSON exception
      */
     public static Message fromJson(JSONObject jsonObject) throws JSONException {
-        return new Message(Record.fromJson(jsonObject));
+        return new Message(jsonObject);
+    }
+
+    @Nullable
+    private JSONObject decodeMetadata() {
+        if (this.metadata == null && this.encodedMetadata != null) {
+            try {
+                this.metadata = decode(this.encodedMetadata);
+                this.encodedMetadata = null;
+            } catch (JSONException e) {
+                // the metadata was encoded from a JSON object
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return this.metadata;
+    }
+
+    /**
+     * Builds the JSON of a compact message, in the format of the server.
+     */
+    @NonNull
+    private JSONObject buildJson() throws JSONException {
+        JSONObject json = this.encodedOtherFields == null
+                ? new JSONObject()
+                : decode(this.encodedOtherFields);
+
+        json.put(ID_KEY, TYPE_KEY + "/" + this.id);
+        if (this.conversationId != null) {
+            JSONObject conversation = new JSONObject();
+            conversation.put("$type", "ref");
+            conversation.put("$id", Conversation.TYPE_KEY + "/" + this.conversationId);
+            json.put(CONVERSATION_KEY, conversation);
+        }
+        json.putOpt(OWNER_ID_KEY, this.ownerId);
+        json.putOpt(BODY_KEY, this.body);
+        if (this.asset != null) {
+            json.putOpt(ATTACHMENT_KEY, AssetSerializer.serialize(this.asset));
+        }
+        if (this.status != null) {
+            json.put(MESSAGE_STATUS_KEY, this.status.getName());
+        }
+        if (this.createdTime != NO_TIME) {
+            json.put(CREATED_AT_KEY, dateTimeFormatter.print(this.createdTime));
+        }
+        if (this.updatedTime != NO_TIME) {
+            json.put(UPDATED_AT_KEY, dateTimeFormatter.print(this.updatedTime));
+        }
+        json.putOpt(METADATA_KEY, this.decodeMetadata());
+
+        return json;
+    }
+
+    private static boolean isFlatKey(@NonNull final String key) {
+        return ID_KEY.equals(key)
+                || CONVERSATION_KEY.equals(key)
+                || OWNER_ID_KEY.equals(key)
+                || BODY_KEY.equals(key)
+                || ATTACHMENT_KEY.equals(key)
+                || MESSAGE_STATUS_KEY.equals(key)
+                || CREATED_AT_KEY.equals(key)
+                || UPDATED_AT_KEY.equals(key)
+                || METADATA_KEY.equals(key);
+    }
+
+    @Nullable
+    private static String optString(@NonNull final JSONObject json, @NonNull final String key) {
+        return json.isNull(key) ? null : json.optString(key, null);
+    }
+
+    @Nullable
+    private static String idOf(@Nullable final String typedId) {
+        return typedId == null ? null : typedId.substring(typedId.indexOf('/') + 1);
+    }
+
+    private static long parseTime(@Nullable final String time) {
+        return time == null ? NO_TIME : dateTimeParser.parseMillis(time);
+    }
+
+    @NonNull
+    private static JSONObject decode(@NonNull byte[] data) throws JSONException {
+        try {
+            return new JSONObject(new String(data, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @NonNull
+    private static byte[] encode(@Nullable JSONObject json) {
+        try {
+            return (json == null ? "{}" : json.toString()).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
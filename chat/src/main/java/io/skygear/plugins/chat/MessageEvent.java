@@ -0,0 +1,45 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+
+/**
+ * A message event received through subscription.
+ */
+public final class MessageEvent {
+    private final String eventType;
+    private final Message message;
+
+    /**
+     * Instantiates a new message event.
+     *
+     * @param eventType the event type, one of the event types of {@link MessageSubscriptionCallback}
+     * @param message   the message
+     */
+    MessageEvent(@NonNull String eventType, @NonNull Message message) {
+        super();
+
+        this.eventType = eventType;
+        this.message = message;
+    }
+
+    /**
+     * Gets the event type.
+     *
+     * @return the event type, one of the event types of {@link MessageSubscriptionCallback}
+     */
+    @NonNull
+    public String getEventType() {
+        return this.eventType;
+    }
+
+    /**
+     * Gets the message.
+     *
+     * @return the message
+     */
+    @NonNull
+    public Message getMessage() {
+        return this.message;
+    }
+}
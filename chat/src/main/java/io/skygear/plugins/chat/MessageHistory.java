@@ -0,0 +1,154 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A cold, pull-based stream of the message history of a conversation.
+ *
+ * Nothing is fetched until a page is asked for, and at most one page is
+ * fetched at a time, so the consumer decides how fast pages arrive.
+ */
+public final class MessageHistory {
+    private final ChatContainer container;
+    private final Conversation conversation;
+    private final int pageSize;
+    private Date before;
+    private boolean hasMore = true;
+    private ChatRequest loadingRequest;
+
+    /**
+     * Instantiates a new message history.
+     *
+     * @param container    the chat container
+     * @param conversation the conversation
+     * @param pageSize     the page size, 0 for the default
+     */
+    MessageHistory(@NonNull final ChatContainer container,
+                   @NonNull final Conversation conversation,
+                   final int pageSize) {
+        super();
+
+        this.container = container;
+        this.conversation = conversation;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Checks whether there may be older messages.
+     *
+     * @return false if the oldest message has been loaded
+     */
+    public synchronized boolean hasMore() {
+        return this.hasMore;
+    }
+
+    /**
+     * Checks whether a page is being loaded.
+     *
+     * @return true if a page is being loaded
+     */
+    public synchronized boolean isLoading() {
+        return this.loadingRequest != null;
+    }
+
+    /**
+     * Loads the next older page, ordered from the newest message.
+     *
+     * It fails immediately if a page is being loaded. An empty page is
+     * delivered when there are no more messages.
+     *
+     * @param callback the callback
+     * @return the request
+     */
+    @NonNull
+    public ChatRequest loadNext(@Nullable final GetCallback<List<Message>> callback) {
+        Date pageBefore;
+        synchronized (this) {
+            if (this.loadingRequest != null) {
+                ChatRequest rejected = new ChatRequest();
+                rejected.guard(callback).onFail("A page is being loaded");
+                return rejected;
+            }
+
+            if (!this.hasMore) {
+                ChatRequest done = new ChatRequest();
+                done.guard(callback).onSucc(Collections.<Message>emptyList());
+                return done;
+            }
+
+            pageBefore = this.before;
+        }
+
+        ChatRequest request = this.container.getMessages(
+                this.conversation,
+                this.pageSize,
+                pageBefore,
+                null,
+                new GetCallback<List<Message>>() {
+                    @Override
+                    public void onSucc(@Nullable List<Message> messages) {
+                        MessageHistory.this.onPageLoaded(messages);
+                        if (callback != null) {
+                            callback.onSucc(messages);
+                        }
+                    }
+
+                    @Override
+                    public void onFail(@Nullable String failReason) {
+                        MessageHistory.this.onPageFailed();
+                        if (callback != null) {
+                            callback.onFail(failReason);
+                        }
+                    }
+                });
+
+        synchronized (this) {
+            // the page may have been served from cache synchronously
+            if (!request.isFinished()) {
+                this.loadingRequest = request;
+            }
+        }
+
+        return request;
+    }
+
+    /**
+     * Cancels the page being loaded, if any.
+     */
+    public void cancel() {
+        ChatRequest request;
+        synchronized (this) {
+            request = this.loadingRequest;
+            this.loadingRequest = null;
+        }
+
+        if (request != null) {
+            request.cancel();
+        }
+    }
+
+    private synchronized void onPageLoaded(@Nullable List<Message> messages) {
+        this.loadingRequest = null;
+        if (messages == null || messages.isEmpty()) {
+            this.hasMore = false;
+            return;
+        }
+
+        for (Message eachMessage : messages) {
+            Date createdTime = eachMessage.getCreatedTime();
+            if (createdTime != null && (this.before == null || createdTime.before(this.before))) {
+                this.before = createdTime;
+            }
+        }
+    }
+
+    private synchronized void onPageFailed() {
+        this.loadingRequest = null;
+    }
+}
@@ -0,0 +1,284 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sizes message pages from the measured network conditions.
+ *
+ * The latency of recent get_messages responses is fitted to a line of the
+ * page size, whose intercept is the round trip time and whose slope is the
+ * transfer time per message. A page is sized so that its transfer time is
+ * about one round trip time, which keeps the first page fast on slow
+ * networks and saves round trips on fast ones. Load-more pages also grow
+ * with the scroll velocity, so that the next page arrives before the user
+ * scrolls past the current one.
+ *
+ * Pages are usually all of the same size until the user scrolls, which
+ * leaves the line undetermined, so the round trip time is also measured
+ * by requests with small responses, e.g. marking messages as read.
+ */
+public final class MessagePageSizer {
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int DEFAULT_MIN_PAGE_SIZE = 10;
+    private static final int DEFAULT_MAX_PAGE_SIZE = 100;
+    private static final int SAMPLE_WINDOW_SIZE = 16;
+    private static final int PAGE_SIZE_RECORD_SIZE = 32;
+
+    private final int[] messageCountSamples = new int[SAMPLE_WINDOW_SIZE];
+    private final long[] latencySamples = new long[SAMPLE_WINDOW_SIZE];
+    private int sampleCount = 0;
+    private int sampleIndex = 0;
+    private final long[] roundTripSamples = new long[SAMPLE_WINDOW_SIZE];
+    private int roundTripSampleCount = 0;
+    private int roundTripSampleIndex = 0;
+    private double rttMillis = -1;
+    private double messageTransferMillis = -1;
+
+    private final int[] pageSizeRecords = new int[PAGE_SIZE_RECORD_SIZE];
+    private int pageSizeRecordCount = 0;
+    private int pageSizeRecordIndex = 0;
+
+    private int minPageSize = DEFAULT_MIN_PAGE_SIZE;
+    private int maxPageSize = DEFAULT_MAX_PAGE_SIZE;
+    private int viewportCapacity = 0;
+
+    /**
+     * Instantiates a new message page sizer.
+     */
+    MessagePageSizer() {
+        super();
+    }
+
+    /**
+     * Sets the bounds of page sizes.
+     *
+     * @param minPageSize the minimum page size
+     * @param maxPageSize the maximum page size
+     */
+    public synchronized void setPageSizeBounds(final int minPageSize, final int maxPageSize) {
+        this.minPageSize = minPageSize < 1 ? 1 : minPageSize;
+        this.maxPageSize = maxPageSize < this.minPageSize ? this.minPageSize : maxPageSize;
+    }
+
+    /**
+     * Gets the minimum page size.
+     *
+     * @return the minimum page size
+     */
+    public synchronized int getMinPageSize() {
+        return this.minPageSize;
+    }
+
+    /**
+     * Gets the maximum page size.
+     *
+     * @return the maximum page size
+     */
+    public synchronized int getMaxPageSize() {
+        return this.maxPageSize;
+    }
+
+    /**
+     * Sets how many messages fit on the screen, no page is smaller than it.
+     *
+     * @param capacity the viewport capacity in messages
+     */
+    public synchronized void setViewportCapacity(final int capacity) {
+        this.viewportCapacity = capacity < 0 ? 0 : capacity;
+    }
+
+    /**
+     * Gets the estimated round trip time of get_messages.
+     *
+     * @return the round trip time in milliseconds, -1 if there is no sample
+     */
+    public synchronized long getEstimatedRTT() {
+        return Math.round(this.rttMillis);
+    }
+
+    /**
+     * Gets the estimated transfer time per message.
+     *
+     * @return the transfer time in milliseconds, -1 if there is no sample
+     */
+    public synchronized double getEstimatedMessageTransferTime() {
+        return this.messageTransferMillis;
+    }
+
+    /**
+     * Gets the size of the latest page of a conversation.
+     *
+     * @return the page size
+     */
+    public synchronized int getInitialPageSize() {
+        return this.record(this.computePageSize(0));
+    }
+
+    /**
+     * Gets the size of the next older page while the user is scrolling back.
+     *
+     * @param scrollVelocity the scroll velocity in messages per second
+     * @return the page size
+     */
+    public synchronized int getLoadMorePageSize(final double scrollVelocity) {
+        return this.record(this.computePageSize(scrollVelocity < 0 ? 0 : scrollVelocity));
+    }
+
+    /**
+     * Gets the page sizes chosen recently.
+     *
+     * @return the page sizes, from the oldest
+     */
+    @NonNull
+    public synchronized List<Integer> getRecentPageSizes() {
+        List<Integer> pageSizes = new ArrayList<>(this.pageSizeRecordCount);
+        int start = this.pageSizeRecordCount < PAGE_SIZE_RECORD_SIZE ? 0 : this.pageSizeRecordIndex;
+        for (int i = 0; i < this.pageSizeRecordCount; i++) {
+            pageSizes.add(this.pageSizeRecords[(start + i) % PAGE_SIZE_RECORD_SIZE]);
+        }
+
+        return pageSizes;
+    }
+
+    /**
+     * Records a get_messages response.
+     *
+     * @param messageCount  the number of messages in the response
+     * @param latencyMillis the latency in milliseconds
+     */
+    synchronized void recordResponse(final int messageCount, final long latencyMillis) {
+        if (messageCount < 0 || latencyMillis < 0) {
+            return;
+        }
+
+        this.messageCountSamples[this.sampleIndex] = messageCount;
+        this.latencySamples[this.sampleIndex] = latencyMillis;
+        this.sampleIndex = (this.sampleIndex + 1) % SAMPLE_WINDOW_SIZE;
+        if (this.sampleCount < SAMPLE_WINDOW_SIZE) {
+            this.sampleCount++;
+        }
+
+        this.fitSamples();
+    }
+
+    /**
+     * Records the latency of a request with a small response, which is
+     * about one round trip time.
+     *
+     * @param latencyMillis the latency in milliseconds
+     */
+    synchronized void recordRoundTrip(final long latencyMillis) {
+        if (latencyMillis < 0) {
+            return;
+        }
+
+        this.roundTripSamples[this.roundTripSampleIndex] = latencyMillis;
+        this.roundTripSampleIndex = (this.roundTripSampleIndex + 1) % SAMPLE_WINDOW_SIZE;
+        if (this.roundTripSampleCount < SAMPLE_WINDOW_SIZE) {
+            this.roundTripSampleCount++;
+        }
+
+        if (this.sampleCount > 0) {
+            this.fitSamples();
+        }
+    }
+
+    /**
+     * Fits latency = rtt + count * transfer time by least squares.
+     */
+    private void fitSamples() {
+        double meanCount = 0;
+        double meanLatency = 0;
+        long minLatency = Long.MAX_VALUE;
+        for (int i = 0; i < this.sampleCount; i++) {
+            meanCount += this.messageCountSamples[i];
+            meanLatency += this.latencySamples[i];
+            minLatency = Math.min(minLatency, this.latencySamples[i]);
+        }
+        meanCount /= this.sampleCount;
+        meanLatency /= this.sampleCount;
+
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < this.sampleCount; i++) {
+            double countDelta = this.messageCountSamples[i] - meanCount;
+            covariance += countDelta * (this.latencySamples[i] - meanLatency);
+            variance += countDelta * countDelta;
+        }
+
+        if (variance < 1) {
+            // all pages are of the same size, which tells nothing about the
+            // split, so take the round trip measured by small requests, or
+            // else assume half of the latency is the round trip, which keeps
+            // the size until pages of other sizes are measured
+            long measuredRTT = this.measuredRoundTrip();
+            this.rttMillis = measuredRTT < 0 ? minLatency / 2.0 : Math.min(measuredRTT, minLatency);
+            this.messageTransferMillis = meanCount > 0 ? (meanLatency - this.rttMillis) / meanCount : 0;
+            return;
+        }
+
+        double slope = Math.max(0, covariance / variance);
+        double intercept = meanLatency - slope * meanCount;
+        this.rttMillis = Math.max(0, Math.min(minLatency, intercept));
+        this.messageTransferMillis = slope;
+    }
+
+    /**
+     * Gets the lowest recent latency of small requests, as queuing only
+     * adds to it.
+     *
+     * @return the round trip time in milliseconds, -1 if there is no sample
+     */
+    private long measuredRoundTrip() {
+        long roundTrip = -1;
+        for (int i = 0; i < this.roundTripSampleCount; i++) {
+            if (roundTrip < 0 || this.roundTripSamples[i] < roundTrip) {
+                roundTrip = this.roundTripSamples[i];
+            }
+        }
+
+        return roundTrip;
+    }
+
+    private int computePageSize(double scrollVelocity) {
+        double rtt = this.rttMillis;
+        if (rtt < 0 || this.messageTransferMillis < 0) {
+            return this.clamp(Math.max(DEFAULT_PAGE_SIZE, this.viewportCapacity));
+        }
+
+        // the page whose transfer time equals the round trip time
+        double pageSize = this.messageTransferMillis > 0
+                ? rtt / this.messageTransferMillis
+                : this.maxPageSize;
+
+        // the page covering the scrolling until the next page arrives,
+        // which solves n = v * (rtt + n * t)
+        double scrolledPerMilli = scrollVelocity / 1000;
+        if (scrolledPerMilli > 0) {
+            double uncovered = 1 - scrolledPerMilli * this.messageTransferMillis;
+            pageSize = uncovered > 0
+                    ? Math.max(pageSize, scrolledPerMilli * rtt / uncovered)
+                    : this.maxPageSize;
+        }
+
+        return this.clamp((int) Math.max(Math.ceil(pageSize), this.viewportCapacity));
+    }
+
+    private int clamp(int pageSize) {
+        return Math.max(this.minPageSize, Math.min(this.maxPageSize, pageSize));
+    }
+
+    private int record(int pageSize) {
+        this.pageSizeRecords[this.pageSizeRecordIndex] = pageSize;
+        this.pageSizeRecordIndex = (this.pageSizeRecordIndex + 1) % PAGE_SIZE_RECORD_SIZE;
+        if (this.pageSizeRecordCount < PAGE_SIZE_RECORD_SIZE) {
+            this.pageSizeRecordCount++;
+        }
+
+        return pageSize;
+    }
+}
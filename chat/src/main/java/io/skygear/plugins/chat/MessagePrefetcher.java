@@ -0,0 +1,415 @@
+package io.skygear.plugins.chat;
+
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Prefetches the latest page of messages of the most recently active
+ * conversations.
+ *
+ * The prefetched pages are kept warm in memory, so that opening one of the
+ * conversations can render before the network request returns. Prefetch
+ * requests share the request key of the default latest page, a conversation
+ * opened while its page is being prefetched joins the in-flight request.
+ */
+public final class MessagePrefetcher {
+    private static final int DEFAULT_CONVERSATION_COUNT = 5;
+    private static final int DEFAULT_MAX_CONCURRENCY = 2;
+    private static final long DEFAULT_PAGE_TTL_MILLIS = 5 * 60 * 1000;
+    private static final int MAX_WARM_PAGES = 20;
+
+    /**
+     * Decides whether prefetching is allowed, e.g. by battery and network
+     * conditions of the device.
+     */
+    public interface Policy {
+        /**
+         * Checks whether prefetch requests can be sent now.
+         *
+         * @return true if prefetch requests can be sent
+         */
+        boolean canPrefetch();
+    }
+
+    private final ChatContainer container;
+    private final LinkedHashMap<String, WarmPage> warmPages =
+            new LinkedHashMap<String, WarmPage>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, WarmPage> eldest) {
+                    return size() > MAX_WARM_PAGES;
+                }
+            };
+    private final LinkedList<Conversation> pendingConversations = new LinkedList<>();
+    private final Set<String> inFlightConversationIds = new HashSet<>();
+
+    private int conversationCount = DEFAULT_CONVERSATION_COUNT;
+    private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private long pageTTLMillis = DEFAULT_PAGE_TTL_MILLIS;
+    private Policy policy;
+
+    /**
+     * Instantiates a new message prefetcher.
+     *
+     * @param container the chat container
+     */
+    MessagePrefetcher(@NonNull final ChatContainer container) {
+        super();
+        this.container = container;
+    }
+
+    /**
+     * Sets how many of the most recently active conversations are prefetched,
+     * 0 to disable prefetching.
+     *
+     * @param count the conversation count
+     */
+    public synchronized void setConversationCount(final int count) {
+        this.conversationCount = count < 0 ? 0 : count;
+        if (this.conversationCount == 0) {
+            this.pendingConversations.clear();
+        }
+    }
+
+    /**
+     * Gets how many of the most recently active conversations are prefetched.
+     *
+     * @return the conversation count
+     */
+    public synchronized int getConversationCount() {
+        return this.conversationCount;
+    }
+
+    /**
+     * Sets the maximum number of concurrent prefetch requests.
+     *
+     * @param maxConcurrency the maximum concurrency
+     */
+    public synchronized void setMaxConcurrency(final int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency < 1 ? 1 : maxConcurrency;
+    }
+
+    /**
+     * Gets the maximum number of concurrent prefetch requests.
+     *
+     * @return the maximum concurrency
+     */
+    public synchronized int getMaxConcurrency() {
+        return this.maxConcurrency;
+    }
+
+    /**
+     * Sets how long a warm page can be used after it is fetched.
+     *
+     * @param millis the time to live in milliseconds
+     */
+    public synchronized void setPageTTL(final long millis) {
+        this.pageTTLMillis = millis < 0 ? 0 : millis;
+    }
+
+    /**
+     * Sets the policy deciding whether prefetching is allowed.
+     *
+     * Without a policy, nothing is prefetched, so that an app has to decide
+     * when the extra requests are affordable, e.g. with the device policy of
+     * the conversation UI.
+     *
+     * @param policy the policy
+     */
+    public synchronized void setPolicy(@Nullable final Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Gets the policy deciding whether prefetching is allowed.
+     *
+     * @return the policy
+     */
+    @Nullable
+    public synchronized Policy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * Gets the warm latest page of a conversation.
+     *
+     * The page is ordered from the newest message, the same as
+     * {@link ChatContainer#getMessages(Conversation, int, Date, String, GetCallback)}.
+     *
+     * @param conversationId the conversation id
+     * @return the messages, null if there is no warm page
+     */
+    @Nullable
+    public synchronized List<Message> getWarmPage(@NonNull final String conversationId) {
+        WarmPage page = this.getFreshPage(conversationId);
+        if (page == null) {
+            return null;
+        }
+
+        return new ArrayList<>(page.messages);
+    }
+
+    /**
+     * Drops all warm pages and pending prefetch requests.
+     */
+    public synchronized void clear() {
+        this.warmPages.clear();
+        this.pendingConversations.clear();
+    }
+
+    /**
+     * Prefetches the latest pages of the most recently active conversations.
+     *
+     * Conversations queued by an earlier call but not yet sent are replaced.
+     *
+     * @param conversations the conversations
+     */
+    void prefetch(@NonNull final List<Conversation> conversations) {
+        Policy currentPolicy;
+        int count;
+        synchronized (this) {
+            currentPolicy = this.policy;
+            count = this.conversationCount;
+        }
+
+        if (count == 0 || currentPolicy == null || !currentPolicy.canPrefetch()) {
+            return;
+        }
+
+        List<Conversation> sorted = new ArrayList<>(conversations);
+        Collections.sort(sorted, new Comparator<Conversation>() {
+            @Override
+            public int compare(Conversation lhs, Conversation rhs) {
+                long lhsTime = lastActiveTime(lhs);
+                long rhsTime = lastActiveTime(rhs);
+                return lhsTime == rhsTime ? 0 : (lhsTime > rhsTime ? -1 : 1);
+            }
+        });
+
+        synchronized (this) {
+            this.pendingConversations.clear();
+            for (Conversation eachConversation : sorted.subList(0, Math.min(count, sorted.size()))) {
+                String conversationId = eachConversation.getId();
+                if (this.inFlightConversationIds.contains(conversationId)) {
+                    continue;
+                }
+
+                WarmPage page = this.getFreshPage(conversationId);
+                if (page != null && !isOutdated(page, eachConversation)) {
+                    continue;
+                }
+
+                this.pendingConversations.add(eachConversation);
+            }
+        }
+
+        this.sendNext();
+    }
+
+    private void sendNext() {
+        while (true) {
+            final Conversation conversation;
+            Policy currentPolicy;
+            synchronized (this) {
+                if (this.pendingConversations.isEmpty()
+                        || this.inFlightConversationIds.size() >= this.maxConcurrency) {
+                    return;
+                }
+
+                conversation = this.pendingConversations.poll();
+                currentPolicy = this.policy;
+            }
+
+            // device conditions may change while the queue is drained
+            if (currentPolicy == null || !currentPolicy.canPrefetch()) {
+                synchronized (this) {
+                    this.pendingConversations.clear();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                this.inFlightConversationIds.add(conversation.getId());
+            }
+
+            // the page is kept by putPage when the response arrives, but not in
+            // the warm start snapshot, which is for conversations actually viewed
+            this.container.getMessagesFromServer(
+                    conversation,
+                    0,
+                    null,
+                    null,
+                    RequestPriority.BACKGROUND,
+                    new GetCallback<List<Message>>() {
+                        @Override
+                        public void onSucc(@Nullable List<Message> messages) {
+                            MessagePrefetcher.this.onPrefetchDone(conversation.getId());
+                        }
+
+                        @Override
+                        public void onFail(@Nullable String failReason) {
+                            MessagePrefetcher.this.onPrefetchDone(conversation.getId());
+                        }
+                    });
+        }
+    }
+
+    private void onPrefetchDone(@NonNull final String conversationId) {
+        synchronized (this) {
+            this.inFlightConversationIds.remove(conversationId);
+        }
+
+        this.sendNext();
+    }
+
+    /**
+     * Keeps the latest page of a conversation warm.
+     *
+     * @param conversationId the conversation id
+     * @param messages       the messages, ordered from the newest
+     * @param pageSize       the requested page size
+     */
+    synchronized void putPage(@NonNull final String conversationId,
+                              @NonNull final List<Message> messages,
+                              final int pageSize) {
+        this.warmPages.put(
+                conversationId,
+                new WarmPage(new ArrayList<>(messages), pageSize, SystemClock.elapsedRealtime())
+        );
+    }
+
+    /**
+     * Adds or replaces a message in the warm page of its conversation.
+     *
+     * @param message the message
+     */
+    synchronized void putMessage(@NonNull final Message message) {
+        WarmPage page = this.warmPages.get(message.getConversationId());
+        if (page == null) {
+            return;
+        }
+
+        List<Message> messages = new ArrayList<>(page.messages);
+        Iterator<Message> iterator = messages.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getId().equals(message.getId())) {
+                iterator.remove();
+                break;
+            }
+        }
+
+        int index = 0;
+        Date createdTime = message.getCreatedTime();
+        if (createdTime != null) {
+            while (index < messages.size()) {
+                Date eachCreatedTime = messages.get(index).getCreatedTime();
+                if (eachCreatedTime == null || !eachCreatedTime.after(createdTime)) {
+                    break;
+                }
+                index++;
+            }
+        }
+        messages.add(index, message);
+
+        // keep the page size, or a busy conversation would grow its page forever
+        while (messages.size() > page.pageSize) {
+            messages.remove(messages.size() - 1);
+        }
+
+        this.warmPages.put(
+                message.getConversationId(),
+                new WarmPage(messages, page.pageSize, page.fetchedAt)
+        );
+    }
+
+    /**
+     * Removes a message from the warm page of its conversation.
+     *
+     * @param message the message
+     */
+    synchronized void removeMessage(@NonNull final Message message) {
+        WarmPage page = this.warmPages.get(message.getConversationId());
+        if (page == null) {
+            return;
+        }
+
+        List<Message> messages = new ArrayList<>(page.messages);
+        Iterator<Message> iterator = messages.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getId().equals(message.getId())) {
+                iterator.remove();
+                this.warmPages.put(
+                        message.getConversationId(),
+                        new WarmPage(messages, page.pageSize, page.fetchedAt)
+                );
+                return;
+            }
+        }
+    }
+
+    @Nullable
+    private WarmPage getFreshPage(@NonNull final String conversationId) {
+        WarmPage page = this.warmPages.get(conversationId);
+        if (page == null) {
+            return null;
+        }
+
+        if (SystemClock.elapsedRealtime() - page.fetchedAt > this.pageTTLMillis) {
+            this.warmPages.remove(conversationId);
+            return null;
+        }
+
+        return page;
+    }
+
+    private static boolean isOutdated(@NonNull final WarmPage page,
+                                      @NonNull final Conversation conversation) {
+        Message lastMessage = conversation.getLastMessage();
+        if (lastMessage == null) {
+            return false;
+        }
+
+        for (Message eachMessage : page.messages) {
+            if (eachMessage.getId().equals(lastMessage.getId())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static long lastActiveTime(@NonNull final Conversation conversation) {
+        Message lastMessage = conversation.getLastMessage();
+        if (lastMessage != null && lastMessage.getCreatedTime() != null) {
+            return lastMessage.getCreatedTime().getTime();
+        }
+
+        Date updatedAt = conversation.getRecord().getUpdatedAt();
+        return updatedAt == null ? 0 : updatedAt.getTime();
+    }
+
+    private static final class WarmPage {
+        final List<Message> messages;
+        final int pageSize;
+        final long fetchedAt;
+
+        WarmPage(List<Message> messages, int pageSize, long fetchedAt) {
+            this.messages = messages;
+            this.pageSize = pageSize;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
@@ -86,7 +86,7 @@ public class MessageReceipt {
      * @throws JSONException the JSON exception
      */
     static MessageReceipt fromJSON(@NonNull JSONObject jsonObject) throws JSONException {
-        String userId = jsonObject.getString(USER_KEY);
+        String userId = IdPool.intern(jsonObject.getString(USER_KEY));
 
         Date readAt = null;
         if (jsonObject.has(READ_AT_KEY)) {
@@ -0,0 +1,715 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-device inverted index over message bodies.
+ *
+ * Every query token is matched as a prefix and all tokens must match.
+ * Results are ranked by recency. Messages are kept as parallel arrays and
+ * postings as sorted int arrays, so the index stays compact for long
+ * histories and can be written to disk as is.
+ *
+ * With a store file set, changes are saved to it in the background a
+ * while after they are made.
+ */
+public final class MessageSearchIndex {
+    private static final String TAG = "SkygearChatSearchIndex";
+    private static final int FILE_FORMAT_VERSION = 2;
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MIN_COMPACT_DELETED_COUNT = 1024;
+    private static final long SAVE_DELAY_SECONDS = 30;
+    private static final ScheduledExecutorService saveExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<String, Integer> docIdsByMessageId = new HashMap<>();
+    private final Map<String, Integer> conversationIndices = new HashMap<>();
+    private final List<String> conversationIds = new ArrayList<>();
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private final BitSet deletedDocs = new BitSet();
+
+    private String[] docMessageIds = new String[INITIAL_CAPACITY];
+    private int[] docConversations = new int[INITIAL_CAPACITY];
+    private long[] docTimes = new long[INITIAL_CAPACITY];
+    private int[] docBodyHashes = new int[INITIAL_CAPACITY];
+    private int docCount = 0;
+    private int deletedCount = 0;
+
+    private File storeFile;
+    private int modificationCount = 0;
+    private int savedModificationCount = 0;
+    private boolean isSaveScheduled = false;
+
+    /**
+     * Instantiates a new empty message search index.
+     */
+    MessageSearchIndex() {
+        super();
+    }
+
+    /**
+     * Adds messages to the index. Messages already indexed are re-indexed.
+     *
+     * @param messages the messages
+     */
+    public void addMessages(@NonNull List<Message> messages) {
+        for (Message eachMessage : messages) {
+            this.addMessage(eachMessage);
+        }
+    }
+
+    /**
+     * Adds a message to the index. A message already indexed is re-indexed.
+     *
+     * @param message the message
+     */
+    public void addMessage(@NonNull Message message) {
+        String conversationId;
+        try {
+            conversationId = message.getConversationId();
+        } catch (RuntimeException e) {
+            // not yet attached to a conversation
+            return;
+        }
+
+        Date createdTime = message.getCreatedTime();
+        this.add(
+                message.getId(),
+                conversationId,
+                message.getBody(),
+                createdTime == null ? System.currentTimeMillis() : createdTime.getTime()
+        );
+    }
+
+    /**
+     * Removes a message from the index.
+     *
+     * @param messageId the message id
+     */
+    public synchronized void removeMessage(@NonNull String messageId) {
+        Integer docId = this.docIdsByMessageId.remove(messageId);
+        if (docId == null) {
+            return;
+        }
+
+        this.deletedDocs.set(docId);
+        this.deletedCount++;
+        this.onModified();
+    }
+
+    /**
+     * Gets the number of indexed messages.
+     *
+     * @return the number of messages
+     */
+    public synchronized int size() {
+        return this.docIdsByMessageId.size();
+    }
+
+    /**
+     * Searches messages.
+     *
+     * @param query          the query, every token is matched as a prefix
+     * @param conversationId the conversation id to search in, null to search all conversations
+     * @param limit          the maximum number of results
+     * @return the results, the most recent first
+     */
+    @NonNull
+    public synchronized List<Result> search(@NonNull String query,
+                                            @Nullable String conversationId,
+                                            int limit) {
+        List<String> tokens = new ArrayList<>(tokenize(query));
+        if (tokens.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        int conversationIndex = -1;
+        if (conversationId != null) {
+            Integer index = this.conversationIndices.get(conversationId);
+            if (index == null) {
+                return Collections.emptyList();
+            }
+            conversationIndex = index;
+        }
+
+        // longer tokens are usually more selective, intersect them first
+        Collections.sort(tokens, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return rhs.length() - lhs.length();
+            }
+        });
+
+        BitSet matches = null;
+        for (String eachToken : tokens) {
+            BitSet tokenMatches = this.prefixMatches(eachToken);
+            if (matches == null) {
+                matches = tokenMatches;
+            } else {
+                matches.and(tokenMatches);
+            }
+
+            if (matches.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+        matches.andNot(this.deletedDocs);
+
+        // keep the most recent matches in a min-heap bounded by the limit
+        final long[] times = this.docTimes;
+        PriorityQueue<Integer> mostRecent = new PriorityQueue<>(limit, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long lhsTime = times[lhs];
+                long rhsTime = times[rhs];
+                return lhsTime < rhsTime ? -1 : (lhsTime == rhsTime ? 0 : 1);
+            }
+        });
+        for (int docId = matches.nextSetBit(0); docId >= 0; docId = matches.nextSetBit(docId + 1)) {
+            if (conversationIndex >= 0 && this.docConversations[docId] != conversationIndex) {
+                continue;
+            }
+
+            if (mostRecent.size() < limit) {
+                mostRecent.add(docId);
+            } else if (times[mostRecent.peek()] < times[docId]) {
+                mostRecent.poll();
+                mostRecent.add(docId);
+            }
+        }
+
+        int[] docIds = new int[mostRecent.size()];
+        for (int idx = docIds.length - 1; idx >= 0; idx--) {
+            docIds[idx] = mostRecent.poll();
+        }
+
+        List<Result> results = new ArrayList<>(docIds.length);
+        for (int docId : docIds) {
+            results.add(new Result(
+                    this.docMessageIds[docId],
+                    this.conversationIds.get(this.docConversations[docId]),
+                    new Date(this.docTimes[docId])
+            ));
+        }
+
+        return results;
+    }
+
+    /**
+     * Sets the file persisting the index and loads the messages in it.
+     *
+     * @param file the file
+     */
+    public synchronized void setStoreFile(@NonNull File file) {
+        if (file.equals(this.storeFile)) {
+            return;
+        }
+
+        this.storeFile = file;
+        if (!file.exists() || this.docCount > 0) {
+            return;
+        }
+
+        try {
+            this.readFrom(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Fail to load search index: " + e.getMessage());
+            if (!file.delete()) {
+                Log.w(TAG, "Fail to delete search index");
+            }
+        }
+    }
+
+    /**
+     * Saves the index to the store file now if it has changed since last save.
+     *
+     * Changes are saved in the background anyway, call this to save them
+     * before the app may be killed, e.g. when it goes to background.
+     */
+    public synchronized void save() {
+        if (this.storeFile == null || this.modificationCount == this.savedModificationCount) {
+            return;
+        }
+
+        File tempFile = new File(this.storeFile.getPath() + ".tmp");
+        try {
+            this.writeTo(tempFile);
+
+            // replace at once, so that a crash never leaves a partial index
+            if (!tempFile.renameTo(this.storeFile)) {
+                Log.w(TAG, "Fail to replace search index");
+                return;
+            }
+            this.savedModificationCount = this.modificationCount;
+        } catch (IOException e) {
+            Log.w(TAG, "Fail to save search index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the index to a file. Removed messages are dropped from the file.
+     *
+     * @param file the file
+     * @throws IOException the IO exception
+     */
+    public synchronized void writeTo(@NonNull File file) throws IOException {
+        this.compact();
+
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file))
+        );
+        try {
+            output.writeInt(FILE_FORMAT_VERSION);
+
+            output.writeInt(this.conversationIds.size());
+            for (String eachConversationId : this.conversationIds) {
+                output.writeUTF(eachConversationId);
+            }
+
+            output.writeInt(this.docCount);
+            for (int docId = 0; docId < this.docCount; docId++) {
+                output.writeUTF(this.docMessageIds[docId]);
+                writeVarInt(output, this.docConversations[docId]);
+                output.writeLong(this.docTimes[docId]);
+                output.writeInt(this.docBodyHashes[docId]);
+            }
+
+            output.writeInt(this.terms.size());
+            for (Map.Entry<String, Postings> eachTerm : this.terms.entrySet()) {
+                output.writeUTF(eachTerm.getKey());
+                Postings postings = eachTerm.getValue();
+                writeVarInt(output, postings.size);
+
+                // postings are sorted, store the gaps
+                int previous = 0;
+                for (int idx = 0; idx < postings.size; idx++) {
+                    writeVarInt(output, postings.docIds[idx] - previous);
+                    previous = postings.docIds[idx];
+                }
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Replaces the content of the index with the one in a file.
+     *
+     * @param file the file
+     * @throws IOException the IO exception
+     */
+    public synchronized void readFrom(@NonNull File file) throws IOException {
+        DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file))
+        );
+        try {
+            int version = input.readInt();
+            if (version != FILE_FORMAT_VERSION) {
+                throw new IOException("Unsupported search index version: " + version);
+            }
+
+            this.reset();
+
+            int conversationCount = input.readInt();
+            for (int idx = 0; idx < conversationCount; idx++) {
+                this.conversationIndexOf(input.readUTF());
+            }
+
+            // every message takes more than a byte, bound the counts by the file size
+            long maxCount = file.length();
+            int docCount = input.readInt();
+            if (docCount < 0 || docCount > maxCount) {
+                throw new IOException("Malformed search index");
+            }
+            this.ensureDocCapacity(docCount);
+            for (int docId = 0; docId < docCount; docId++) {
+                String messageId = input.readUTF();
+                this.docMessageIds[docId] = messageId;
+                int conversationIndex = readVarInt(input);
+                if (conversationIndex < 0 || conversationIndex >= this.conversationIds.size()) {
+                    throw new IOException("Malformed search index");
+                }
+                this.docConversations[docId] = conversationIndex;
+                this.docTimes[docId] = input.readLong();
+                this.docBodyHashes[docId] = input.readInt();
+                this.docIdsByMessageId.put(messageId, docId);
+            }
+            this.docCount = docCount;
+
+            int termCount = input.readInt();
+            for (int idx = 0; idx < termCount; idx++) {
+                String term = input.readUTF();
+                int size = readVarInt(input);
+                if (size < 0 || size > maxCount) {
+                    throw new IOException("Malformed search index");
+                }
+                Postings postings = new Postings(size);
+                int docId = 0;
+                for (int postingIdx = 0; postingIdx < size; postingIdx++) {
+                    docId += readVarInt(input);
+                    if (docId < 0 || docId >= docCount) {
+                        throw new IOException("Malformed search index");
+                    }
+                    postings.add(docId);
+                }
+                this.terms.put(term, postings);
+            }
+            this.savedModificationCount = this.modificationCount;
+        } catch (IOException e) {
+            this.reset();
+            throw e;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Removes all messages from the index and from its store file.
+     */
+    public synchronized void clear() {
+        this.reset();
+
+        this.savedModificationCount = this.modificationCount;
+        if (this.storeFile != null && this.storeFile.exists() && !this.storeFile.delete()) {
+            Log.w(TAG, "Fail to delete search index");
+        }
+    }
+
+    private void reset() {
+        this.docIdsByMessageId.clear();
+        this.conversationIndices.clear();
+        this.conversationIds.clear();
+        this.terms.clear();
+        this.deletedDocs.clear();
+        this.docMessageIds = new String[INITIAL_CAPACITY];
+        this.docConversations = new int[INITIAL_CAPACITY];
+        this.docTimes = new long[INITIAL_CAPACITY];
+        this.docBodyHashes = new int[INITIAL_CAPACITY];
+        this.docCount = 0;
+        this.deletedCount = 0;
+    }
+
+    synchronized void add(@NonNull String messageId,
+                          @NonNull String conversationId,
+                          @Nullable String body,
+                          long time) {
+        int conversationIndex = this.conversationIndexOf(conversationId);
+        int bodyHash = body == null ? 0 : body.hashCode();
+
+        // pages are fetched again and again, skip messages which are unchanged
+        Integer existingDocId = this.docIdsByMessageId.get(messageId);
+        if (existingDocId != null
+                && this.docConversations[existingDocId] == conversationIndex
+                && this.docTimes[existingDocId] == time
+                && this.docBodyHashes[existingDocId] == bodyHash) {
+            return;
+        }
+
+        this.removeMessage(messageId);
+        if (this.deletedCount >= MIN_COMPACT_DELETED_COUNT && this.deletedCount * 2 >= this.docCount) {
+            this.compact();
+        }
+
+        int docId = this.docCount;
+        this.ensureDocCapacity(docId + 1);
+        this.docMessageIds[docId] = messageId;
+        this.docConversations[docId] = conversationIndex;
+        this.docTimes[docId] = time;
+        this.docBodyHashes[docId] = bodyHash;
+        this.docCount++;
+        this.docIdsByMessageId.put(messageId, docId);
+        this.onModified();
+
+        if (body == null) {
+            return;
+        }
+
+        for (String eachToken : tokenize(body)) {
+            Postings postings = this.terms.get(eachToken);
+            if (postings == null) {
+                postings = new Postings(1);
+                this.terms.put(eachToken, postings);
+            }
+            postings.add(docId);
+        }
+    }
+
+    /**
+     * Drops removed messages, renumbering the remaining ones in order so
+     * that postings stay sorted.
+     */
+    private void compact() {
+        if (this.deletedCount == 0) {
+            return;
+        }
+
+        int[] newDocIds = new int[this.docCount];
+        int liveCount = 0;
+        for (int docId = 0; docId < this.docCount; docId++) {
+            if (this.deletedDocs.get(docId)) {
+                newDocIds[docId] = -1;
+                continue;
+            }
+
+            newDocIds[docId] = liveCount;
+            this.docMessageIds[liveCount] = this.docMessageIds[docId];
+            this.docConversations[liveCount] = this.docConversations[docId];
+            this.docTimes[liveCount] = this.docTimes[docId];
+            this.docBodyHashes[liveCount] = this.docBodyHashes[docId];
+            this.docIdsByMessageId.put(this.docMessageIds[liveCount], liveCount);
+            liveCount++;
+        }
+        Arrays.fill(this.docMessageIds, liveCount, this.docCount, null);
+
+        Iterator<Postings> postingsIterator = this.terms.values().iterator();
+        while (postingsIterator.hasNext()) {
+            Postings postings = postingsIterator.next();
+            int liveSize = 0;
+            for (int idx = 0; idx < postings.size; idx++) {
+                int newDocId = newDocIds[postings.docIds[idx]];
+                if (newDocId >= 0) {
+                    postings.docIds[liveSize++] = newDocId;
+                }
+            }
+
+            if (liveSize == 0) {
+                postingsIterator.remove();
+            } else {
+                postings.size = liveSize;
+                if (liveSize < postings.docIds.length / 4) {
+                    postings.docIds = Arrays.copyOf(postings.docIds, liveSize);
+                }
+            }
+        }
+
+        this.docCount = liveCount;
+        this.deletedCount = 0;
+        this.deletedDocs.clear();
+    }
+
+    private void onModified() {
+        this.modificationCount++;
+        if (this.storeFile == null || this.isSaveScheduled) {
+            return;
+        }
+
+        this.isSaveScheduled = true;
+        saveExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MessageSearchIndex.this) {
+                    MessageSearchIndex.this.isSaveScheduled = false;
+                    MessageSearchIndex.this.save();
+                }
+            }
+        }, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private BitSet prefixMatches(String prefix) {
+        BitSet matches = new BitSet(this.docCount);
+        SortedMap<String, Postings> range = this.terms.subMap(prefix, prefix + Character.MAX_VALUE);
+        for (Postings eachPostings : range.values()) {
+            for (int idx = 0; idx < eachPostings.size; idx++) {
+                matches.set(eachPostings.docIds[idx]);
+            }
+        }
+
+        return matches;
+    }
+
+    private int conversationIndexOf(String conversationId) {
+        Integer index = this.conversationIndices.get(conversationId);
+        if (index == null) {
+            index = this.conversationIds.size();
+            this.conversationIds.add(conversationId);
+            this.conversationIndices.put(conversationId, index);
+        }
+
+        return index;
+    }
+
+    private void ensureDocCapacity(int capacity) {
+        if (capacity <= this.docMessageIds.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, this.docMessageIds.length * 2);
+        this.docMessageIds = Arrays.copyOf(this.docMessageIds, newCapacity);
+        this.docConversations = Arrays.copyOf(this.docConversations, newCapacity);
+        this.docTimes = Arrays.copyOf(this.docTimes, newCapacity);
+        this.docBodyHashes = Arrays.copyOf(this.docBodyHashes, newCapacity);
+    }
+
+    /**
+     * Splits a text into lower-cased tokens. Letters and digits form words,
+     * CJK ideographs are indexed one by one since they are not separated by
+     * spaces.
+     *
+     * @param text the text
+     * @return the distinct tokens
+     */
+    static Set<String> tokenize(@NonNull String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        String lowerText = text.toLowerCase(Locale.US);
+        int length = lowerText.length();
+        int wordStart = -1;
+
+        for (int idx = 0; idx <= length; idx++) {
+            char ch = idx < length ? lowerText.charAt(idx) : ' ';
+            boolean isIdeograph = isIdeograph(ch);
+            boolean isWordChar = !isIdeograph && Character.isLetterOrDigit(ch);
+
+            if (isWordChar) {
+                if (wordStart < 0) {
+                    wordStart = idx;
+                }
+                continue;
+            }
+
+            if (wordStart >= 0) {
+                tokens.add(lowerText.substring(wordStart, idx));
+                wordStart = -1;
+            }
+
+            if (isIdeograph) {
+                tokens.add(String.valueOf(ch));
+            }
+        }
+
+        return tokens;
+    }
+
+    private static boolean isIdeograph(char ch) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(ch);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                || block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES;
+    }
+
+    private static void writeVarInt(DataOutputStream output, int value) throws IOException {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            output.writeByte((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        output.writeByte(remaining);
+    }
+
+    private static int readVarInt(DataInputStream input) throws IOException {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            int eachByte = input.readUnsignedByte();
+            value |= (eachByte & 0x7F) << shift;
+            if ((eachByte & 0x80) == 0) {
+                return value;
+            }
+
+            shift += 7;
+            if (shift > 28) {
+                throw new IOException("Malformed search index");
+            }
+        }
+    }
+
+    /**
+     * Growable sorted list of doc ids.
+     */
+    private static final class Postings {
+        int[] docIds;
+        int size;
+
+        Postings(int capacity) {
+            this.docIds = new int[Math.max(1, capacity)];
+        }
+
+        void add(int docId) {
+            if (this.size > 0 && this.docIds[this.size - 1] == docId) {
+                return;
+            }
+            if (this.size == this.docIds.length) {
+                this.docIds = Arrays.copyOf(this.docIds, this.size * 2);
+            }
+            this.docIds[this.size++] = docId;
+        }
+    }
+
+    /**
+     * The search result.
+     */
+    public static final class Result {
+        private final String messageId;
+        private final String conversationId;
+        private final Date createdTime;
+
+        Result(@NonNull String messageId, @NonNull String conversationId, @NonNull Date createdTime) {
+            this.messageId = messageId;
+            this.conversationId = conversationId;
+            this.createdTime = createdTime;
+        }
+
+        /**
+         * Gets message id.
+         *
+         * @return the message id
+         */
+        @NonNull
+        public String getMessageId() {
+            return messageId;
+        }
+
+        /**
+         * Gets conversation id.
+         *
+         * @return the conversation id
+         */
+        @NonNull
+        public String getConversationId() {
+            return conversationId;
+        }
+
+        /**
+         * Gets created time.
+         *
+         * @return the created time
+         */
+        @NonNull
+        public Date getCreatedTime() {
+            return createdTime;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Derives message statuses from receipts.
+ *
+ * Each tracked message keeps the numbers of its recipients who have the
+ * message delivered and read. They are recounted whenever the receipt
+ * cache fetches the receipts of the message, which it does again on every
+ * update event of a message with receipt subscribers. The status is
+ * derived from the counts and the number of participants of the
+ * conversation, or taken from the message when the server status is
+ * ahead, and never goes back, as receipts may be partially known.
+ */
+public final class MessageStatusTracker {
+    private static final int MAX_MESSAGES = 1000;
+
+    /**
+     * The listener of message status changes.
+     */
+    public interface Listener {
+        /**
+         * Message status changed callback
+         *
+         * @param messageId the message id
+         * @param status    the new status
+         */
+        void onMessageStatusChanged(@NonNull String messageId, @NonNull Message.Status status);
+    }
+
+    private final LinkedHashMap<String, Counter> counters =
+            new LinkedHashMap<String, Counter>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Counter> eldest) {
+                    return size() > MAX_MESSAGES;
+                }
+            };
+    private final Map<String, Integer> participantCounts = new HashMap<>();
+    private final List<Listener> listeners = new ArrayList<>();
+
+    /**
+     * Instantiates a new message status tracker.
+     */
+    MessageStatusTracker() {
+        super();
+    }
+
+    /**
+     * Adds a listener of status changes.
+     *
+     * @param listener the listener
+     */
+    public synchronized void addListener(@NonNull final Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener of status changes.
+     *
+     * @param listener the listener
+     */
+    public synchronized void removeListener(@NonNull final Listener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Gets the derived status of a message.
+     *
+     * @param messageId the message id
+     * @return the status, null if the message is not tracked
+     */
+    @Nullable
+    public synchronized Message.Status getStatus(@NonNull final String messageId) {
+        Counter counter = this.counters.get(messageId);
+        return counter == null ? null : counter.status;
+    }
+
+    /**
+     * Sets the number of participants of a conversation.
+     *
+     * @param conversationId   the conversation id
+     * @param participantCount the number of participants
+     */
+    void setParticipantCount(@NonNull final String conversationId, final int participantCount) {
+        Map<String, Message.Status> changes = new HashMap<>();
+        synchronized (this) {
+            Integer previous = this.participantCounts.put(conversationId, participantCount);
+            if (previous != null && previous == participantCount) {
+                return;
+            }
+
+            for (Map.Entry<String, Counter> eachEntry : this.counters.entrySet()) {
+                Counter counter = eachEntry.getValue();
+                if (counter.conversationId.equals(conversationId) && this.derive(counter)) {
+                    changes.put(eachEntry.getKey(), counter.status);
+                }
+            }
+        }
+
+        this.notifyChanges(changes);
+    }
+
+    /**
+     * Tracks a message, taking its status if it is ahead of the derived one.
+     *
+     * @param message the message
+     */
+    void track(@NonNull final Message message) {
+        String messageId = message.getId();
+        Message.Status status = message.getStatus();
+        boolean changed = false;
+        synchronized (this) {
+            Counter counter = this.counters.get(messageId);
+            if (counter == null) {
+                counter = new Counter(message.getConversationId(), message.getOwnerId());
+                counter.status = status;
+                this.counters.put(messageId, counter);
+            } else if (isAhead(status, counter.status)) {
+                counter.status = status;
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            this.notifyChange(messageId, status);
+        }
+    }
+
+    /**
+     * Stops tracking a message, e.g. when it is deleted.
+     *
+     * @param messageId the message id
+     */
+    synchronized void untrack(@NonNull final String messageId) {
+        this.counters.remove(messageId);
+    }
+
+    /**
+     * Recounts a tracked message from all of its receipts.
+     *
+     * @param messageId the message id
+     * @param receipts  the receipts
+     */
+    void onReceiptsLoaded(@NonNull final String messageId, @NonNull final List<MessageReceipt> receipts) {
+        Message.Status status = null;
+        synchronized (this) {
+            Counter counter = this.counters.get(messageId);
+            if (counter == null) {
+                return;
+            }
+
+            int deliveredCount = 0;
+            int readCount = 0;
+            for (MessageReceipt eachReceipt : receipts) {
+                if (eachReceipt.getUserId().equals(counter.ownerId)) {
+                    continue;
+                }
+                if (eachReceipt.getDeliveredAt() != null || eachReceipt.getReadAt() != null) {
+                    deliveredCount++;
+                }
+                if (eachReceipt.getReadAt() != null) {
+                    readCount++;
+                }
+            }
+
+            counter.deliveredCount = deliveredCount;
+            counter.readCount = readCount;
+            if (this.derive(counter)) {
+                status = counter.status;
+            }
+        }
+
+        if (status != null) {
+            this.notifyChange(messageId, status);
+        }
+    }
+
+    /**
+     * Derives the status of a message from its counts.
+     *
+     * @return true if the status is changed
+     */
+    private boolean derive(Counter counter) {
+        if (counter.readCount <= 0) {
+            if (counter.status == null && counter.deliveredCount > 0) {
+                counter.status = Message.Status.DELIVERED;
+                return true;
+            }
+
+            return false;
+        }
+
+        Integer participantCount = this.participantCounts.get(counter.conversationId);
+        // the sender is a participant but not a recipient
+        boolean isAllRead = participantCount != null && counter.readCount >= participantCount - 1;
+        Message.Status derived = isAllRead ? Message.Status.ALL_READ : Message.Status.SOME_READ;
+        if (!isAhead(derived, counter.status)) {
+            return false;
+        }
+
+        counter.status = derived;
+        return true;
+    }
+
+    private static boolean isAhead(@Nullable Message.Status status, @Nullable Message.Status than) {
+        return status != null && (than == null || status.ordinal() > than.ordinal());
+    }
+
+    private void notifyChanges(@NonNull Map<String, Message.Status> changes) {
+        for (Map.Entry<String, Message.Status> eachChange : changes.entrySet()) {
+            this.notifyChange(eachChange.getKey(), eachChange.getValue());
+        }
+    }
+
+    private void notifyChange(@NonNull String messageId, @NonNull Message.Status status) {
+        List<Listener> currentListeners;
+        synchronized (this) {
+            if (this.listeners.isEmpty()) {
+                return;
+            }
+            currentListeners = new ArrayList<>(this.listeners);
+        }
+
+        for (Listener eachListener : currentListeners) {
+            eachListener.onMessageStatusChanged(messageId, status);
+        }
+    }
+
+    /**
+     * The receipt counts of a message.
+     */
+    private static final class Counter {
+        final String conversationId;
+        final String ownerId;
+        int deliveredCount = 0;
+        int readCount = 0;
+        Message.Status status;
+
+        Counter(String conversationId, String ownerId) {
+            this.conversationId = conversationId;
+            this.ownerId = ownerId;
+        }
+    }
+}
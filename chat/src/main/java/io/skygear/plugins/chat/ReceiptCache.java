@@ -0,0 +1,552 @@
+package io.skygear.plugins.chat;
+
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Caches message receipts by message ID.
+ *
+ * A message missing from the cache is fetched with its own request, which
+ * lookups made in the same turn of the delivery thread share, and which is
+ * never sent again while in flight. Cached receipts are refreshed on every
+ * update event of the message and expire after a minute, as reads by other
+ * participants do not always change the message status. The receipts of
+ * the current user are updated in place, and changes are delivered to
+ * subscribers.
+ *
+ * Receipts are stored compactly as interned user IDs with read and
+ * delivered times.
+ */
+public final class ReceiptCache {
+    private static final int MAX_ENTRIES = 500;
+    private static final long ENTRY_TTL_MILLIS = 60 * 1000;
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    /**
+     * The listener of receipt changes of a message.
+     */
+    public interface Listener {
+        /**
+         * Receipts changed callback
+         *
+         * @param messageId the message id
+         * @param receipts  the receipts
+         */
+        void onReceiptsChanged(@NonNull String messageId, @NonNull List<MessageReceipt> receipts);
+    }
+
+    /**
+     * The source of receipts, i.e. the chat container.
+     */
+    interface Source {
+        /**
+         * Gets the executor running the fetches scheduled in a turn.
+         *
+         * @return the executor
+         */
+        @NonNull
+        Executor getDeliveryExecutor();
+
+        /**
+         * Fetches the receipts of a message from server.
+         *
+         * @param messageId the message id
+         * @param callback  the callback
+         */
+        void fetchMessageReceipts(@NonNull String messageId,
+                                  @NonNull GetCallback<List<MessageReceipt>> callback);
+
+        /**
+         * Receipts fetched callback
+         *
+         * @param messageId the message id
+         * @param receipts  the receipts
+         */
+        void onReceiptsLoaded(@NonNull String messageId, @NonNull List<MessageReceipt> receipts);
+    }
+
+    private final Source source;
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private final Map<String, List<Listener>> listeners = new HashMap<>();
+    private final Set<String> pendingMessageIds = new LinkedHashSet<>();
+    private final Set<String> inFlightMessageIds = new HashSet<>();
+    private final List<Lookup> waitingLookups = new ArrayList<>();
+    private boolean isFlushScheduled = false;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            ReceiptCache.this.flush();
+        }
+    };
+
+    /**
+     * Instantiates a new receipt cache.
+     *
+     * @param source the source of receipts
+     */
+    ReceiptCache(@NonNull final Source source) {
+        super();
+        this.source = source;
+    }
+
+    /**
+     * Gets the cached receipts of a message.
+     *
+     * @param messageId the message id
+     * @return the receipts, null if they are not cached or stale
+     */
+    @Nullable
+    public synchronized List<MessageReceipt> getCached(@NonNull final String messageId) {
+        Entry entry = this.entries.get(messageId);
+        if (!isFresh(entry)) {
+            return null;
+        }
+
+        return entry.toReceipts();
+    }
+
+    /**
+     * Subscribes to the receipt changes of a message.
+     *
+     * The receipts are loaded if they are not cached.
+     *
+     * @param messageId the message id
+     * @param listener  the listener
+     */
+    public void subscribe(@NonNull final String messageId, @NonNull final Listener listener) {
+        boolean needsLoad;
+        synchronized (this) {
+            List<Listener> messageListeners = this.listeners.get(messageId);
+            if (messageListeners == null) {
+                messageListeners = new ArrayList<>();
+                this.listeners.put(messageId, messageListeners);
+            }
+            messageListeners.add(listener);
+
+            needsLoad = !isFresh(this.entries.get(messageId));
+        }
+
+        if (needsLoad) {
+            this.load(Collections.singletonList(messageId), null);
+        }
+    }
+
+    /**
+     * Unsubscribes from the receipt changes of a message.
+     *
+     * @param messageId the message id
+     * @param listener  the listener
+     */
+    public synchronized void unsubscribe(@NonNull final String messageId, @NonNull final Listener listener) {
+        List<Listener> messageListeners = this.listeners.get(messageId);
+        if (messageListeners != null) {
+            messageListeners.remove(listener);
+            if (messageListeners.isEmpty()) {
+                this.listeners.remove(messageId);
+            }
+        }
+    }
+
+    /**
+     * Drops all cached receipts.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * Loads receipts of messages, from cache if they are fresh.
+     *
+     * @param messageIds the message ids
+     * @param callback   the callback
+     */
+    void load(@NonNull final List<String> messageIds,
+              @Nullable final GetCallback<Map<String, List<MessageReceipt>>> callback) {
+        if (ChatRequest.isAbandoned(callback)) {
+            return;
+        }
+
+        Map<String, List<MessageReceipt>> cachedReceipts = new HashMap<>();
+        Lookup lookup = null;
+        boolean needsFlush = false;
+        synchronized (this) {
+            for (String eachMessageId : messageIds) {
+                Entry entry = this.entries.get(eachMessageId);
+                if (isFresh(entry)) {
+                    cachedReceipts.put(eachMessageId, entry.toReceipts());
+                    continue;
+                }
+
+                if (lookup == null) {
+                    lookup = new Lookup(callback, cachedReceipts);
+                }
+                lookup.remainingMessageIds.add(eachMessageId);
+
+                if (!this.inFlightMessageIds.contains(eachMessageId)) {
+                    this.pendingMessageIds.add(eachMessageId);
+                }
+            }
+
+            if (lookup != null) {
+                this.waitingLookups.add(lookup);
+                if (!this.pendingMessageIds.isEmpty() && !this.isFlushScheduled) {
+                    this.isFlushScheduled = true;
+                    needsFlush = true;
+                }
+            }
+        }
+
+        if (lookup == null) {
+            if (callback != null) {
+                callback.onSucc(cachedReceipts);
+            }
+            return;
+        }
+
+        if (needsFlush) {
+            this.source.getDeliveryExecutor().execute(this.flushTask);
+        }
+    }
+
+    /**
+     * Marks the receipts of a message as stale on its update event, they
+     * are loaded again if there are subscribers.
+     *
+     * @param message the message
+     */
+    void onMessageUpdated(@NonNull final Message message) {
+        String messageId = message.getId();
+        boolean needsLoad;
+        synchronized (this) {
+            Entry entry = this.entries.get(messageId);
+            if (entry == null || entry.isStale) {
+                return;
+            }
+
+            entry.isStale = true;
+            needsLoad = this.listeners.containsKey(messageId);
+        }
+
+        if (needsLoad) {
+            this.load(Collections.singletonList(messageId), null);
+        }
+    }
+
+    /**
+     * Updates the receipt of a user on cached messages, e.g. after the
+     * current user marks messages as read.
+     *
+     * @param messageIds  the message ids
+     * @param userId      the user id
+     * @param readAt      the read time, null to keep the cached one
+     * @param deliveredAt the delivered time, null to keep the cached one
+     */
+    void putUserReceipt(@NonNull final List<String> messageIds,
+                        @NonNull final String userId,
+                        @Nullable final Date readAt,
+                        @Nullable final Date deliveredAt) {
+        Map<String, List<MessageReceipt>> changes = new HashMap<>();
+        synchronized (this) {
+            for (String eachMessageId : messageIds) {
+                Entry entry = this.entries.get(eachMessageId);
+                if (entry == null) {
+                    continue;
+                }
+
+                if (entry.put(userId, readAt, deliveredAt) && this.listeners.containsKey(eachMessageId)) {
+                    changes.put(eachMessageId, entry.toReceipts());
+                }
+            }
+        }
+
+        this.notifyChanges(changes);
+    }
+
+    private void flush() {
+        final List<String> messageIds;
+        synchronized (this) {
+            this.isFlushScheduled = false;
+            messageIds = new ArrayList<>(this.pendingMessageIds);
+            this.pendingMessageIds.clear();
+            this.inFlightMessageIds.addAll(messageIds);
+        }
+
+        for (String eachMessageId : messageIds) {
+            this.source.fetchMessageReceipts(eachMessageId, new FetchCallback(eachMessageId));
+        }
+    }
+
+    /**
+     * Checks whether nobody waits for the receipts of a message, i.e. it
+     * has no subscribers and the requests of all lookups are cancelled.
+     *
+     * @param messageId the message id
+     * @return true if the fetched receipts would be dropped
+     */
+    private synchronized boolean isAbandoned(@NonNull final String messageId) {
+        if (this.listeners.containsKey(messageId)) {
+            return false;
+        }
+
+        for (Lookup eachLookup : this.waitingLookups) {
+            if (eachLookup.remainingMessageIds.contains(messageId)
+                    && !ChatRequest.isAbandoned(eachLookup.callback)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void onFetched(@NonNull final String messageId, @NonNull final List<MessageReceipt> receipts) {
+        List<Lookup> completedLookups = new ArrayList<>();
+        Map<String, List<MessageReceipt>> changes = new HashMap<>();
+        synchronized (this) {
+            this.inFlightMessageIds.remove(messageId);
+
+            Entry previous = this.entries.get(messageId);
+            Entry entry = new Entry(receipts);
+            this.entries.put(messageId, entry);
+            if (this.listeners.containsKey(messageId) && (previous == null || !previous.sameAs(entry))) {
+                changes.put(messageId, receipts);
+            }
+
+            for (Lookup eachLookup : new ArrayList<>(this.waitingLookups)) {
+                if (eachLookup.remainingMessageIds.remove(messageId)) {
+                    eachLookup.receipts.put(messageId, receipts);
+                    if (eachLookup.remainingMessageIds.isEmpty()) {
+                        this.waitingLookups.remove(eachLookup);
+                        completedLookups.add(eachLookup);
+                    }
+                }
+            }
+        }
+
+        this.source.onReceiptsLoaded(messageId, receipts);
+        for (Lookup eachLookup : completedLookups) {
+            if (eachLookup.callback != null) {
+                eachLookup.callback.onSucc(eachLookup.receipts);
+            }
+        }
+        this.notifyChanges(changes);
+    }
+
+    private void onFetchFailed(@NonNull final String messageId, @Nullable final String failReason) {
+        List<Lookup> failedLookups = new ArrayList<>();
+        synchronized (this) {
+            this.inFlightMessageIds.remove(messageId);
+
+            for (Lookup eachLookup : new ArrayList<>(this.waitingLookups)) {
+                if (eachLookup.remainingMessageIds.contains(messageId)) {
+                    this.waitingLookups.remove(eachLookup);
+                    failedLookups.add(eachLookup);
+                }
+            }
+        }
+
+        for (Lookup eachLookup : failedLookups) {
+            if (eachLookup.callback != null) {
+                eachLookup.callback.onFail(failReason);
+            }
+        }
+    }
+
+    private static boolean isFresh(@Nullable final Entry entry) {
+        return entry != null
+                && !entry.isStale
+                && SystemClock.elapsedRealtime() - entry.fetchedAt < ENTRY_TTL_MILLIS;
+    }
+
+    private void notifyChanges(@NonNull final Map<String, List<MessageReceipt>> changes) {
+        for (Map.Entry<String, List<MessageReceipt>> eachChange : changes.entrySet()) {
+            List<Listener> messageListeners;
+            synchronized (this) {
+                List<Listener> registered = this.listeners.get(eachChange.getKey());
+                messageListeners = registered == null ? null : new ArrayList<>(registered);
+            }
+
+            if (messageListeners != null) {
+                for (Listener eachListener : messageListeners) {
+                    eachListener.onReceiptsChanged(eachChange.getKey(), eachChange.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * The callback of fetching the receipts of a message, abandoned when
+     * nobody waits for them so that the response is not parsed.
+     */
+    private final class FetchCallback implements GetCallback<List<MessageReceipt>>, ChatRequest.Abandonable {
+        final String messageId;
+
+        FetchCallback(String messageId) {
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean isAbandoned() {
+            return ReceiptCache.this.isAbandoned(this.messageId);
+        }
+
+        @Override
+        public void onSucc(@Nullable List<MessageReceipt> receipts) {
+            ReceiptCache.this.onFetched(
+                    this.messageId,
+                    receipts == null ? Collections.<MessageReceipt>emptyList() : receipts
+            );
+        }
+
+        @Override
+        public void onFail(@Nullable String failReason) {
+            ReceiptCache.this.onFetchFailed(this.messageId, failReason);
+        }
+    }
+
+    /**
+     * The lookup of one call, completed when all messages are fetched.
+     */
+    private static final class Lookup {
+        final GetCallback<Map<String, List<MessageReceipt>>> callback;
+        final Map<String, List<MessageReceipt>> receipts;
+        final Set<String> remainingMessageIds = new HashSet<>();
+
+        Lookup(GetCallback<Map<String, List<MessageReceipt>>> callback,
+              Map<String, List<MessageReceipt>> receipts) {
+            this.callback = callback;
+            this.receipts = receipts;
+        }
+    }
+
+    /**
+     * The receipts of a message, one slot per user.
+     */
+    private static final class Entry {
+        String[] userIds;
+        long[] readTimes;
+        long[] deliveredTimes;
+        final long fetchedAt = SystemClock.elapsedRealtime();
+        boolean isStale = false;
+
+        Entry(List<MessageReceipt> receipts) {
+            int size = receipts.size();
+            this.userIds = new String[size];
+            this.readTimes = new long[size];
+            this.deliveredTimes = new long[size];
+
+            for (int i = 0; i < size; i++) {
+                MessageReceipt receipt = receipts.get(i);
+                this.userIds[i] = IdPool.intern(receipt.getUserId());
+                this.readTimes[i] = timeOf(receipt.getReadAt());
+                this.deliveredTimes[i] = timeOf(receipt.getDeliveredAt());
+            }
+        }
+
+        /**
+         * Updates the receipt of a user, keeping the times not given.
+         *
+         * @return true if the receipt is changed
+         */
+        boolean put(String userId, Date readAt, Date deliveredAt) {
+            int index = -1;
+            for (int i = 0; i < this.userIds.length; i++) {
+                if (this.userIds[i].equals(userId)) {
+                    index = i;
+                    break;
+                }
+            }
+
+            if (index < 0) {
+                index = this.userIds.length;
+                this.userIds = copyOf(this.userIds, index + 1);
+                this.readTimes = copyOf(this.readTimes, index + 1);
+                this.deliveredTimes = copyOf(this.deliveredTimes, index + 1);
+                this.userIds[index] = IdPool.intern(userId);
+                this.readTimes[index] = NO_TIME;
+                this.deliveredTimes[index] = NO_TIME;
+            }
+
+            boolean changed = false;
+            if (readAt != null && this.readTimes[index] != readAt.getTime()) {
+                this.readTimes[index] = readAt.getTime();
+                changed = true;
+            }
+            if (deliveredAt != null && this.deliveredTimes[index] != deliveredAt.getTime()) {
+                this.deliveredTimes[index] = deliveredAt.getTime();
+                changed = true;
+            }
+
+            return changed;
+        }
+
+        boolean sameAs(Entry other) {
+            if (other.userIds.length != this.userIds.length) {
+                return false;
+            }
+
+            for (int i = 0; i < this.userIds.length; i++) {
+                if (!this.userIds[i].equals(other.userIds[i])
+                        || this.readTimes[i] != other.readTimes[i]
+                        || this.deliveredTimes[i] != other.deliveredTimes[i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        List<MessageReceipt> toReceipts() {
+            List<MessageReceipt> receipts = new ArrayList<>(this.userIds.length);
+            for (int i = 0; i < this.userIds.length; i++) {
+                receipts.add(new MessageReceipt(
+                        this.userIds[i],
+                        dateOf(this.readTimes[i]),
+                        dateOf(this.deliveredTimes[i])
+                ));
+            }
+
+            return receipts;
+        }
+
+        private static long timeOf(Date date) {
+            return date == null ? NO_TIME : date.getTime();
+        }
+
+        private static Date dateOf(long time) {
+            return time == NO_TIME ? null : new Date(time);
+        }
+
+        private static String[] copyOf(String[] array, int length) {
+            String[] copy = new String[length];
+            System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+            return copy;
+        }
+
+        private static long[] copyOf(long[] array, int length) {
+            long[] copy = new long[length];
+            System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+            return copy;
+        }
+    }
+}
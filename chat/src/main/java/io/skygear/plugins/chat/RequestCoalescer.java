@@ -0,0 +1,200 @@
+package io.skygear.plugins.chat;
+
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces identical read requests.
+ *
+ * Concurrent calls with the same key share one in-flight request and one
+ * parsed result. Successful results can optionally be kept for a short
+ * time, so that calls right after a response are served locally.
+ *
+ * Note that the result object is shared among all callers of the same
+ * request, callers should not mutate it.
+ */
+final class RequestCoalescer {
+    private final Map<String, List<GetCallback<Object>>> inFlightRequests = new HashMap<>();
+    private final Map<String, CachedResult> cachedResults = new HashMap<>();
+    private long cacheTTLMillis = 0;
+
+    /**
+     * Makes the key for a request from the lambda name and its normalized arguments.
+     *
+     * @param lambda the lambda name
+     * @param args   the normalized arguments
+     * @return the key
+     */
+    static String keyOf(@NonNull String lambda, @Nullable Object... args) {
+        JSONArray argsJSON = new JSONArray();
+        if (args != null) {
+            for (Object eachArg : args) {
+                argsJSON.put(eachArg);
+            }
+        }
+
+        return lambda + argsJSON.toString();
+    }
+
+    /**
+     * Sets how long a successful result is reused, 0 to disable the cache.
+     *
+     * @param millis the time to live in milliseconds
+     */
+    synchronized void setCacheTTL(long millis) {
+        this.cacheTTLMillis = millis < 0 ? 0 : millis;
+        if (this.cacheTTLMillis == 0) {
+            this.cachedResults.clear();
+        }
+    }
+
+    /**
+     * Joins a request.
+     *
+     * When there is a cached result, the callback is invoked immediately.
+     * Otherwise the callback is queued for the in-flight request.
+     *
+     * @param key      the request key
+     * @param callback the callback
+     * @param <T>      the result type
+     * @return true if the caller should send the request
+     */
+    @SuppressWarnings("unchecked")
+    <T> boolean join(@NonNull String key, @Nullable GetCallback<T> callback) {
+        CachedResult cached = null;
+        synchronized (this) {
+            CachedResult candidate = this.cachedResults.get(key);
+            if (candidate != null) {
+                if (candidate.expireAt > SystemClock.elapsedRealtime()) {
+                    cached = candidate;
+                } else {
+                    this.cachedResults.remove(key);
+                }
+            }
+
+            if (cached == null) {
+                List<GetCallback<Object>> waiting = this.inFlightRequests.get(key);
+                boolean isNewRequest = waiting == null;
+                if (isNewRequest) {
+                    waiting = new ArrayList<>();
+                    this.inFlightRequests.put(key, waiting);
+                }
+
+                if (callback != null) {
+                    waiting.add((GetCallback<Object>) callback);
+                }
+
+                return isNewRequest;
+            }
+        }
+
+        if (callback != null) {
+            callback.onSucc((T) cached.result);
+        }
+
+        return false;
+    }
+
+    /**
+     * Creates the callback completing a request, which delivers the result
+     * to every caller that joined it.
+     *
+     * @param key the request key
+     * @param <T> the result type
+     * @return the callback
+     */
+    @NonNull
+    <T> GetCallback<T> completion(@NonNull final String key) {
+        return new GetCallback<T>() {
+            @Override
+            public void onSucc(@Nullable T object) {
+                List<GetCallback<Object>> waiting;
+                synchronized (RequestCoalescer.this) {
+                    waiting = RequestCoalescer.this.inFlightRequests.remove(key);
+                    if (RequestCoalescer.this.cacheTTLMillis > 0) {
+                        RequestCoalescer.this.cachedResults.put(key, new CachedResult(
+                                object,
+                                SystemClock.elapsedRealtime() + RequestCoalescer.this.cacheTTLMillis
+                        ));
+                    }
+                }
+
+                if (waiting != null) {
+                    for (GetCallback<Object> eachCallback : waiting) {
+                        eachCallback.onSucc(object);
+                    }
+                }
+            }
+
+            @Override
+            public void onFail(@Nullable String failReason) {
+                List<GetCallback<Object>> waiting;
+                synchronized (RequestCoalescer.this) {
+                    waiting = RequestCoalescer.this.inFlightRequests.remove(key);
+                }
+
+                if (waiting != null) {
+                    for (GetCallback<Object> eachCallback : waiting) {
+                        eachCallback.onFail(failReason);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Checks whether every caller of an in-flight request has cancelled,
+     * in which case its response need not be converted.
+     *
+     * @param key the request key
+     * @return true if the request is abandoned
+     */
+    synchronized boolean isAbandoned(@NonNull String key) {
+        List<GetCallback<Object>> waiting = this.inFlightRequests.get(key);
+        if (waiting == null || waiting.isEmpty()) {
+            return false;
+        }
+
+        for (GetCallback<Object> eachCallback : waiting) {
+            if (!ChatRequest.isAbandoned(eachCallback)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Drops cached results of a lambda.
+     *
+     * @param lambda the lambda name
+     */
+    synchronized void invalidate(@NonNull String lambda) {
+        Iterator<String> keys = this.cachedResults.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().startsWith(lambda + "[")) {
+                keys.remove();
+            }
+        }
+    }
+
+    private static final class CachedResult {
+        final Object result;
+        final long expireAt;
+
+        CachedResult(Object result, long expireAt) {
+            this.result = result;
+            this.expireAt = expireAt;
+        }
+    }
+}
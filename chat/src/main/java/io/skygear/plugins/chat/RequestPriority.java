@@ -0,0 +1,23 @@
+package io.skygear.plugins.chat;
+
+
+/**
+ * The priority class of a request.
+ */
+public enum RequestPriority {
+    /**
+     * Requests the user is waiting on, e.g. loading messages of the
+     * conversation on screen.
+     */
+    INTERACTIVE,
+    /**
+     * Requests whose results are not shown right away, e.g. prefetching,
+     * receipts and bulk membership changes.
+     */
+    BACKGROUND,
+    /**
+     * Requests whose results are ignored, e.g. typing indicators and
+     * delivery acknowledgements.
+     */
+    FIRE_AND_FORGET
+}
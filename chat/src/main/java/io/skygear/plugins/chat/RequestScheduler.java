@@ -0,0 +1,276 @@
+package io.skygear.plugins.chat;
+
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Schedules requests by priority class.
+ *
+ * At most a fixed number of requests are in flight, and each class has its
+ * own limit below that, so lower classes can never take all the slots.
+ * When a slot frees up, the queued request with the highest priority is
+ * sent. A queued request moves up one class for every aging interval it
+ * has waited, so background work is delayed but never starved.
+ */
+final class RequestScheduler {
+    /**
+     * A scheduled request.
+     */
+    interface Task {
+        /**
+         * Sends the request.
+         *
+         * @param done to be run exactly once when the response arrives
+         */
+        void run(@NonNull Runnable done);
+    }
+
+    private static final RequestPriority[] PRIORITIES = RequestPriority.values();
+
+    private final List<LinkedList<Entry>> queues = new ArrayList<>(PRIORITIES.length);
+    private final int[] limits = new int[PRIORITIES.length];
+    private final int[] running = new int[PRIORITIES.length];
+    private int maxRunning = 4;
+    private int totalRunning = 0;
+    private long agingMillis = 1000;
+
+    /**
+     * Instantiates a new request scheduler.
+     */
+    RequestScheduler() {
+        super();
+
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            this.queues.add(new LinkedList<Entry>());
+        }
+
+        this.limits[RequestPriority.INTERACTIVE.ordinal()] = 4;
+        this.limits[RequestPriority.BACKGROUND.ordinal()] = 2;
+        this.limits[RequestPriority.FIRE_AND_FORGET.ordinal()] = 1;
+    }
+
+    /**
+     * Sets the maximum number of requests in flight.
+     *
+     * @param limit the limit
+     */
+    void setMaxConcurrency(int limit) {
+        synchronized (this) {
+            this.maxRunning = limit < 1 ? 1 : limit;
+        }
+
+        this.dispatch();
+    }
+
+    /**
+     * Sets the maximum number of requests of a class in flight.
+     *
+     * @param priority the priority class
+     * @param limit    the limit
+     */
+    void setConcurrency(@NonNull RequestPriority priority, int limit) {
+        synchronized (this) {
+            this.limits[priority.ordinal()] = limit < 1 ? 1 : limit;
+        }
+
+        this.dispatch();
+    }
+
+    /**
+     * Gets the maximum number of requests of a class in flight.
+     *
+     * @param priority the priority class
+     * @return the limit
+     */
+    synchronized int getConcurrency(@NonNull RequestPriority priority) {
+        return Math.min(this.limits[priority.ordinal()], this.maxRunning);
+    }
+
+    /**
+     * Sets how long a queued request waits before moving up one class.
+     *
+     * @param millis the aging interval in milliseconds, 0 to disable aging
+     */
+    synchronized void setAgingInterval(long millis) {
+        this.agingMillis = millis < 0 ? 0 : millis;
+    }
+
+    /**
+     * Gets the number of queued requests of a class.
+     *
+     * @param priority the priority class
+     * @return the queued count
+     */
+    synchronized int getQueuedCount(@NonNull RequestPriority priority) {
+        return this.queues.get(priority.ordinal()).size();
+    }
+
+    /**
+     * Gets the number of requests of a class in flight.
+     *
+     * @param priority the priority class
+     * @return the running count
+     */
+    synchronized int getRunningCount(@NonNull RequestPriority priority) {
+        return this.running[priority.ordinal()];
+    }
+
+    /**
+     * Submits a request.
+     *
+     * @param priority the priority class
+     * @param key      the key for promoting the queued request later, can be null
+     * @param task     the task
+     */
+    void submit(@NonNull RequestPriority priority, @Nullable String key, @NonNull Task task) {
+        synchronized (this) {
+            this.queues.get(priority.ordinal()).addLast(
+                    new Entry(task, priority, key, SystemClock.elapsedRealtime())
+            );
+        }
+
+        this.dispatch();
+    }
+
+    /**
+     * Moves a queued request to a higher class, e.g. when the user starts
+     * waiting on a request sent as background work.
+     *
+     * The request keeps its original enqueue time. It has no effect when
+     * the request is already sent.
+     *
+     * @param key      the key given on submit
+     * @param priority the priority class
+     */
+    void promote(@NonNull String key, @NonNull RequestPriority priority) {
+        synchronized (this) {
+            Entry promoted = null;
+            for (int i = priority.ordinal() + 1; i < PRIORITIES.length && promoted == null; i++) {
+                Iterator<Entry> iterator = this.queues.get(i).iterator();
+                while (iterator.hasNext()) {
+                    Entry eachEntry = iterator.next();
+                    if (key.equals(eachEntry.key)) {
+                        iterator.remove();
+                        promoted = eachEntry;
+                        break;
+                    }
+                }
+            }
+
+            if (promoted == null) {
+                return;
+            }
+
+            promoted.priority = priority;
+            this.insertByEnqueueTime(this.queues.get(priority.ordinal()), promoted);
+        }
+
+        this.dispatch();
+    }
+
+    private void dispatch() {
+        while (true) {
+            final Entry entry;
+            synchronized (this) {
+                entry = this.pollNext();
+                if (entry == null) {
+                    return;
+                }
+
+                this.running[entry.priority.ordinal()]++;
+                this.totalRunning++;
+            }
+
+            entry.task.run(new Runnable() {
+                private boolean isDone = false;
+
+                @Override
+                public void run() {
+                    synchronized (RequestScheduler.this) {
+                        if (this.isDone) {
+                            return;
+                        }
+
+                        this.isDone = true;
+                        RequestScheduler.this.running[entry.priority.ordinal()]--;
+                        RequestScheduler.this.totalRunning--;
+                    }
+
+                    RequestScheduler.this.dispatch();
+                }
+            });
+        }
+    }
+
+    /**
+     * Takes the next request to send, if there is a free slot for it.
+     *
+     * @return the entry, null if nothing should be sent now
+     */
+    private Entry pollNext() {
+        if (this.totalRunning >= this.maxRunning) {
+            return null;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        LinkedList<Entry> selectedQueue = null;
+        long selectedRank = 0;
+        long selectedEnqueuedAt = 0;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            LinkedList<Entry> queue = this.queues.get(i);
+            if (queue.isEmpty() || this.running[i] >= this.limits[i]) {
+                continue;
+            }
+
+            Entry head = queue.getFirst();
+            long rank = i;
+            if (this.agingMillis > 0) {
+                rank -= (now - head.enqueuedAt) / this.agingMillis;
+                if (rank < 0) {
+                    rank = 0;
+                }
+            }
+
+            // the older request wins among requests of the same effective class
+            if (selectedQueue == null
+                    || rank < selectedRank
+                    || (rank == selectedRank && head.enqueuedAt < selectedEnqueuedAt)) {
+                selectedQueue = queue;
+                selectedRank = rank;
+                selectedEnqueuedAt = head.enqueuedAt;
+            }
+        }
+
+        return selectedQueue == null ? null : selectedQueue.removeFirst();
+    }
+
+    private void insertByEnqueueTime(LinkedList<Entry> queue, Entry entry) {
+        int index = queue.size();
+        while (index > 0 && queue.get(index - 1).enqueuedAt > entry.enqueuedAt) {
+            index--;
+        }
+
+        queue.add(index, entry);
+    }
+
+    private static final class Entry {
+        final Task task;
+        final String key;
+        final long enqueuedAt;
+        RequestPriority priority;
+
+        Entry(Task task, RequestPriority priority, String key, long enqueuedAt) {
+            this.task = task;
+            this.priority = priority;
+            this.key = key;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
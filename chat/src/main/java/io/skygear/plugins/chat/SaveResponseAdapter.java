@@ -37,9 +37,10 @@ abstract class SaveResponseAdapter<T> extends RecordSaveResponseHandler {
 
     @Override
     public void onSaveSuccess(Record[] records) {
-        Record record = records[0];
+        // always convert, subclasses update local states there
+        T object = convert(records[0]);
         if (callback != null) {
-            callback.onSucc(convert(record));
+            callback.onSucc(object);
         }
     }
 
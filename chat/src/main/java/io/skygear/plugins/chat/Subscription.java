@@ -81,6 +81,12 @@ final class Subscription {
      */
     void detach(final PubsubContainer pubsub) {
         pubsub.unsubscribe(channel, this.handler);
+
+        for (SubscriptionCallback eachCallback : this.callbackMap.values()) {
+            if (eachCallback instanceof TypingSubscriptionCallback) {
+                ((TypingSubscriptionCallback) eachCallback).reset();
+            }
+        }
     }
 
     /**
@@ -2,16 +2,11 @@ package io.skygear.plugins.chat;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Log;
 
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
-import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -25,9 +20,9 @@ public abstract class TypingSubscriptionCallback implements SubscriptionCallback
             EVENT_TYPE_TYPING
     };
 
-    private static final String TAG = "SkygearChatSubscription";
     static final DateTimeFormatter dateTimeFormatter = ISODateTimeFormat.dateTime().withZoneUTC();
     private final String conversationId;
+    private final TypingTracker tracker;
 
     /**
      * Instantiates a new typing subscription callback.
@@ -38,6 +33,14 @@ public abstract class TypingSubscriptionCallback implements SubscriptionCallback
         super();
 
         this.conversationId = conversation.getId();
+        this.tracker = new TypingTracker(
+                TypingTracker.DEFAULT_EXPIRY_MILLIS,
+                new TypingTracker.Listener() {
+                    @Override
+                    public void onTypingChanged(@NonNull Map<String, Typing> changes) {
+                        TypingSubscriptionCallback.this.notify(changes);
+                    }
+                });
     }
 
     @NonNull
@@ -65,55 +68,28 @@ public abstract class TypingSubscriptionCallback implements SubscriptionCallback
             return;
         }
 
-        Iterator<String> dataKeys = data.keys();
         JSONObject typingData = data.optJSONObject("conversation/" + this.conversationId);
         if (typingData == null) {
             // nothing to do if no typing data for the desired conversation
             return;
         }
 
-        Map<String, Typing> typingMap = new HashMap<>();
-        Iterator<String> typingDataKeys = typingData.keys();
-        while (typingDataKeys.hasNext()) {
-            String eachTypingUserId = typingDataKeys.next();
-            String[] userIdSplits = eachTypingUserId.split("/", 2);
-
-            if (userIdSplits.length < 2 || !userIdSplits[0].equalsIgnoreCase("user")) {
-                Log.w(TAG, "Invalid format for user ID for typing event");
-                continue;
-            }
-
-            try {
-                JSONObject userTypingData = typingData.getJSONObject(eachTypingUserId);
-                String eventName = userTypingData.getString("event");
-                String eventTimeString = userTypingData.optString("at");
-                Date eventTime = null;
-
-                if (eventTimeString != null) {
-                    eventTime = TypingSubscriptionCallback.dateTimeFormatter
-                            .parseDateTime(eventTimeString).toDate();
-                }
-
-                String userId = userIdSplits[1];
-
-                typingMap.put(userId, new Typing(
-                        userId,
-                        Typing.State.fromName(eventName),
-                        eventTime
-                ));
-            } catch (JSONException e) {
-                Log.w(TAG, "Fail to parse typing event payload", e);
-            }
-        }
+        this.tracker.apply(typingData);
+    }
 
-        if (typingMap.size() > 0) {
-            this.notify(typingMap);
-        }
+    /**
+     * Stops tracking typing states, e.g. when the subscription is detached.
+     */
+    void reset() {
+        this.tracker.clear();
     }
 
     /**
      * Notify a typing event.
      *
+     * Only users whose typing state changed are included. A user who began
+     * typing without further events is notified as finished after a while.
+     *
      * @param typingMap the typings map (user ID to {@link Typing})
      */
     public abstract void notify(@NonNull Map<String, Typing> typingMap);
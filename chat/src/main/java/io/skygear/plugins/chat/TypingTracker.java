@@ -0,0 +1,334 @@
+package io.skygear.plugins.chat;
+
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Tracks the typing states of users in a conversation.
+ *
+ * States are kept between typing events, so that only users whose state
+ * changed are reported. Each user has one slot, reused for every event,
+ * and the timestamp is parsed only when it differs from the last one.
+ *
+ * A user who began typing but sent nothing further, e.g. whose finished
+ * event was lost, is reported as finished once the state expires. Expiry
+ * is scheduled on a timer wheel, which takes constant time to reschedule
+ * a user on every event.
+ */
+final class TypingTracker {
+    private static final String TAG = "SkygearChatTyping";
+    private static final String USER_ID_PREFIX = "user/";
+    static final long DEFAULT_EXPIRY_MILLIS = 10000;
+    static final long TICK_MILLIS = 500;
+    private static final int WHEEL_SIZE = 64;
+
+    /**
+     * The listener of typing state changes.
+     */
+    interface Listener {
+        /**
+         * Typing states changed callback
+         *
+         * @param changes the typings map (user ID to {@link Typing}) of users whose state changed
+         */
+        void onTypingChanged(@NonNull Map<String, Typing> changes);
+    }
+
+    /**
+     * The clock of expiry deadlines.
+     */
+    interface Clock {
+        /**
+         * Gets the current time.
+         *
+         * @return the milliseconds since an arbitrary origin
+         */
+        long now();
+    }
+
+    private static final Clock ELAPSED_REALTIME_CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    private final Listener listener;
+    private final long expiryMillis;
+    private final Clock clock;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // keyed by the user keys of events, e.g. "user/1", so they are not parsed again
+    private final Map<String, Slot> slots = new HashMap<>();
+    private final Slot[] wheel = new Slot[WHEEL_SIZE];
+    private long wheelTick = -1;
+    private int scheduledCount = 0;
+    private boolean isTicking = false;
+
+    private final Runnable tickTask = new Runnable() {
+        @Override
+        public void run() {
+            TypingTracker.this.tick();
+        }
+    };
+
+    /**
+     * Instantiates a new typing tracker.
+     *
+     * @param expiryMillis how long a begin state lasts without further events
+     * @param listener     the listener
+     */
+    TypingTracker(final long expiryMillis, @NonNull final Listener listener) {
+        this(expiryMillis, ELAPSED_REALTIME_CLOCK, listener);
+    }
+
+    /**
+     * Instantiates a new typing tracker with a clock.
+     *
+     * @param expiryMillis how long a begin state lasts without further events
+     * @param clock        the clock
+     * @param listener     the listener
+     */
+    TypingTracker(final long expiryMillis, @NonNull final Clock clock, @NonNull final Listener listener) {
+        super();
+        // the wheel spans the expiry, so a slot is never due after a full turn
+        this.expiryMillis = Math.max(TICK_MILLIS, Math.min(expiryMillis, TICK_MILLIS * (WHEEL_SIZE - 1)));
+        this.clock = clock;
+        this.listener = listener;
+    }
+
+    /**
+     * Applies the typing data of the conversation from a typing event.
+     *
+     * @param typingData the typing data, keyed by user keys
+     */
+    void apply(@NonNull final JSONObject typingData) {
+        Map<String, Typing> changes = null;
+        boolean needsTick;
+        synchronized (this) {
+            long now = this.clock.now();
+            Iterator<String> userKeys = typingData.keys();
+            while (userKeys.hasNext()) {
+                String eachUserKey = userKeys.next();
+                JSONObject userTypingData = typingData.optJSONObject(eachUserKey);
+                if (userTypingData == null) {
+                    Log.w(TAG, "Fail to parse typing event payload");
+                    continue;
+                }
+
+                Slot slot = this.slotOf(eachUserKey);
+                if (slot == null) {
+                    Log.w(TAG, "Invalid format for user ID for typing event");
+                    continue;
+                }
+
+                Typing.State state;
+                try {
+                    state = Typing.State.fromName(userTypingData.optString("event"));
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Fail to parse typing event payload", e);
+                    continue;
+                }
+
+                if (state == Typing.State.BEGIN) {
+                    this.schedule(slot, now + this.expiryMillis);
+                } else {
+                    this.unschedule(slot);
+                }
+
+                String at = userTypingData.optString("at", null);
+                boolean isSameTime = at == null ? slot.at == null : at.equals(slot.at);
+                if (state == slot.state && isSameTime) {
+                    continue;
+                }
+
+                slot.state = state;
+                if (!isSameTime) {
+                    slot.at = at;
+                    slot.time = this.parseTime(at);
+                }
+
+                if (changes == null) {
+                    changes = new HashMap<>();
+                }
+                changes.put(slot.userId, new Typing(slot.userId, state, slot.time));
+            }
+
+            needsTick = this.scheduledCount > 0 && !this.isTicking;
+            if (needsTick) {
+                this.isTicking = true;
+            }
+        }
+
+        if (needsTick) {
+            this.handler.postDelayed(this.tickTask, TICK_MILLIS);
+        }
+        if (changes != null) {
+            this.listener.onTypingChanged(changes);
+        }
+    }
+
+    /**
+     * Drops all states and stops expiring them.
+     */
+    void clear() {
+        synchronized (this) {
+            this.slots.clear();
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                this.wheel[i] = null;
+            }
+            this.scheduledCount = 0;
+            this.wheelTick = -1;
+            this.isTicking = false;
+        }
+
+        this.handler.removeCallbacks(this.tickTask);
+    }
+
+    private Slot slotOf(String userKey) {
+        Slot slot = this.slots.get(userKey);
+        if (slot != null) {
+            return slot;
+        }
+
+        if (userKey.length() <= USER_ID_PREFIX.length()
+                || !userKey.regionMatches(true, 0, USER_ID_PREFIX, 0, USER_ID_PREFIX.length())) {
+            return null;
+        }
+
+        slot = new Slot(IdPool.intern(userKey.substring(USER_ID_PREFIX.length())));
+        this.slots.put(userKey, slot);
+        return slot;
+    }
+
+    private Date parseTime(String at) {
+        if (at == null || at.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return TypingSubscriptionCallback.dateTimeFormatter.parseDateTime(at).toDate();
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Fail to parse typing event time", e);
+            return null;
+        }
+    }
+
+    private void schedule(Slot slot, long deadline) {
+        this.unschedule(slot);
+
+        // round up, so a slot is due by the time its bucket is visited
+        long tick = (deadline + TICK_MILLIS - 1) / TICK_MILLIS;
+        if (this.wheelTick < 0) {
+            this.wheelTick = this.clock.now() / TICK_MILLIS;
+        }
+
+        int index = (int) (tick % WHEEL_SIZE);
+        slot.deadline = deadline;
+        slot.bucket = index;
+        slot.next = this.wheel[index];
+        if (slot.next != null) {
+            slot.next.previous = slot;
+        }
+        this.wheel[index] = slot;
+        this.scheduledCount++;
+    }
+
+    private void unschedule(Slot slot) {
+        if (slot.bucket < 0) {
+            return;
+        }
+
+        if (slot.previous != null) {
+            slot.previous.next = slot.next;
+        } else {
+            this.wheel[slot.bucket] = slot.next;
+        }
+        if (slot.next != null) {
+            slot.next.previous = slot.previous;
+        }
+
+        slot.previous = null;
+        slot.next = null;
+        slot.bucket = -1;
+        this.scheduledCount--;
+    }
+
+    /**
+     * Expires the states which are due, run every tick while any is scheduled.
+     */
+    void tick() {
+        Map<String, Typing> changes = null;
+        boolean needsTick;
+        synchronized (this) {
+            if (!this.isTicking) {
+                return;
+            }
+
+            long now = this.clock.now();
+            long nowTick = now / TICK_MILLIS;
+            // a late tick catches up, but never more than a full turn
+            long fromTick = Math.max(this.wheelTick + 1, nowTick - WHEEL_SIZE + 1);
+            for (long eachTick = fromTick; eachTick <= nowTick; eachTick++) {
+                Slot slot = this.wheel[(int) (eachTick % WHEEL_SIZE)];
+                while (slot != null) {
+                    Slot next = slot.next;
+                    if (slot.deadline <= now) {
+                        this.unschedule(slot);
+                        slot.state = Typing.State.FINISHED;
+                        slot.at = null;
+                        slot.time = new Date();
+
+                        if (changes == null) {
+                            changes = new HashMap<>();
+                        }
+                        changes.put(slot.userId, new Typing(slot.userId, slot.state, slot.time));
+                    }
+                    slot = next;
+                }
+            }
+            this.wheelTick = nowTick;
+
+            needsTick = this.scheduledCount > 0;
+            this.isTicking = needsTick;
+        }
+
+        if (needsTick) {
+            this.handler.postDelayed(this.tickTask, TICK_MILLIS);
+        }
+        if (changes != null) {
+            this.listener.onTypingChanged(changes);
+        }
+    }
+
+    /**
+     * The typing state of a user, linked into a bucket of the wheel while
+     * it is due to expire.
+     */
+    private static final class Slot {
+        final String userId;
+        Typing.State state;
+        String at;
+        Date time;
+
+        long deadline;
+        int bucket = -1;
+        Slot previous;
+        Slot next;
+
+        Slot(String userId) {
+            this.userId = userId;
+        }
+    }
+}
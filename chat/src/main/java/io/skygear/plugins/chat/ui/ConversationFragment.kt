@@ -9,6 +9,9 @@ import android.media.MediaMetadataRetriever
 import android.media.MediaRecorder
 import android.net.Uri
 import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
 import android.provider.MediaStore
 import android.support.v4.app.ActivityCompat
 import android.support.v4.app.Fragment
@@ -19,7 +22,6 @@ import android.support.v7.widget.LinearLayoutManager
 import android.support.v7.widget.RecyclerView
 import android.text.Editable
 import android.text.TextWatcher
-import android.util.Base64
 import android.util.Log
 import android.view.LayoutInflater
 import android.view.View
@@ -45,11 +47,10 @@ import io.skygear.plugins.chat.ui.utils.*
 import io.skygear.skygear.Asset
 import io.skygear.skygear.Container
 import org.json.JSONObject
-import java.io.BufferedInputStream
 import java.io.File
-import java.io.FileInputStream
 import java.io.IOException
 import java.util.*
+import java.util.concurrent.Executors
 import io.skygear.plugins.chat.Conversation as ChatConversation
 import io.skygear.plugins.chat.Message as ChatMessage
 
@@ -64,11 +65,61 @@ class ConversationFragment :
         val ConversationBundleKey = "CONVERSATION"
         private val TAG = "ConversationFragment"
         private val MESSAGE_SUBSCRIPTION_MAX_RETRY = 10
+        private val VOICE_MESSAGE_PREFETCH_COUNT = 3
+        private val NEWER_MESSAGES_RESTORE_THRESHOLD = 5
+        private val RECEIPT_SUBSCRIPTION_MARGIN = 5
         private val REQUEST_PICK_IMAGES = 5001
         private val REQUEST_IMAGE_CAPTURE = 5002
         private val REQUEST_CAMERA_PERMISSION = 5003
         private val REQUEST_VOICE_RECORDING_PERMISSION = 5004
+        private val messageSendExecutor = Executors.newSingleThreadExecutor()
+        private val mainHandler = Handler(Looper.getMainLooper())
+        private val ASSET_UPLOAD_CACHE_FILE_NAME = "skygear-chat-asset-upload-cache.json"
         private val VOICE_RECORDING_PERMISSIONS = arrayOf(Manifest.permission.RECORD_AUDIO)
+
+        private fun readVoiceMessageDuration(fileName: String): Int? {
+            val mmr = MediaMetadataRetriever()
+            try {
+                mmr.setDataSource(fileName)
+                return Integer.parseInt(
+                        mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION))
+            } catch (e: RuntimeException) {
+                Log.w(ConversationFragment.TAG, "Failed to read voice message duration: $e")
+                return null
+            } finally {
+                mmr.release()
+            }
+        }
+
+        private fun sendVoiceMessage(
+                chatContainer: ChatContainer,
+                conversation: ChatConversation,
+                voiceRecordingFile: File,
+                asset: Asset,
+                duration: Int
+        ) {
+            val meta = JSONObject()
+            meta.put(VoiceMessage.DurationMatadataName, duration)
+
+            chatContainer.sendMessage(
+                    conversation,
+                    null,
+                    asset,
+                    meta,
+                    object : SaveCallback<ChatMessage> {
+                        override fun onSucc(chatMsg: ChatMessage?) {
+                            voiceRecordingFile.delete()
+                        }
+
+                        override fun onFail(failReason: String?) {
+                            Log.e(
+                                    ConversationFragment.TAG,
+                                    "Failed to send voice message: $failReason"
+                            )
+                        }
+                    }
+            )
+        }
     }
 
     var conversation: Conversation? = null
@@ -84,16 +135,34 @@ class ConversationFragment :
 
     private var skygear: Container? = null
     private var skygearChat: ChatContainer? = null
+    // requests only needed while the screen is shown
+    private val fetchRequestScope = ChatRequestScope()
 
     private var userCache: UserCache? = null
-    private var messageIDs: HashSet<String> = HashSet()
+    // the messages shown, older and newer pages far from the viewport are evicted
+    private val messageWindow = MessageWindow()
+    private var isRestoringNewerMessages = false
+    private val messageStatusListener = MessageStatusTracker.Listener { messageID, status ->
+        this.onMessageStatusChanged(messageID, status)
+    }
+    // the outgoing messages around the viewport, whose receipts are kept up
+    // to date so that the status tracker derives their statuses
+    private val receiptSubscribedIDs = HashSet<String>()
+    private val receiptListener = ReceiptCache.Listener { _, _ ->
+        // the statuses are delivered by the status tracker
+    }
 
     private var voiceRecorder: MediaRecorder? = null
     private var voiceRecordingFileName: String? = null
+    private var voiceRecordingStartedAt: Long = 0
     private var voicePlayer: VoiceMessagePlayer? = null
+    private var voiceMessageCache: VoiceMessageCache? = null
+    private var voiceMessages: HashMap<String, VoiceMessage> = HashMap()
 
     private var messagesListAdapter: MessagesListAdapter<Message>? = null
+    private var messageBatcher: MessageBatcher? = null
     private var messagesListViewReachBottomListener: MessagesListViewReachBottomListener? = null
+    private var messagesListViewScrollVelocityTracker: ScrollVelocityTracker? = null
 
     private var messageLoadMoreBefore: Date = Date()
     private var messageSubscriptionRetryCount = 0
@@ -108,15 +177,31 @@ class ConversationFragment :
 
         this.skygear = Container.defaultContainer(context)
         this.skygearChat = ChatContainer.getInstance(this.skygear as Container)
+        this.skygearChat?.assetUploadCache?.setStoreFile(
+                File(context?.filesDir, ConversationFragment.ASSET_UPLOAD_CACHE_FILE_NAME)
+        )
+        this.skygearChat?.messagePrefetcher?.let { prefetcher ->
+            if (prefetcher.policy == null) {
+                prefetcher.policy = DevicePrefetchPolicy(context as Context)
+            }
+        }
         this.userCache = UserCache.getInstance(
                 this.skygear as Container,
                 this.skygearChat as ChatContainer
         )
-        this.voicePlayer = VoiceMessagePlayer(this.activity)
+        this.voiceMessageCache = VoiceMessageCache.getInstance(this.activity)
+        this.voicePlayer = VoiceMessagePlayer(this.activity, this.voiceMessageCache!!)
         this.voicePlayer?.playerErrorListener = this
         this.voicePlayer?.messageStateChangeListener = this
     }
 
+    override fun onDetach() {
+        super.onDetach()
+
+        this.voicePlayer?.release()
+        this.voicePlayer = null
+    }
+
     override fun onCreateView(
             inflater: LayoutInflater?,
             container: ViewGroup?,
@@ -191,6 +276,9 @@ class ConversationFragment :
                 ImageLoader(this.activity)
         )
         this.messagesListView?.setAdapter(this.messagesListAdapter)
+        this.messageBatcher = MessageBatcher { msgs ->
+            this@ConversationFragment.onMessageBatchFlushed(msgs)
+        }
 
         if (this.messagesListView?.layoutManager is LinearLayoutManager) {
             this.messagesListViewReachBottomListener = MessagesListViewReachBottomListener(
@@ -198,6 +286,17 @@ class ConversationFragment :
             )
             (this.messagesListView?.layoutManager as LinearLayoutManager).isAutoMeasureEnabled = false
             this.messagesListView?.addOnScrollListener(this.messagesListViewReachBottomListener)
+
+            this.messagesListViewScrollVelocityTracker = ScrollVelocityTracker(
+                    this.messagesListView?.layoutManager as LinearLayoutManager
+            )
+            this.messagesListView?.addOnScrollListener(this.messagesListViewScrollVelocityTracker)
+
+            this.messagesListView?.addOnScrollListener(object : RecyclerView.OnScrollListener() {
+                override fun onScrolled(recyclerView: RecyclerView?, dx: Int, dy: Int) {
+                    this@ConversationFragment.onMessagesListScrolled()
+                }
+            })
         }
 
         this.messagesListAdapter?.setLoadMoreListener(this)
@@ -250,7 +349,7 @@ class ConversationFragment :
                     conv.chatConversation.participantIds?.let { userIDs ->
                         this.userCache?.getUsers(userIDs.toList()) { users ->
                             conv.userList = users.values.toList()
-                        }
+                        }?.let { this.fetchRequestScope.add(it) }
                     }
                 }
 
@@ -260,36 +359,85 @@ class ConversationFragment :
 
         this.messageSubscriptionRetryCount = 0
         this.subscribeMessage()
+        this.skygearChat?.messageStatusTracker?.addListener(this.messageStatusListener)
+        this.messagesListView?.post { this@ConversationFragment.updateReceiptSubscriptions() }
     }
 
     override fun onPause() {
         super.onPause()
 
+        this.messageBatcher?.flush()
         this.unsubscribeMessage()
+        this.skygearChat?.messageStatusTracker?.removeListener(this.messageStatusListener)
+        this.unsubscribeReceipts()
+
+        // the pending fetches are sent again on resume if nothing is shown
+        this.fetchRequestScope.cancelAll()
+        this.isRestoringNewerMessages = false
+    }
+
+    override fun onDestroyView() {
+        super.onDestroyView()
+
+        // messages added after pause must not reach the adapter of a destroyed view
+        this.messageBatcher?.cancel()
+        this.messageBatcher = null
     }
 
     private fun fetchMessages(
             before: Date? = null,
             complete: ((msgs: List<Message>?, error: String?) -> Unit)? = null
     ) {
+        // render the prefetched or last viewed latest page right away, if any
+        val warmMsgs = if (before == null && this.messageWindow.isEmpty) {
+            this.conversation?.let { conv ->
+                this.skygearChat?.messagePrefetcher?.getWarmPage(conv.chatConversation.id)
+                        ?: this.skygearChat?.getCachedMessages(conv.chatConversation)
+            }?.map { chatMsg -> MessageFactory.getMessage(chatMsg) }
+        } else {
+            null
+        }
+        warmMsgs?.let { msgs ->
+            this.progressBar?.visibility = View.GONE
+            this.addMessages(msgs, isAddToTop = true)
+            this.updateLoadMoreCursor(msgs)
+        }
+
         val successCallback = fun(chatMsgs: List<ChatMessage>?) {
             this.progressBar?.visibility = View.GONE
             val msgs = chatMsgs?.map { chatMsg -> MessageFactory.getMessage(chatMsg) }
-            msgs?.let { this@ConversationFragment.addMessages(it, isAddToTop = true) }
-            msgs?.map { it.createdAt }?.min()?.let { newBefore ->
-                // update load more cursor
-                if (newBefore.before(this@ConversationFragment.messageLoadMoreBefore)) {
-                    this@ConversationFragment.messageLoadMoreBefore = newBefore
+            msgs?.let {
+                if (warmMsgs == null) {
+                    this@ConversationFragment.addMessages(it, isAddToTop = true)
+                } else {
+                    this@ConversationFragment.reconcileWarmMessages(warmMsgs, it)
                 }
             }
+            msgs?.let { this@ConversationFragment.updateLoadMoreCursor(it) }
 
             complete?.let { it(msgs, null) }
         }
 
+        // the latest page is sized by the container, so that it shares the
+        // request of the prefetcher
+        val pageSizer = this.skygearChat?.messagePageSizer
+        this.messagesListViewScrollVelocityTracker?.let { tracker ->
+            if (tracker.viewportCapacity > 0) {
+                pageSizer?.setViewportCapacity(tracker.viewportCapacity)
+            }
+        }
+        val limit = if (before == null) {
+            0
+        } else {
+            pageSizer?.getLoadMorePageSize(
+                    this.messagesListViewScrollVelocityTracker?.itemsPerSecond ?: 0.0
+            ) ?: 0
+        }
+
         this.conversation?.let { conv ->
             this.skygearChat?.getMessages(
                     conv.chatConversation,
-                    0,
+                    limit,
                     before,
                     null,
                     object : GetCallback<List<ChatMessage>> {
@@ -300,11 +448,66 @@ class ConversationFragment :
                             Log.w(TAG, "Failed to get message: %s".format(failReason))
                             complete?.let { it(null, failReason) }
                         }
-                    })
+                    })?.let { this.fetchRequestScope.add(it) }
+        }
+    }
+
+    private fun updateLoadMoreCursor(msgs: List<Message>) {
+        msgs.map { it.createdAt }.min()?.let { newBefore ->
+            if (newBefore.before(this.messageLoadMoreBefore)) {
+                this.messageLoadMoreBefore = newBefore
+            }
+        }
+    }
+
+    private fun reconcileWarmMessages(warmMsgs: List<Message>, msgs: List<Message>) {
+        val oldestWarmCreatedAt = warmMsgs.map { it.createdAt }.min()
+        val newestWarmCreatedAt = warmMsgs.map { it.createdAt }.max()
+        val oldestCreatedAt = msgs.map { it.createdAt }.min()
+        if (oldestWarmCreatedAt == null || newestWarmCreatedAt == null) {
+            this.addMessages(msgs, isAddToTop = true)
+            return
         }
+
+        if (oldestCreatedAt == null || oldestCreatedAt.after(newestWarmCreatedAt)) {
+            // the fresh page does not reach back to the warm messages, so
+            // the messages in between would never be loaded
+            this.evictMessages(this.messageWindow.clear())
+            this.messageLoadMoreBefore = Date()
+            this.addMessages(msgs, isAddToTop = true)
+            return
+        }
+
+        // the warm messages in the time range of the fresh page but not in
+        // it are deleted
+        val ids = msgs.map { it.id }.toSet()
+        val deletedIDs = warmMsgs
+                .filter { !it.createdAt.before(oldestCreatedAt) && !ids.contains(it.id) }
+                .map { it.id }
+        this.evictMessages(this.messageWindow.remove(deletedIDs))
+
+        // update the shown messages and add the ones sent after the warm
+        // page was fetched from the oldest, so that the newest ends up at the
+        // bottom, older ones are left to load more
+        this.addMessages(msgs
+                .filter { !it.createdAt.before(oldestWarmCreatedAt) }
+                .sortedBy { it.createdAt })
     }
 
     private fun addMessagesToBottom(msgs: List<Message>) {
+        this.messageBatcher?.add(msgs)
+    }
+
+    private fun onMessageBatchFlushed(msgs: List<Message>) {
+        if (this.messageWindow.hasEvictedNewer) {
+            // the bottom of the list is evicted, new messages are shown
+            // when the user scrolls back to it
+            val (shownMsgs, deferredMsgs) = msgs.partition { this.messageWindow.contains(it.id) }
+            deferredMsgs.forEach { this.messageWindow.deferNewest(it.chatMessage) }
+            this.addMessages(shownMsgs)
+            return
+        }
+
         var needScrollToBottom = false
         if (this.messagesListViewReachBottomListener?.isReachEnd == true) {
             needScrollToBottom = true
@@ -321,8 +524,11 @@ class ConversationFragment :
             return
         }
 
+        // decide insert or update before the IDs are recorded below
+        val existingIDs = msgs.map { it.id }.filter { this.messageWindow.contains(it) }.toSet()
+
         // fetch user if needed
-        val userIDs = msgs.map { it.author?.id ?: it.chatMessage.record.ownerId }
+        val userIDs = msgs.map { it.author?.id ?: it.chatMessage.ownerId }.distinct()
         this.userCache?.let { cache ->
             cache.getUsers(userIDs) { userMap ->
                 val multiTypedMessages = msgs.map { originalMsg ->
@@ -333,51 +539,184 @@ class ConversationFragment :
                     }
                 }.let {
                     it.forEach { msg ->
-                        if (msg.chatMessage.record.ownerId != null) {
-                            msg.author = userMap[msg.chatMessage.record.ownerId]
+                        if (msg.chatMessage.ownerId != null) {
+                            msg.author = userMap[msg.chatMessage.ownerId]
                         } else {
                             msg.author = User(this.skygear?.auth?.currentUser!!)
                         }
+                        msg.derivedStatus = this.skygearChat?.messageStatusTracker?.getStatus(msg.id)
                         msg
                     }
                     it
                 }
 
+                this.prefetchVoiceMessages(multiTypedMessages)
+
                 if (isAddToTop) {
                     this.messagesListAdapter?.addToEnd(multiTypedMessages, false)
                 } else {
-                    multiTypedMessages.forEach { msg ->
-                        if (messageIDs.contains(msg.id)) {
-                            this@ConversationFragment.messagesListAdapter?.update(msg)
-                        } else {
-                            this@ConversationFragment.messagesListAdapter?.addToStart(
-                                    msg,
-                                    isScrollToBottom
-                            )
-                        }
+                    val (updatedMsgs, newMsgs) = multiTypedMessages.partition {
+                        existingIDs.contains(it.id)
+                    }
+
+                    updatedMsgs.forEach { msg ->
+                        this@ConversationFragment.messagesListAdapter?.update(msg)
+                    }
+
+                    // only scroll once for the whole batch
+                    val lastNewMsg = newMsgs.lastOrNull()
+                    newMsgs.forEach { msg ->
+                        this@ConversationFragment.messagesListAdapter?.addToStart(
+                                msg,
+                                isScrollToBottom && msg === lastNewMsg
+                        )
                     }
                 }
 
+                // trim after the list is laid out with the added messages
+                this.messagesListView?.post {
+                    this@ConversationFragment.trimMessageWindow(isOlderAdded = isAddToTop)
+                    this@ConversationFragment.updateReceiptSubscriptions()
+                }
             }
         }
 
+        this.messageWindow.add(msgs)
+
+        // mark messages as read, which also covers the last read message
+        // of the conversation, in a single request for the whole batch
+        val chatMsgs = msgs.map { it.chatMessage }
+        this.skygearChat?.markMessagesAsRead(chatMsgs)
+    }
+
+    private fun trimMessageWindow(isOlderAdded: Boolean) {
+        val layoutManager = this.messagesListView?.layoutManager as? LinearLayoutManager ?: return
+        val itemCount = this.messagesListAdapter?.itemCount ?: return
+
+        // the list is reversed, the newest message is at position 0
+        if (isOlderAdded) {
+            var firstVisiblePosition = layoutManager.findFirstVisibleItemPosition()
+            while (true) {
+                val evictable = this.messageWindow.newestEvictable() ?: return
+                val span = this.messageWindow.itemSpanOf(evictable)
+                if (firstVisiblePosition <= span) {
+                    return
+                }
+
+                this.evictMessages(this.messageWindow.evictNewest())
+                firstVisiblePosition -= span
+            }
+        } else {
+            var remainingCount = itemCount
+            while (true) {
+                val evictable = this.messageWindow.oldestEvictable() ?: return
+                val span = this.messageWindow.itemSpanOf(evictable)
+                if (layoutManager.findLastVisibleItemPosition() >= remainingCount - span) {
+                    return
+                }
+
+                this.evictMessages(this.messageWindow.evictOldest())
+                remainingCount -= span
+                this.messageLoadMoreBefore = this.messageWindow.oldestCreatedAt ?: Date()
+            }
+        }
+    }
+
+    private fun evictMessages(msgs: List<Message>) {
+        this.messagesListAdapter?.deleteByIds(msgs.map { it.id }.toTypedArray())
         msgs.forEach { msg ->
-            messageIDs.add(msg.id)
+            if (this.voicePlayer?.message?.id != msg.id) {
+                this.voiceMessages.remove(msg.id)
+            }
         }
+    }
 
-        // mark last read message
-        this.conversation?.chatConversation?.let { conv ->
-            val lastChatMsg = msgs.last().chatMessage
-            this.skygearChat?.markConversationLastReadMessage(conv, lastChatMsg)
+    private fun onMessagesListScrolled() {
+        this.updateReceiptSubscriptions()
+
+        if (this.isRestoringNewerMessages || !this.messageWindow.hasEvictedNewer) {
+            return
         }
 
-        // mark messages as read
-        val chatMsgs = msgs.map { it.chatMessage }
-        this.skygearChat?.markMessagesAsRead(chatMsgs)
+        val layoutManager = this.messagesListView?.layoutManager as? LinearLayoutManager ?: return
+        if (layoutManager.findFirstVisibleItemPosition() > NEWER_MESSAGES_RESTORE_THRESHOLD) {
+            return
+        }
+
+        val page = this.messageWindow.peekNewerPage() ?: return
+        if (page.isCached) {
+            this.messageWindow.takeNewerPage()?.let { this.addRestoredNewerMessages(it) }
+            return
+        }
+
+        // the page is exactly the messages up to its newest one
+        val count = page.count
+        val newestCreatedAt = page.newestCreatedAt
+        this.conversation?.let { conv ->
+            this.isRestoringNewerMessages = true
+            this.skygearChat?.getMessages(
+                    conv.chatConversation,
+                    count,
+                    Date(newestCreatedAt.time + 1),
+                    null,
+                    object : GetCallback<List<ChatMessage>> {
+                        override fun onSucc(chatMsgs: List<ChatMessage>?) {
+                            this@ConversationFragment.isRestoringNewerMessages = false
+                            val window = this@ConversationFragment.messageWindow
+                            // keep the page if new messages are deferred into it meanwhile
+                            if (window.peekNewerPage() === page
+                                    && page.count == count
+                                    && page.newestCreatedAt == newestCreatedAt) {
+                                window.takeNewerPage()
+                            }
+                            chatMsgs?.let { this@ConversationFragment.addRestoredNewerMessages(it) }
+                        }
+
+                        override fun onFail(failReason: String?) {
+                            Log.w(TAG, "Failed to restore messages: %s".format(failReason))
+                            this@ConversationFragment.isRestoringNewerMessages = false
+                        }
+                    })?.let { this.fetchRequestScope.add(it) }
+        }
     }
 
-    private fun updateMessages(msgs: List<Message>) {
-        val userIDs = msgs.map { it.chatMessage.record.ownerId }
+    private fun addRestoredNewerMessages(chatMsgs: List<ChatMessage>) {
+        // added from the oldest, so that the newest ends up at the bottom
+        this.addMessages(chatMsgs.sortedBy { it.createdTime }.map { MessageFactory.getMessage(it) })
+    }
+
+    private fun prefetchVoiceMessages(msgs: List<Message>) {
+        val voiceMsgs = msgs.filterIsInstance<VoiceMessage>()
+        voiceMsgs.forEach { this.voiceMessages[it.id] = it }
+
+        // downloads ahead of playing honor the same device conditions as
+        // message prefetching, e.g. no metered network or low battery
+        if (this.skygearChat?.messagePrefetcher?.policy?.canPrefetch() != true) {
+            return
+        }
+
+        // the newest ones are the closest to what the user is looking at
+        val prefetchMsgs = voiceMsgs
+                .sortedByDescending { it.createdAt }
+                .take(VOICE_MESSAGE_PREFETCH_COUNT)
+        if (prefetchMsgs.isNotEmpty()) {
+            this.voiceMessageCache?.prefetch(prefetchMsgs)
+        }
+    }
+
+    private fun nextVoiceMessage(voiceMessage: VoiceMessage): VoiceMessage? {
+        val createdAt = voiceMessage.createdAt
+        return this.voiceMessages.values
+                .filter { it.createdAt.after(createdAt) }
+                .minBy { it.createdAt }
+    }
+
+    private fun updateMessages(updatedMsgs: List<Message>) {
+        // evicted messages are fetched again or restored without the cache
+        val (msgs, evictedMsgs) = updatedMsgs.partition { this.messageWindow.contains(it.id) }
+        evictedMsgs.forEach { this.messageWindow.invalidateCached(it.id) }
+
+        val userIDs = msgs.map { it.chatMessage.ownerId }
         this.userCache?.let { cache ->
             cache.getUsers(userIDs) { userMap ->
                 msgs.map { msg ->
@@ -387,13 +726,62 @@ class ConversationFragment :
                         msg
                     }
                 }.forEach { msg ->
-                    msg.author = userMap[msg.chatMessage.record.ownerId]
+                    msg.author = userMap[msg.chatMessage.ownerId]
+                    msg.derivedStatus = this.skygearChat?.messageStatusTracker?.getStatus(msg.id)
                     this@ConversationFragment.messagesListAdapter?.update(msg)
                 }
             }
         }
     }
 
+    private fun updateReceiptSubscriptions() {
+        val receiptCache = this.skygearChat?.receiptCache ?: return
+        val layoutManager = this.messagesListView?.layoutManager as? LinearLayoutManager ?: return
+        val currentUserID = this.skygear?.auth?.currentUser?.id ?: return
+        val firstPosition = layoutManager.findFirstVisibleItemPosition()
+        val lastPosition = layoutManager.findLastVisibleItemPosition()
+        if (firstPosition < 0 || lastPosition < 0) {
+            return
+        }
+
+        // positions include the date headers, so take a margin around them
+        val ids = this.messageWindow
+                .fromNewest(
+                        firstPosition - RECEIPT_SUBSCRIPTION_MARGIN,
+                        lastPosition - firstPosition + 1 + 2 * RECEIPT_SUBSCRIPTION_MARGIN
+                )
+                .filter { it.chatMessage.ownerId == currentUserID && !VoiceMessage.isVoiceMessage(it) }
+                .map { it.id }
+                .toSet()
+
+        this.receiptSubscribedIDs.filter { !ids.contains(it) }.forEach { id ->
+            receiptCache.unsubscribe(id, this.receiptListener)
+            this.receiptSubscribedIDs.remove(id)
+        }
+        ids.filter { !this.receiptSubscribedIDs.contains(it) }.forEach { id ->
+            receiptCache.subscribe(id, this.receiptListener)
+            this.receiptSubscribedIDs.add(id)
+        }
+    }
+
+    private fun unsubscribeReceipts() {
+        this.receiptSubscribedIDs.forEach { id ->
+            this.skygearChat?.receiptCache?.unsubscribe(id, this.receiptListener)
+        }
+        this.receiptSubscribedIDs.clear()
+    }
+
+    private fun onMessageStatusChanged(messageID: String, status: ChatMessage.Status) {
+        val msg = this.messageWindow.get(messageID) ?: return
+        // only the outgoing text and image messages show a status
+        if (VoiceMessage.isVoiceMessage(msg)) {
+            return
+        }
+
+        msg.derivedStatus = status
+        this.messagesListAdapter?.update(msg)
+    }
+
     private fun subscribeMessage() {
         if (this.messageSubscriptionRetryCount >= MESSAGE_SUBSCRIPTION_MAX_RETRY) {
             Log.i(TAG, "Message subscription retry has reach the maximum, abort.")
@@ -437,6 +825,17 @@ class ConversationFragment :
     }
 
     override fun onLoadMore(page: Int, totalItemsCount: Int) {
+        val cachedMsgs = this.messageWindow.takeOlderPage()
+        if (cachedMsgs != null) {
+            // added to the top from the newest, as pages from the server are
+            val msgs = cachedMsgs
+                    .sortedByDescending { it.createdTime }
+                    .map { MessageFactory.getMessage(it) }
+            this.addMessages(msgs, isAddToTop = true)
+            this.updateLoadMoreCursor(msgs)
+            return
+        }
+
         this.fetchMessages(before = this.messageLoadMoreBefore)
     }
 
@@ -452,6 +851,7 @@ class ConversationFragment :
         }
 
         this.voicePlayer?.play()
+        this.voicePlayer?.prepareAhead(this.nextVoiceMessage(voiceMessage))
     }
 
     override fun onVoiceMessageStateChanged(voiceMessage: VoiceMessage) {
@@ -529,6 +929,7 @@ class ConversationFragment :
 
             this.voiceRecorder?.prepare()
             this.voiceRecorder?.start()
+            this.voiceRecordingStartedAt = SystemClock.elapsedRealtime()
         }
     }
 
@@ -559,42 +960,43 @@ class ConversationFragment :
             return
         }
 
-        val mmr = MediaMetadataRetriever()
-        mmr.setDataSource(this.voiceRecordingFileName!!)
-
-        val duration = Integer.parseInt(
-                mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION))
-
-        val voiceRecordingFile = File(this.voiceRecordingFileName!!)
-        val bytes = ByteArray(voiceRecordingFile.length().toInt())
-        val stream = BufferedInputStream(FileInputStream(voiceRecordingFile))
-        stream.read(bytes, 0, bytes.size)
-        stream.close()
-
-        this.conversation?.let { conv ->
-            val fileName = this@ConversationFragment.voiceRecordingFileName!!.split("/").last()
-            val asset = Asset(fileName, VoiceMessage.MIME_TYPE, bytes)
-            val meta = JSONObject()
-            meta.put(VoiceMessage.DurationMatadataName, duration)
-
-            this.skygearChat?.sendMessage(
-                    conv.chatConversation,
-                    null,
-                    asset,
-                    meta,
-                    object : SaveCallback<ChatMessage> {
-                        override fun onSucc(chatMsg: ChatMessage?) {
-                            voiceRecordingFile.delete()
-                        }
+        val recordingFileName = this.voiceRecordingFileName!!
+        val recordedDuration = SystemClock.elapsedRealtime() - this.voiceRecordingStartedAt
+        this.voiceRecordingFileName = null
+
+        val chatContainer = this.skygearChat ?: return
+        val chatConversation = this.conversation?.chatConversation ?: return
+
+        // reading the recording and its metadata is slow for long recordings,
+        // keep it off the main thread so that sending starts right away
+        ConversationFragment.messageSendExecutor.execute {
+            val voiceRecordingFile = File(recordingFileName)
+            val bytes = try {
+                voiceRecordingFile.readBytes()
+            } catch (e: IOException) {
+                Log.e(ConversationFragment.TAG, "Failed to read voice message: $e")
+                voiceRecordingFile.delete()
+                return@execute
+            }
 
-                        override fun onFail(failReason: String?) {
-                            Log.e(
-                                    ConversationFragment.TAG,
-                                    "Failed to send voice message: $failReason"
-                            )
-                        }
-                    }
+            val duration = ConversationFragment.readVoiceMessageDuration(recordingFileName)
+                    ?: recordedDuration.toInt()
+            val asset = chatContainer.assetUploadCache.newAsset(
+                    voiceRecordingFile.name,
+                    VoiceMessage.MIME_TYPE,
+                    bytes
             )
+
+            // the message is sent even if the fragment is gone by now
+            ConversationFragment.mainHandler.post {
+                ConversationFragment.sendVoiceMessage(
+                        chatContainer,
+                        chatConversation,
+                        voiceRecordingFile,
+                        asset,
+                        duration
+                )
+            }
         }
     }
 
@@ -667,23 +1069,37 @@ class ConversationFragment :
         }
         this.conversation?.chatConversation?.let { conv ->
             val imageByteArray = bitmapToByteArray(imageData.image)
-            val thumbByteArray = bitmapToByteArray(imageData.thumbnail)
+            val thumbnailCodec = ThumbnailCodecs.defaultCodec
 
             val meta = JSONObject()
-            val encoded = Base64.encodeToString(thumbByteArray, Base64.DEFAULT)
-            meta.put("thumbnail", encoded)
+            meta.put(ThumbnailCodecs.ThumbnailField, thumbnailCodec.encode(imageData.thumbnail))
+            meta.put(ThumbnailCodecs.FormatField, thumbnailCodec.format)
             meta.put("height", imageData.image.height)
             meta.put("width", imageData.image.width)
 
             val message = ChatMessage()
-            message.asset = Asset("image.jpg", "image/jpeg", imageByteArray)
+            message.asset = Asset("image.jpg", "image/jpeg", imageByteArray!!)
             message.metadata = meta
 
             val msg = ImageMessage(message, imageUri.toString())
             msg.author = User(this.skygear?.auth?.currentUser!!)
             this.addMessagesToBottom(listOf(msg))
 
-            this.skygearChat?.addMessage(message, conv, null)
+            val chatContainer = this.skygearChat ?: return
+            // hashing the image for the upload cache is slow for large images,
+            // keep it off the main thread and send once it is done
+            ConversationFragment.messageSendExecutor.execute {
+                val asset = chatContainer.assetUploadCache.newAsset(
+                        "image.jpg",
+                        "image/jpeg",
+                        imageByteArray
+                )
+
+                ConversationFragment.mainHandler.post {
+                    message.asset = asset
+                    chatContainer.addMessage(message, conv, null)
+                }
+            }
         }
     }
 
@@ -2,6 +2,7 @@ package io.skygear.plugins.chat.ui.model
 
 import android.net.Uri
 import com.stfalcon.chatkit.commons.models.MessageContentType
+import io.skygear.plugins.chat.ui.utils.ThumbnailCodecs
 import io.skygear.skygear.Record
 import org.json.JSONObject
 import io.skygear.plugins.chat.Message as ChatMessage
@@ -44,8 +45,18 @@ class ImageMessage: Message,
             val builder = Uri.parse(url)
                     .buildUpon()
 
-            if (it.has("thumbnail")) {
-                builder.appendQueryParameter("thumbnail", it.getString("thumbnail"))
+            if (it.has(ThumbnailCodecs.ThumbnailField)) {
+                builder.appendQueryParameter(
+                        ThumbnailCodecs.ThumbnailField,
+                        it.getString(ThumbnailCodecs.ThumbnailField)
+                )
+            }
+
+            if (it.has(ThumbnailCodecs.FormatField)) {
+                builder.appendQueryParameter(
+                        ThumbnailCodecs.FormatField,
+                        it.getString(ThumbnailCodecs.FormatField)
+                )
             }
 
             if (it.has("width")) {
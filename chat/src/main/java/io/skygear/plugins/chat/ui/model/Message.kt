@@ -10,6 +10,8 @@ open class Message: IMessage {
 
     val chatMessage: ChatMessage
     var author: User? = null
+    // derived from receipts, ahead of the status in chatMessage
+    var derivedStatus: ChatMessage.Status? = null
 
 
     constructor(record: Record) {
@@ -26,14 +28,14 @@ open class Message: IMessage {
 
     override fun getId(): String = this.chatMessage.id
 
-    override fun getCreatedAt(): Date = this.chatMessage.record.createdAt ?: Date()
+    override fun getCreatedAt(): Date = this.chatMessage.createdTime ?: Date()
 
     override fun getUser(): User? = this.author
 
     override fun getText(): String? = this.chatMessage.body
 
     fun getStatus(): String {
-        this.chatMessage.status?.getName()?.let {
+        (this.derivedStatus ?: this.chatMessage.status)?.getName()?.let {
             return it.replace("_", " ", true).capitalize()
         }
         return "Delivering"
@@ -6,7 +6,7 @@ import io.skygear.skygear.Asset
 import io.skygear.skygear.Record
 import io.skygear.plugins.chat.Message as ChatMessage
 
-open class VoiceMessage(record: Record): Message(record), MessageContentType {
+open class VoiceMessage: Message, MessageContentType {
 
     companion object {
         /**
@@ -31,13 +31,13 @@ open class VoiceMessage(record: Record): Message(record), MessageContentType {
             return attachment.mimeType == VoiceMessage.MIME_TYPE
         }
 
-        fun isVoiceMessage(chatMsg: ChatMessage) = VoiceMessage.isVoiceMessage(chatMsg.record)
+        fun isVoiceMessage(chatMsg: ChatMessage) = chatMsg.asset?.mimeType == VoiceMessage.MIME_TYPE
 
         fun isVoiceMessage(msg: Message) = VoiceMessage.isVoiceMessage(msg.chatMessage)
     }
 
     val attachment
-        get() = this.chatMessage.record.get(VoiceMessage.AttachmentFieldName) as Asset
+        get() = this.chatMessage.asset as Asset
 
     val attachmentUrl
         get() = this.attachment.url as String
@@ -47,10 +47,12 @@ open class VoiceMessage(record: Record): Message(record), MessageContentType {
 
     var state = VoiceMessage.State.INITIAL
 
-    constructor(chatMsg: ChatMessage): this(chatMsg.record)
+    constructor(record: Record): super(record)
+
+    constructor(chatMsg: ChatMessage): super(chatMsg)
 
     init {
-        if (!VoiceMessage.isVoiceMessage(record)) {
+        if (!VoiceMessage.isVoiceMessage(this.chatMessage)) {
             throw IllegalArgumentException("Not compatible skygear record")
         }
     }
@@ -0,0 +1,69 @@
+package io.skygear.plugins.chat.ui.utils
+
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.net.ConnectivityManager
+import android.os.BatteryManager
+import android.os.Build
+import android.os.PowerManager
+import android.support.v4.net.ConnectivityManagerCompat
+import io.skygear.plugins.chat.MessagePrefetcher
+
+/**
+ * DevicePrefetchPolicy allows message prefetching only on an unmetered
+ * network, and not when the battery is low or power saving is on, unless
+ * the device is charging.
+ */
+class DevicePrefetchPolicy(
+        context: Context,
+        private val minBatteryLevel: Float = DevicePrefetchPolicy.DefaultMinBatteryLevel,
+        private val allowMeteredNetwork: Boolean = false
+) : MessagePrefetcher.Policy {
+    companion object {
+        val DefaultMinBatteryLevel = 0.2f
+    }
+
+    private val context = context.applicationContext
+
+    override fun canPrefetch() = this.isNetworkAllowed() && this.isBatteryAllowed()
+
+    private fun isNetworkAllowed(): Boolean {
+        val connectivityManager = this.context.getSystemService(Context.CONNECTIVITY_SERVICE)
+                as ConnectivityManager? ?: return false
+        val networkInfo = connectivityManager.activeNetworkInfo
+        if (networkInfo == null || !networkInfo.isConnected) {
+            return false
+        }
+
+        return this.allowMeteredNetwork
+                || !ConnectivityManagerCompat.isActiveNetworkMetered(connectivityManager)
+    }
+
+    private fun isBatteryAllowed(): Boolean {
+        // sticky broadcast, no receiver is registered
+        val status = this.context.registerReceiver(
+                null,
+                IntentFilter(Intent.ACTION_BATTERY_CHANGED)
+        ) ?: return true
+
+        if (status.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return true
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            val powerManager = this.context.getSystemService(Context.POWER_SERVICE) as PowerManager?
+            if (powerManager?.isPowerSaveMode == true) {
+                return false
+            }
+        }
+
+        val level = status.getIntExtra(BatteryManager.EXTRA_LEVEL, -1)
+        val scale = status.getIntExtra(BatteryManager.EXTRA_SCALE, -1)
+        if (level < 0 || scale <= 0) {
+            return true
+        }
+
+        return level.toFloat() / scale >= this.minBatteryLevel
+    }
+}
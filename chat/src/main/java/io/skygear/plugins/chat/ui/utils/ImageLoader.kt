@@ -5,9 +5,7 @@ import android.net.Uri
 import android.widget.ImageView
 import com.squareup.picasso.Picasso
 import com.stfalcon.chatkit.commons.ImageLoader
-import android.graphics.BitmapFactory
 import android.graphics.drawable.BitmapDrawable
-import android.util.Base64
 
 private val DISPLAY_IMAGE_SIZE = 500.0
 
@@ -53,10 +51,10 @@ class ImageLoader(
             creator.fit().centerCrop()
         }
 
-        val imageDataBytes = builtUri.getQueryParameter("thumbnail")
-        if (imageDataBytes != null) {
-            val bytes = Base64.decode(imageDataBytes.toByteArray(), Base64.DEFAULT)
-            val bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.size)
+        val thumbnail = builtUri.getQueryParameter(ThumbnailCodecs.ThumbnailField)
+        if (thumbnail != null) {
+            val thumbnailFormat = builtUri.getQueryParameter(ThumbnailCodecs.FormatField)
+            val bitmap = ThumbnailCodecs.decode(thumbnailFormat, thumbnail)
             if (bitmap != null) {
                 creator.placeholder(BitmapDrawable(this.context.resources, bitmap))
             }
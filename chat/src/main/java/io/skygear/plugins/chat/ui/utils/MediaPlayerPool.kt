@@ -0,0 +1,55 @@
+package io.skygear.plugins.chat.ui.utils
+
+import android.media.MediaPlayer
+import java.util.*
+
+/**
+ * MediaPlayerPool keeps a few idle media players around, so that switching
+ * between voice messages resets an existing native player instead of
+ * creating and releasing one every time.
+ */
+class MediaPlayerPool(private val maxIdleCount: Int = MediaPlayerPool.DefaultMaxIdleCount) {
+    companion object {
+        val DefaultMaxIdleCount = 2
+    }
+
+    private val idlePlayers = LinkedList<MediaPlayer>()
+
+    /**
+     * Creates idle players up to the given count ahead of time.
+     */
+    fun warmUp(count: Int = this.maxIdleCount) {
+        while (this.idlePlayers.size < Math.min(count, this.maxIdleCount)) {
+            this.idlePlayers.add(MediaPlayer())
+        }
+    }
+
+    /**
+     * Takes an idle player, which is in the idle state.
+     */
+    fun acquire(): MediaPlayer = this.idlePlayers.pollFirst() ?: MediaPlayer()
+
+    /**
+     * Resets a player and puts it back to the pool.
+     */
+    fun recycle(player: MediaPlayer) {
+        player.setOnPreparedListener(null)
+        player.setOnCompletionListener(null)
+        player.setOnErrorListener(null)
+        player.reset()
+
+        if (this.idlePlayers.size < this.maxIdleCount) {
+            this.idlePlayers.add(player)
+        } else {
+            player.release()
+        }
+    }
+
+    /**
+     * Releases all idle players.
+     */
+    fun releaseAll() {
+        this.idlePlayers.forEach { it.release() }
+        this.idlePlayers.clear()
+    }
+}
@@ -0,0 +1,66 @@
+package io.skygear.plugins.chat.ui.utils
+
+import android.view.Choreographer
+import io.skygear.plugins.chat.ui.model.Message
+import java.util.*
+
+/**
+ * MessageBatcher accumulates incoming messages for one frame and hands them
+ * over as a single batch, so that a burst of messages results in one adapter
+ * transaction instead of one per message.
+ *
+ * Messages with the same ID within a frame are collapsed, the latest one wins.
+ */
+class MessageBatcher(private val onFlush: (msgs: List<Message>) -> Unit) {
+    private val pendingMessages = LinkedHashMap<String, Message>()
+    private var flushScheduled = false
+
+    private val frameCallback = Choreographer.FrameCallback {
+        this@MessageBatcher.flushScheduled = false
+        this@MessageBatcher.flush()
+    }
+
+    fun add(msgs: List<Message>) {
+        if (msgs.isEmpty()) {
+            return
+        }
+
+        msgs.forEach { msg ->
+            // re-insert to keep the arrival order of the latest copy
+            this.pendingMessages.remove(msg.id)
+            this.pendingMessages[msg.id] = msg
+        }
+
+        if (!this.flushScheduled) {
+            this.flushScheduled = true
+            Choreographer.getInstance().postFrameCallback(this.frameCallback)
+        }
+    }
+
+    /**
+     * Deliver pending messages immediately.
+     */
+    fun flush() {
+        if (this.flushScheduled) {
+            Choreographer.getInstance().removeFrameCallback(this.frameCallback)
+            this.flushScheduled = false
+        }
+
+        if (this.pendingMessages.isEmpty()) {
+            return
+        }
+
+        val msgs = this.pendingMessages.values.toList()
+        this.pendingMessages.clear()
+        this.onFlush(msgs)
+    }
+
+    /**
+     * Drop pending messages without delivering them.
+     */
+    fun cancel() {
+        Choreographer.getInstance().removeFrameCallback(this.frameCallback)
+        this.flushScheduled = false
+        this.pendingMessages.clear()
+    }
+}
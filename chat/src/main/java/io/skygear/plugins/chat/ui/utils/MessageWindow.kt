@@ -0,0 +1,285 @@
+package io.skygear.plugins.chat.ui.utils
+
+import io.skygear.plugins.chat.ui.model.Message
+import java.util.*
+import io.skygear.plugins.chat.Message as ChatMessage
+
+/**
+ * MessageWindow keeps track of the messages retained in a message list,
+ * which is a sliding window over the conversation history.
+ *
+ * Pages far from the viewport are evicted from either end of the window.
+ * Evicted pages keep their compact chat messages in a bounded cache, and
+ * beyond that only how to fetch them again, so memory is bounded however far
+ * the user scrolls:
+ * - older pages are fetched again by the load more cursor,
+ * - newer pages are fetched again by their newest created time and size,
+ *   as messages can only be queried before a time.
+ */
+class MessageWindow(
+        val capacity: Int = 300,
+        val pageSize: Int = 50,
+        private val cacheCapacity: Int = 200
+) {
+    /**
+     * An evicted page newer than the window.
+     */
+    class NewerPage(var newestCreatedAt: Date, var count: Int) {
+        internal var cachedMsgs: MutableList<ChatMessage>? = null
+
+        val isCached: Boolean
+            get() = this.cachedMsgs != null
+    }
+
+    // ordered from the oldest
+    private val retainedMsgs = ArrayList<Message>()
+    private val retainedIDs = HashSet<String>()
+
+    // ordered from the closest to the window
+    private val newerPages = LinkedList<NewerPage>()
+    private val olderPages = LinkedList<List<ChatMessage>>()
+    private var cachedCount = 0
+
+    val size: Int
+        get() = this.retainedMsgs.size
+
+    val isEmpty: Boolean
+        get() = this.retainedMsgs.isEmpty()
+
+    val oldestCreatedAt: Date?
+        get() = this.retainedMsgs.firstOrNull()?.createdAt
+
+    val hasEvictedNewer: Boolean
+        get() = this.newerPages.isNotEmpty()
+
+    fun contains(id: String) = this.retainedIDs.contains(id)
+
+    fun get(id: String): Message? {
+        if (!this.retainedIDs.contains(id)) {
+            return null
+        }
+
+        return this.retainedMsgs.firstOrNull { it.id == id }
+    }
+
+    /**
+     * Get retained messages counted from the newest, e.g. the ones at
+     * positions of the list, which shows the newest first.
+     */
+    fun fromNewest(offset: Int, count: Int): List<Message> {
+        val end = this.retainedMsgs.size - Math.max(0, offset)
+        if (end <= 0 || count <= 0) {
+            return emptyList()
+        }
+
+        return this.retainedMsgs.subList(Math.max(0, end - count), end).toList()
+    }
+
+    /**
+     * Add messages to the window, or replace the retained ones with the same
+     * IDs.
+     */
+    fun add(msgs: List<Message>) {
+        msgs.forEach { msg ->
+            if (this.retainedIDs.contains(msg.id)) {
+                val index = this.retainedMsgs.indexOfFirst { it.id == msg.id }
+                this.retainedMsgs[index] = msg
+                return@forEach
+            }
+
+            this.retainedIDs.add(msg.id)
+            var index = this.retainedMsgs.size
+            while (index > 0 && this.retainedMsgs[index - 1].createdAt.after(msg.createdAt)) {
+                index--
+            }
+            this.retainedMsgs.add(index, msg)
+        }
+    }
+
+    /**
+     * Remove retained messages, e.g. the ones deleted while the list was
+     * not shown.
+     */
+    fun remove(ids: Collection<String>): List<Message> {
+        val removed = this.retainedMsgs.filter { ids.contains(it.id) }
+        this.remove(removed)
+        return removed
+    }
+
+    /**
+     * Remove all messages, including the evicted pages.
+     */
+    fun clear(): List<Message> {
+        val removed = ArrayList(this.retainedMsgs)
+        this.retainedMsgs.clear()
+        this.retainedIDs.clear()
+        this.newerPages.clear()
+        this.olderPages.clear()
+        this.cachedCount = 0
+        return removed
+    }
+
+    /**
+     * The newest page to evict once the window is over capacity, null if it
+     * is not.
+     */
+    fun newestEvictable(): List<Message>? {
+        if (this.retainedMsgs.size <= this.capacity) {
+            return null
+        }
+
+        return this.retainedMsgs.takeLast(this.pageSize)
+    }
+
+    /**
+     * The oldest page to evict once the window is over capacity, null if it
+     * is not.
+     */
+    fun oldestEvictable(): List<Message>? {
+        if (this.retainedMsgs.size <= this.capacity) {
+            return null
+        }
+
+        return this.retainedMsgs.take(this.pageSize)
+    }
+
+    /**
+     * Evict the newest page, which can be restored by [peekNewerPage].
+     */
+    fun evictNewest(): List<Message> {
+        val evicted = this.retainedMsgs.takeLast(this.pageSize)
+        this.remove(evicted)
+
+        val page = NewerPage(evicted.last().createdAt, evicted.size)
+        page.cachedMsgs = evicted.map { it.chatMessage }.toMutableList()
+        this.cachedCount += evicted.size
+        this.newerPages.addFirst(page)
+        this.trimCache()
+
+        return evicted
+    }
+
+    /**
+     * Evict the oldest page, which can be restored by [takeOlderPage] or by
+     * loading more before [oldestCreatedAt].
+     */
+    fun evictOldest(): List<Message> {
+        val evicted = this.retainedMsgs.take(this.pageSize)
+        this.remove(evicted)
+
+        this.olderPages.addFirst(evicted.map { it.chatMessage })
+        this.cachedCount += evicted.size
+        this.trimCache()
+
+        return evicted
+    }
+
+    /**
+     * Record a message newer than the window while newer pages are evicted,
+     * it is restored with the newest page.
+     */
+    fun deferNewest(msg: ChatMessage) {
+        var page = this.newerPages.peekLast()
+        if (page == null || page.count >= this.pageSize) {
+            page = NewerPage(msg.createdTime, 0)
+            page.cachedMsgs = ArrayList()
+            this.newerPages.addLast(page)
+        }
+
+        page.count++
+        if (msg.createdTime.after(page.newestCreatedAt)) {
+            page.newestCreatedAt = msg.createdTime
+        }
+        page.cachedMsgs?.let { cachedMsgs ->
+            cachedMsgs.add(msg)
+            this.cachedCount++
+        }
+        this.trimCache()
+    }
+
+    /**
+     * The closest evicted newer page, null if there is none.
+     */
+    fun peekNewerPage(): NewerPage? = this.newerPages.peekFirst()
+
+    /**
+     * Take the closest evicted newer page after it is restored.
+     *
+     * @return the cached messages of the page, null if they have to be fetched
+     */
+    fun takeNewerPage(): List<ChatMessage>? {
+        val page = this.newerPages.pollFirst() ?: return null
+        val cachedMsgs = page.cachedMsgs ?: return null
+        this.cachedCount -= cachedMsgs.size
+        return cachedMsgs
+    }
+
+    /**
+     * Take the closest evicted older page from cache.
+     *
+     * @return the cached messages, null if the page has to be fetched
+     */
+    fun takeOlderPage(): List<ChatMessage>? {
+        val cachedMsgs = this.olderPages.pollFirst() ?: return null
+        this.cachedCount -= cachedMsgs.size
+        return cachedMsgs
+    }
+
+    /**
+     * Drop the cached copy of an evicted message, e.g. when it is updated.
+     */
+    fun invalidateCached(id: String) {
+        this.newerPages.forEach { page ->
+            page.cachedMsgs?.let { cachedMsgs ->
+                if (cachedMsgs.any { it.id == id }) {
+                    this.cachedCount -= cachedMsgs.size
+                    page.cachedMsgs = null
+                }
+            }
+        }
+
+        // the pages after an uncached older page are fetched again anyway
+        val index = this.olderPages.indexOfFirst { page -> page.any { it.id == id } }
+        if (index >= 0) {
+            while (this.olderPages.size > index) {
+                this.cachedCount -= this.olderPages.removeLast().size
+            }
+        }
+    }
+
+    /**
+     * The number of items a list shows for messages, with a date header
+     * for every day.
+     */
+    fun itemSpanOf(msgs: List<Message>): Int {
+        val calendar = Calendar.getInstance()
+        val days = msgs.map { msg ->
+            calendar.time = msg.createdAt
+            calendar.get(Calendar.YEAR) * 1000 + calendar.get(Calendar.DAY_OF_YEAR)
+        }.distinct().size
+
+        return msgs.size + days
+    }
+
+    private fun remove(msgs: List<Message>) {
+        this.retainedMsgs.removeAll(msgs)
+        msgs.forEach { this.retainedIDs.remove(it.id) }
+    }
+
+    /**
+     * Drop cached pages farthest from the window first, they are fetched
+     * again when needed.
+     */
+    private fun trimCache() {
+        while (this.cachedCount > this.cacheCapacity) {
+            if (this.olderPages.isNotEmpty()) {
+                this.cachedCount -= this.olderPages.removeLast().size
+                continue
+            }
+
+            val farthestNewer = this.newerPages.lastOrNull { it.cachedMsgs != null } ?: return
+            this.cachedCount -= farthestNewer.cachedMsgs?.size ?: 0
+            farthestNewer.cachedMsgs = null
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package io.skygear.plugins.chat.ui.utils
+
+import android.os.SystemClock
+import android.support.v7.widget.LinearLayoutManager
+import android.support.v7.widget.RecyclerView
+
+/**
+ * ScrollVelocityTracker measures how fast the list is scrolled, in items per
+ * second, and how many items fit on the screen.
+ *
+ * The velocity is smoothed over recent scroll events and decays to zero
+ * once the list stops.
+ */
+class ScrollVelocityTracker(
+        private val layoutManager: LinearLayoutManager
+) : RecyclerView.OnScrollListener() {
+    companion object {
+        private val VELOCITY_WEIGHT = 0.3
+        private val IDLE_MILLIS = 500L
+    }
+
+    private var lastPosition = RecyclerView.NO_POSITION
+    private var lastScrolledAt = 0L
+    private var smoothedVelocity = 0.0
+
+    val itemsPerSecond: Double
+        get() {
+            if (SystemClock.elapsedRealtime() - this.lastScrolledAt > IDLE_MILLIS) {
+                return 0.0
+            }
+
+            return this.smoothedVelocity
+        }
+
+    val viewportCapacity: Int
+        get() = this.layoutManager.childCount
+
+    override fun onScrolled(recyclerView: RecyclerView?, dx: Int, dy: Int) {
+        val position = this.layoutManager.findFirstVisibleItemPosition()
+        val now = SystemClock.elapsedRealtime()
+        if (position == RecyclerView.NO_POSITION) {
+            return
+        }
+
+        val elapsed = now - this.lastScrolledAt
+        if (this.lastPosition == RecyclerView.NO_POSITION || elapsed > IDLE_MILLIS) {
+            this.smoothedVelocity = 0.0
+        } else if (elapsed > 0) {
+            val velocity = Math.abs(position - this.lastPosition) * 1000.0 / elapsed
+            this.smoothedVelocity += VELOCITY_WEIGHT * (velocity - this.smoothedVelocity)
+        }
+
+        this.lastPosition = position
+        this.lastScrolledAt = now
+    }
+}
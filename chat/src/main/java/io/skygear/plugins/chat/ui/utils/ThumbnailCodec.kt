@@ -0,0 +1,130 @@
+package io.skygear.plugins.chat.ui.utils
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.util.Base64
+import java.io.ByteArrayOutputStream
+
+/**
+ * ThumbnailCodec encodes image previews stored in message metadata.
+ */
+interface ThumbnailCodec {
+    /**
+     * The format name saved along with the thumbnail.
+     */
+    val format: String
+
+    fun encode(bitmap: Bitmap): String
+
+    fun decode(encoded: String): Bitmap?
+}
+
+/**
+ * The legacy codec, Base64 encoded JPEG.
+ */
+class JpegThumbnailCodec(private val quality: Int = 70) : ThumbnailCodec {
+    override val format = "jpeg"
+
+    override fun encode(bitmap: Bitmap): String {
+        val stream = ByteArrayOutputStream()
+        bitmap.compress(Bitmap.CompressFormat.JPEG, this.quality, stream)
+        return Base64.encodeToString(stream.toByteArray(), Base64.NO_WRAP)
+    }
+
+    override fun decode(encoded: String): Bitmap? = decodeBase64Bitmap(encoded)
+}
+
+/**
+ * A tiny, low quality WebP preview, meant to be shown blurred while the
+ * image is loading. It is a fraction of the size of the JPEG thumbnail and
+ * still readable by clients that only know about JPEG thumbnails, since
+ * they decode with BitmapFactory.
+ */
+class WebPThumbnailCodec(
+        private val maxSize: Int = WebPThumbnailCodec.DefaultMaxSize,
+        private val quality: Int = WebPThumbnailCodec.DefaultQuality
+) : ThumbnailCodec {
+    companion object {
+        val DefaultMaxSize = 32
+        val DefaultQuality = 40
+    }
+
+    override val format = "webp"
+
+    override fun encode(bitmap: Bitmap): String {
+        val longerSide = Math.max(bitmap.width, bitmap.height)
+        val scaled = if (longerSide > this.maxSize) {
+            val ratio = this.maxSize.toDouble() / longerSide
+            Bitmap.createScaledBitmap(
+                    bitmap,
+                    Math.max(1, (bitmap.width * ratio).toInt()),
+                    Math.max(1, (bitmap.height * ratio).toInt()),
+                    true
+            )
+        } else {
+            bitmap
+        }
+
+        val stream = ByteArrayOutputStream()
+        scaled.compress(Bitmap.CompressFormat.WEBP, this.quality, stream)
+        if (scaled !== bitmap) {
+            scaled.recycle()
+        }
+
+        return Base64.encodeToString(stream.toByteArray(), Base64.NO_WRAP)
+    }
+
+    override fun decode(encoded: String): Bitmap? = decodeBase64Bitmap(encoded)
+}
+
+/**
+ * The registry of thumbnail codecs.
+ */
+object ThumbnailCodecs {
+    /**
+     * The metadata field name of the thumbnail.
+     */
+    val ThumbnailField = "thumbnail"
+
+    /**
+     * The metadata field name of the thumbnail format, absent for legacy JPEG thumbnails.
+     */
+    val FormatField = "thumbnail_format"
+
+    private val legacyCodec = JpegThumbnailCodec()
+    private val codecs = hashMapOf<String, ThumbnailCodec>(
+            legacyCodec.format to legacyCodec
+    )
+
+    /**
+     * The codec for encoding new thumbnails.
+     */
+    var defaultCodec: ThumbnailCodec = WebPThumbnailCodec()
+        set(value) {
+            this.register(value)
+            field = value
+        }
+
+    init {
+        this.register(this.defaultCodec)
+    }
+
+    fun register(codec: ThumbnailCodec) {
+        this.codecs[codec.format] = codec
+    }
+
+    fun codecFor(format: String?): ThumbnailCodec =
+            format?.let { this.codecs[it] } ?: this.legacyCodec
+
+    fun decode(format: String?, encoded: String): Bitmap? = this.codecFor(format).decode(encoded)
+}
+
+private fun decodeBase64Bitmap(encoded: String): Bitmap? {
+    val bytes = try {
+        Base64.decode(encoded, Base64.DEFAULT)
+    } catch (e: IllegalArgumentException) {
+        return null
+    }
+
+    return BitmapFactory.decodeByteArray(bytes, 0, bytes.size)
+}
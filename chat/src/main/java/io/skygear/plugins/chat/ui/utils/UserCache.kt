@@ -2,9 +2,11 @@ package io.skygear.plugins.chat.ui.utils
 
 import android.util.Log
 import io.skygear.plugins.chat.ChatContainer
+import io.skygear.plugins.chat.ChatRequest
 import io.skygear.plugins.chat.ChatUser
+import io.skygear.plugins.chat.GetCallback
 import io.skygear.plugins.chat.ui.model.User
-import io.skygear.skygear.*
+import io.skygear.skygear.Container
 import java.util.*
 
 class UserCache(val skygear: Container, val skygearChat: ChatContainer) {
@@ -32,43 +34,38 @@ class UserCache(val skygear: Container, val skygearChat: ChatContainer) {
     fun getUsers(
             userIDs: List<String>,
             callback: ((users: Map<String, User>) -> Unit)?
-    ) {
-        val invokeCallback = {
-            callback?.let { cb ->
-                val users = HashMap<String, User>()
-                userIDs.forEach { perID ->
-                    this.cacheMap[perID]?.let { theUser ->
-                        users[perID] = theUser
-                    }
+    ): ChatRequest {
+        val collectUsers = {
+            val users = HashMap<String, User>()
+            userIDs.forEach { perID ->
+                this.cacheMap[perID]?.let { theUser ->
+                    users[perID] = theUser
                 }
-
-                cb(users)
             }
+
+            users
         }
 
         val filtered = userIDs.filter { !this.cacheMap.containsKey(it) }
         if (filtered.isEmpty()) {
-            invokeCallback()
-            return
+            callback?.invoke(collectUsers())
+            return ChatRequest.finished()
         }
 
-        val q = Query("user").contains("_id", filtered)
-        this.skygear.publicDatabase.query(q, object: RecordQueryResponseHandler(){
-            override fun onQueryError(error: Error?) {
-                Log.w(TAG, "Failed to query users: ${error?.message}")
-            }
-
-            override fun onQuerySuccess(records: Array<out Record>?) {
-                records?.map { ChatUser.fromJson(it.toJson()) }
-                        ?.map { User(it) }
+        return this.skygearChat.getChatUsers(filtered, object: GetCallback<List<ChatUser>> {
+            override fun onSucc(users: List<ChatUser>?) {
+                // still cache the users for other screens
+                users?.map { User(it) }
                         ?.forEach { this@UserCache.cache(it) }
-                invokeCallback()
+                callback?.invoke(collectUsers())
             }
 
+            override fun onFail(failReason: String?) {
+                Log.w(TAG, "Failed to query users: $failReason")
+            }
         })
     }
 
-    fun getUser(userID: String, callback: ((user: User?) -> Unit)?) {
-        this.getUsers(listOf(userID)) { users -> callback?.invoke(users.get(userID)) }
-    }
+    fun getUser(userID: String, callback: ((user: User?) -> Unit)?): ChatRequest =
+            this.getUsers(listOf(userID)) { users -> callback?.invoke(users.get(userID)) }
 }
\ No newline at end of file
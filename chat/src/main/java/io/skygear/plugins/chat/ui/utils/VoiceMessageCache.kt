@@ -0,0 +1,152 @@
+package io.skygear.plugins.chat.ui.utils
+
+import android.content.Context
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import io.skygear.plugins.chat.ui.model.VoiceMessage
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.net.URL
+import java.util.*
+import java.util.concurrent.Executors
+
+/**
+ * VoiceMessageCache keeps voice message attachments on disk, keyed by asset
+ * name, and evicts the least recently used files when the cache is larger
+ * than the size limit.
+ */
+class VoiceMessageCache(
+        context: Context,
+        private val maxSizeInBytes: Long = VoiceMessageCache.DefaultMaxSizeInBytes
+) {
+    companion object {
+        private val TAG = VoiceMessageCache::class.java.canonicalName
+        private val CacheDirName = "voice-messages"
+        private var sharedInstance: VoiceMessageCache? = null
+
+        val DefaultMaxSizeInBytes = 20L * 1024 * 1024
+
+        fun getInstance(context: Context): VoiceMessageCache {
+            if (this.sharedInstance == null) {
+                this.sharedInstance = VoiceMessageCache(context.applicationContext)
+            }
+
+            return this.sharedInstance as VoiceMessageCache
+        }
+    }
+
+    private val cacheDir = File(context.cacheDir, VoiceMessageCache.CacheDirName)
+    private val executor = Executors.newSingleThreadExecutor()
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val pendingCallbacks = HashMap<String, MutableList<(file: File?) -> Unit>>()
+
+    /**
+     * Gets the cached file of a voice message, null if it is not cached.
+     */
+    fun getCachedFile(msg: VoiceMessage): File? {
+        val file = this.fileFor(msg)
+        if (!file.exists()) {
+            return null
+        }
+
+        // mark as recently used
+        file.setLastModified(System.currentTimeMillis())
+        return file
+    }
+
+    /**
+     * Downloads the voice messages in background if they are not cached yet.
+     */
+    fun prefetch(msgs: List<VoiceMessage>) {
+        msgs.forEach { this.fetch(it, null) }
+    }
+
+    /**
+     * Gets the cached file of a voice message, downloading it if needed.
+     * The callback is invoked on the main thread.
+     */
+    fun fetch(msg: VoiceMessage, callback: ((file: File?) -> Unit)?) {
+        this.getCachedFile(msg)?.let { file ->
+            callback?.invoke(file)
+            return
+        }
+
+        val key = this.keyFor(msg)
+        val url = msg.attachmentUrl
+        synchronized(this.pendingCallbacks) {
+            val callbacks = this.pendingCallbacks[key]
+            if (callbacks != null) {
+                // already downloading
+                callback?.let { callbacks.add(it) }
+                return
+            }
+
+            this.pendingCallbacks[key] = callback?.let { mutableListOf(it) } ?: mutableListOf()
+        }
+
+        val file = this.fileFor(msg)
+        this.executor.execute {
+            val result = if (this.download(url, file)) file else null
+            if (result != null) {
+                this.trim()
+            }
+
+            val callbacks = synchronized(this.pendingCallbacks) {
+                this.pendingCallbacks.remove(key)
+            }
+            if (callbacks != null && callbacks.isNotEmpty()) {
+                this.mainHandler.post { callbacks.forEach { it(result) } }
+            }
+        }
+    }
+
+    private fun keyFor(msg: VoiceMessage)
+            = msg.attachment.name.replace(Regex("[^A-Za-z0-9._-]"), "_")
+
+    private fun fileFor(msg: VoiceMessage) = File(this.cacheDir, this.keyFor(msg))
+
+    private fun download(url: String, file: File): Boolean {
+        val tmpFile = File(this.cacheDir, "${file.name}.download")
+        var connection: HttpURLConnection? = null
+        try {
+            this.cacheDir.mkdirs()
+            connection = URL(url).openConnection() as HttpURLConnection
+            if (connection.responseCode != HttpURLConnection.HTTP_OK) {
+                Log.w(TAG, "Failed to download voice message: HTTP ${connection.responseCode}")
+                return false
+            }
+
+            connection.inputStream.use { input ->
+                FileOutputStream(tmpFile).use { output -> input.copyTo(output) }
+            }
+
+            return tmpFile.renameTo(file)
+        } catch (e: IOException) {
+            Log.w(TAG, "Failed to download voice message: $e")
+            return false
+        } finally {
+            connection?.disconnect()
+            tmpFile.delete()
+        }
+    }
+
+    private fun trim() {
+        val files = this.cacheDir.listFiles()
+                ?.filter { !it.name.endsWith(".download") }
+                ?.sortedBy { it.lastModified() }
+                ?: return
+
+        var totalSize = files.map { it.length() }.sum()
+        files.forEach { file ->
+            if (totalSize <= this.maxSizeInBytes) {
+                return
+            }
+
+            totalSize -= file.length()
+            file.delete()
+        }
+    }
+}
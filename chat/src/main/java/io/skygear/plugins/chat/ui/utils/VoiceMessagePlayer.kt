@@ -3,18 +3,29 @@ package io.skygear.plugins.chat.ui.utils
 import android.content.Context
 import android.media.MediaPlayer
 import android.media.MediaPlayer.*
+import android.util.Log
 import io.skygear.plugins.chat.ui.model.VoiceMessage
+import java.io.IOException
 
-class VoiceMessagePlayer(val context: Context) {
+class VoiceMessagePlayer(
+        val context: Context,
+        val cache: VoiceMessageCache = VoiceMessageCache.getInstance(context),
+        val pool: MediaPlayerPool = MediaPlayerPool()
+) {
     companion object {
         private val TAG = VoiceMessagePlayer::class.java.canonicalName
     }
     private var mediaPlayer: MediaPlayer? = null
+    private var nextPlayer: PreparingPlayer? = null
 
     var messageStateChangeListener: OnMessageStateChangeListener? = null
     var playerErrorListener: OnPlayerErrorListener? = null
     var message: VoiceMessage? = null
 
+    init {
+        this.pool.warmUp()
+    }
+
     fun play() {
         this.message?.let { msg ->
             if (msg.state == VoiceMessage.State.PAUSED) {
@@ -25,14 +36,28 @@ class VoiceMessagePlayer(val context: Context) {
                 return
             }
 
-            this.mediaPlayer = MediaPlayer()
-            this.mediaPlayer?.setDataSource(msg.attachmentUrl)
-            this.mediaPlayer?.setOnCompletionListener {
+            // e.g. the player of the message when it is replayed after finishing
+            this.mediaPlayer?.let { this.pool.recycle(it) }
+            this.mediaPlayer = null
+
+            val preparing = this.nextPlayer?.let { if (it.messageId == msg.id) it else null }
+            if (preparing != null) {
+                this.nextPlayer = null
+            }
+
+            val player = preparing?.player ?: this.pool.acquire()
+            if (preparing == null && !this.setDataSource(player, msg)) {
+                this.pool.recycle(player)
+                return
+            }
+            this.mediaPlayer = player
+
+            player.setOnCompletionListener {
                 msg.state = VoiceMessage.State.INITIAL
                 this.messageStateChangeListener?.onVoiceMessageStateChanged(msg)
             }
 
-            this.mediaPlayer?.setOnErrorListener { mp, what, extra ->
+            player.setOnErrorListener { mp, what, extra ->
                 this@VoiceMessagePlayer.playerErrorListener?.let { listener ->
                     when (what) {
                         MEDIA_ERROR_SERVER_DIED -> Error(MEDIA_ERROR_SERVER_DIED, "Server Error")
@@ -43,13 +68,53 @@ class VoiceMessagePlayer(val context: Context) {
                 false
             }
 
-            this.mediaPlayer?.setOnPreparedListener { player ->
-                player.start()
+            val startPlayer = { p: MediaPlayer ->
+                p.start()
                 msg.state = VoiceMessage.State.PLAYING
                 this@VoiceMessagePlayer.messageStateChangeListener?.onVoiceMessageStateChanged(msg)
             }
-            this.mediaPlayer?.prepareAsync()
+
+            when {
+                preparing == null -> {
+                    player.setOnPreparedListener { startPlayer(it) }
+                    player.prepareAsync()
+                }
+                preparing.isPrepared -> startPlayer(player)
+                // still preparing ahead, start as soon as it is ready
+                else -> player.setOnPreparedListener { startPlayer(it) }
+            }
+        }
+    }
+
+    /**
+     * Prepares a player for the voice message that is likely to be played next.
+     */
+    fun prepareAhead(msg: VoiceMessage?) {
+        if (msg == null || msg.id == this.message?.id || msg.id == this.nextPlayer?.messageId) {
+            return
+        }
+
+        this.nextPlayer?.let { this.pool.recycle(it.player) }
+        this.nextPlayer = null
+
+        val player = this.pool.acquire()
+        if (!this.setDataSource(player, msg)) {
+            this.pool.recycle(player)
+            return
+        }
+
+        val preparing = PreparingPlayer(msg.id, player)
+        player.setOnPreparedListener { preparing.isPrepared = true }
+        player.setOnErrorListener { _, _, _ ->
+            if (this@VoiceMessagePlayer.nextPlayer === preparing) {
+                this@VoiceMessagePlayer.nextPlayer = null
+                this@VoiceMessagePlayer.pool.recycle(player)
+            }
+
+            true
         }
+        this.nextPlayer = preparing
+        player.prepareAsync()
     }
 
     fun pause() {
@@ -63,8 +128,7 @@ class VoiceMessagePlayer(val context: Context) {
 
     fun stop() {
         this.message?.let { msg ->
-            this.mediaPlayer?.stop()
-            this.mediaPlayer?.release()
+            this.mediaPlayer?.let { this.pool.recycle(it) }
             this.mediaPlayer = null
 
             msg.state = VoiceMessage.State.INITIAL
@@ -74,6 +138,39 @@ class VoiceMessagePlayer(val context: Context) {
         this.message = null
     }
 
+    /**
+     * Releases all native players, the player should not be used afterwards.
+     */
+    fun release() {
+        this.stop()
+
+        this.nextPlayer?.player?.release()
+        this.nextPlayer = null
+        this.pool.releaseAll()
+    }
+
+    private fun setDataSource(player: MediaPlayer, msg: VoiceMessage): Boolean {
+        try {
+            val cachedFile = this.cache.getCachedFile(msg)
+            if (cachedFile != null) {
+                player.setDataSource(cachedFile.absolutePath)
+            } else {
+                // stream this time and keep a copy for replay
+                player.setDataSource(msg.attachmentUrl)
+                this.cache.prefetch(listOf(msg))
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Failed to set voice message data source: $e")
+            return false
+        }
+
+        return true
+    }
+
+    private class PreparingPlayer(val messageId: String, val player: MediaPlayer) {
+        var isPrepared = false
+    }
+
     class Error(val code: Int, message: String): java.lang.Error(message)
 
     interface OnMessageStateChangeListener {
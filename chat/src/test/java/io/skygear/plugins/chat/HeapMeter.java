@@ -0,0 +1,48 @@
+package io.skygear.plugins.chat;
+
+
+/**
+ * Measures the heap retained by objects for benchmarks.
+ *
+ * The figures are approximate, the benchmarks compare forms of the same
+ * data measured the same way rather than relying on absolute numbers.
+ */
+final class HeapMeter {
+    private HeapMeter() {
+    }
+
+    /**
+     * Gets the used heap after collecting garbage.
+     *
+     * @return the used heap in bytes
+     */
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            // keep the lowest reading, a collection may be in progress
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+
+        return used;
+    }
+
+    /**
+     * Prints a benchmark result.
+     *
+     * @param name  the benchmark name
+     * @param value the value
+     * @param unit  the unit
+     */
+    static void report(String name, double value, String unit) {
+        System.out.println(String.format("%-48s %12.1f %s", name, value, unit));
+    }
+}
@@ -0,0 +1,115 @@
+package io.skygear.plugins.chat;
+
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.skygear.skygear.Record;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the heap retained by 500 conversations and 10k messages with
+ * interned IDs, against conversations keeping the IDs of each response.
+ */
+public class IdInterningBenchmark {
+    private static final int CONVERSATION_COUNT = 500;
+    private static final int PARTICIPANT_COUNT = 50;
+    private static final int USER_COUNT = 200;
+    private static final int MESSAGE_COUNT = 10000;
+
+    @Test
+    public void internedConversationsRetainLessThanCopies() throws JSONException {
+        // parse from text, so that every response has its own ID strings
+        List<String> texts = makeConversationTexts();
+
+        long baseline = HeapMeter.usedHeap();
+        List<Object> copies = new ArrayList<>(CONVERSATION_COUNT * 2);
+        for (String eachText : texts) {
+            Record record = Record.fromJson(new JSONObject(eachText));
+            JSONArray participantIds = (JSONArray) record.get(Conversation.PARTICIPANT_IDS_KEY);
+            Set<String> ids = new HashSet<>();
+            for (int i = 0; i < participantIds.length(); i++) {
+                ids.add(participantIds.getString(i));
+            }
+            copies.add(record);
+            copies.add(ids);
+        }
+        long copyBytes = HeapMeter.usedHeap() - baseline;
+
+        baseline = HeapMeter.usedHeap();
+        List<Conversation> conversations = new ArrayList<>(CONVERSATION_COUNT);
+        for (String eachText : texts) {
+            conversations.add(Conversation.fromJson(new JSONObject(eachText)));
+        }
+        long internedBytes = HeapMeter.usedHeap() - baseline;
+
+        baseline = HeapMeter.usedHeap();
+        List<Message> messages = new ArrayList<>(MESSAGE_COUNT);
+        for (String eachText : makeMessageTexts()) {
+            messages.add(Message.fromJson(new JSONObject(eachText)));
+        }
+        long messageBytes = HeapMeter.usedHeap() - baseline;
+
+        HeapMeter.report("conversations, IDs per response", copyBytes / 1024.0, "KB");
+        HeapMeter.report("conversations, interned IDs", internedBytes / 1024.0, "KB");
+        HeapMeter.report("messages, interned IDs", messageBytes / 1024.0, "KB");
+
+        assertTrue(copies.size() == conversations.size() * 2 && messages.size() == MESSAGE_COUNT);
+        assertTrue(
+                "interned conversations retain " + internedBytes + " bytes, copies " + copyBytes,
+                internedBytes < copyBytes
+        );
+    }
+
+    private static List<String> makeConversationTexts() throws JSONException {
+        List<String> texts = new ArrayList<>(CONVERSATION_COUNT);
+        for (int i = 0; i < CONVERSATION_COUNT; i++) {
+            JSONArray participantIds = new JSONArray();
+            for (int j = 0; j < PARTICIPANT_COUNT; j++) {
+                participantIds.put(userId(i + j));
+            }
+            JSONArray adminIds = new JSONArray();
+            adminIds.put(userId(i));
+
+            JSONObject json = new JSONObject();
+            json.put("_id", "conversation/conversation-" + i);
+            json.put("_ownerID", userId(i));
+            json.put("title", "Conversation " + i);
+            json.put(Conversation.PARTICIPANT_IDS_KEY, participantIds);
+            json.put(Conversation.ADMIN_IDS_KEY, adminIds);
+            texts.add(json.toString());
+        }
+
+        return texts;
+    }
+
+    private static List<String> makeMessageTexts() throws JSONException {
+        List<String> texts = new ArrayList<>(MESSAGE_COUNT);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            JSONObject conversation = new JSONObject();
+            conversation.put("$type", "ref");
+            conversation.put("$id", "conversation/conversation-" + (i % CONVERSATION_COUNT));
+
+            JSONObject json = new JSONObject();
+            json.put("_id", "message/message-" + i);
+            json.put("_ownerID", userId(i));
+            json.put("conversation", conversation);
+            json.put("body", "Message body number " + i);
+            texts.add(json.toString());
+        }
+
+        return texts;
+    }
+
+    private static String userId(int index) {
+        return "8f1a2b3c-4d5e-6f70-8192-a3b4c5d6e7f8-" + (index % USER_COUNT);
+    }
+}
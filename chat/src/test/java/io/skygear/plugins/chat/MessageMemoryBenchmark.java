@@ -0,0 +1,91 @@
+package io.skygear.plugins.chat;
+
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.skygear.skygear.Record;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the heap retained by a page of messages in the compact form,
+ * against messages backed by a Skygear Record as before.
+ */
+public class MessageMemoryBenchmark {
+    private static final int MESSAGE_COUNT = 5000;
+    private static final int THUMBNAIL_EVERY = 10;
+
+    @Test
+    public void compactMessagesRetainLessThanRecords() throws JSONException {
+        List<JSONObject> jsons = makeMessageJsons();
+
+        long baseline = HeapMeter.usedHeap();
+        List<Message> compactMessages = new ArrayList<>(MESSAGE_COUNT);
+        for (JSONObject eachJson : jsons) {
+            compactMessages.add(Message.fromJson(eachJson));
+        }
+        long compactBytes = HeapMeter.usedHeap() - baseline;
+
+        baseline = HeapMeter.usedHeap();
+        List<Message> recordMessages = new ArrayList<>(MESSAGE_COUNT);
+        for (JSONObject eachJson : jsons) {
+            recordMessages.add(new Message(Record.fromJson(eachJson)));
+        }
+        long recordBytes = HeapMeter.usedHeap() - baseline;
+
+        HeapMeter.report("compact message", (double) compactBytes / MESSAGE_COUNT, "bytes/message");
+        HeapMeter.report("record message", (double) recordBytes / MESSAGE_COUNT, "bytes/message");
+
+        // list accessors must not build the record
+        for (Message eachMessage : compactMessages) {
+            eachMessage.getBody();
+            eachMessage.getCreatedTime();
+            eachMessage.getStatus();
+            assertTrue(!eachMessage.isMaterialized());
+        }
+        assertTrue(compactMessages.size() == recordMessages.size());
+        assertTrue(
+                "compact form retains " + compactBytes + " bytes, record form " + recordBytes,
+                compactBytes < recordBytes
+        );
+    }
+
+    private static List<JSONObject> makeMessageJsons() throws JSONException {
+        StringBuilder thumbnail = new StringBuilder();
+        for (int i = 0; i < 2048; i++) {
+            thumbnail.append((char) ('A' + i % 26));
+        }
+
+        List<JSONObject> jsons = new ArrayList<>(MESSAGE_COUNT);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            JSONObject conversation = new JSONObject();
+            conversation.put("$type", "ref");
+            conversation.put("$id", "conversation/conversation-" + (i % 20));
+
+            JSONObject json = new JSONObject();
+            json.put("_id", "message/message-" + i);
+            json.put("_ownerID", "user-" + (i % 50));
+            json.put("_created_by", "user-" + (i % 50));
+            json.put("_updated_by", "user-" + (i % 50));
+            json.put("_created_at", "2017-05-01T10:00:00.000Z");
+            json.put("_updated_at", "2017-05-01T10:00:00.000Z");
+            json.put("conversation", conversation);
+            json.put("body", "Message body number " + i);
+            json.put("message_status", "delivered");
+            json.put("revision", 1);
+            if (i % THUMBNAIL_EVERY == 0) {
+                JSONObject metadata = new JSONObject();
+                metadata.put("thumbnail", thumbnail.toString());
+                json.put("metadata", metadata);
+            }
+            jsons.add(json);
+        }
+
+        return jsons;
+    }
+}
@@ -0,0 +1,125 @@
+package io.skygear.plugins.chat;
+
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures applying typing events of a conversation with 150 users typing
+ * at once, against parsing every user of every event.
+ */
+public class TypingTrackerBenchmark {
+    private static final int TYPIST_COUNT = 150;
+    private static final int CHANGES_PER_EVENT = 5;
+    private static final int EVENT_COUNT = 2000;
+    private static final int WARM_UP_EVENT_COUNT = 500;
+
+    @Test
+    public void trackerReportsOnlyChangedTypists() throws JSONException {
+        List<JSONObject> events = makeEvents(WARM_UP_EVENT_COUNT + EVENT_COUNT);
+        final int[] reportedCount = new int[1];
+        TypingTracker tracker = new TypingTracker(
+                TypingTracker.DEFAULT_EXPIRY_MILLIS,
+                new TypingTracker.Listener() {
+                    @Override
+                    public void onTypingChanged(Map<String, Typing> changes) {
+                        reportedCount[0] += changes.size();
+                    }
+                });
+
+        for (int i = 0; i < WARM_UP_EVENT_COUNT; i++) {
+            tracker.apply(events.get(i));
+            parseAll(events.get(i));
+        }
+
+        reportedCount[0] = 0;
+        long start = System.nanoTime();
+        for (int i = WARM_UP_EVENT_COUNT; i < events.size(); i++) {
+            tracker.apply(events.get(i));
+        }
+        long trackerNanos = System.nanoTime() - start;
+
+        int parsedCount = 0;
+        start = System.nanoTime();
+        for (int i = WARM_UP_EVENT_COUNT; i < events.size(); i++) {
+            parsedCount += parseAll(events.get(i)).size();
+        }
+        long parseNanos = System.nanoTime() - start;
+
+        report("typing tracker, " + TYPIST_COUNT + " typists", trackerNanos);
+        report("parse every typist, " + TYPIST_COUNT + " typists", parseNanos);
+
+        assertEquals(EVENT_COUNT * CHANGES_PER_EVENT, reportedCount[0]);
+        assertEquals(EVENT_COUNT * TYPIST_COUNT, parsedCount);
+        assertTrue("The tracker is slower than parsing every typist", trackerNanos < parseNanos);
+    }
+
+    private static void report(String name, long nanos) {
+        System.out.println(String.format("%-48s %12.1f us/event", name, nanos / 1000.0 / EVENT_COUNT));
+    }
+
+    /**
+     * Makes typing events carrying the states of all typists, of which a
+     * few change in every event.
+     */
+    private static List<JSONObject> makeEvents(int count) throws JSONException {
+        long time = new DateTime(2017, 5, 1, 10, 0, DateTimeZone.UTC).getMillis();
+        String[] states = new String[TYPIST_COUNT];
+        String[] times = new String[TYPIST_COUNT];
+        for (int i = 0; i < TYPIST_COUNT; i++) {
+            states[i] = "begin";
+            times[i] = new DateTime(time, DateTimeZone.UTC).toString();
+        }
+
+        List<JSONObject> events = new ArrayList<>(count);
+        int nextTypist = 0;
+        for (int i = 0; i < count; i++) {
+            time += 100;
+            for (int j = 0; j < CHANGES_PER_EVENT; j++) {
+                states[nextTypist] = "begin".equals(states[nextTypist]) ? "pause" : "begin";
+                times[nextTypist] = new DateTime(time, DateTimeZone.UTC).toString();
+                nextTypist = (nextTypist + 1) % TYPIST_COUNT;
+            }
+
+            JSONObject event = new JSONObject();
+            for (int j = 0; j < TYPIST_COUNT; j++) {
+                JSONObject typing = new JSONObject();
+                typing.put("event", states[j]);
+                typing.put("at", times[j]);
+                event.put("user/user-" + j, typing);
+            }
+            events.add(event);
+        }
+
+        return events;
+    }
+
+    private static Map<String, Typing> parseAll(JSONObject event) {
+        Map<String, Typing> typings = new HashMap<>();
+        Iterator<String> userKeys = event.keys();
+        while (userKeys.hasNext()) {
+            String eachUserKey = userKeys.next();
+            JSONObject typing = event.optJSONObject(eachUserKey);
+            String userId = eachUserKey.split("/")[1];
+            typings.put(userId, new Typing(
+                    userId,
+                    Typing.State.fromName(typing.optString("event")),
+                    TypingSubscriptionCallback.dateTimeFormatter.parseDateTime(typing.optString("at")).toDate()
+            ));
+        }
+
+        return typings;
+    }
+}
@@ -0,0 +1,99 @@
+package io.skygear.plugins.chat;
+
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Expires typing states by driving the tracker with a controlled clock.
+ */
+public class TypingTrackerTest {
+    private final long[] now = new long[]{1000000};
+    private final List<Map<String, Typing>> reported = new ArrayList<>();
+    private TypingTracker tracker;
+
+    @Before
+    public void setUp() {
+        this.tracker = new TypingTracker(
+                TypingTracker.DEFAULT_EXPIRY_MILLIS,
+                new TypingTracker.Clock() {
+                    @Override
+                    public long now() {
+                        return TypingTrackerTest.this.now[0];
+                    }
+                },
+                new TypingTracker.Listener() {
+                    @Override
+                    public void onTypingChanged(Map<String, Typing> changes) {
+                        TypingTrackerTest.this.reported.add(changes);
+                    }
+                });
+    }
+
+    @Test
+    public void staleBeginExpiresToFinished() throws JSONException {
+        this.tracker.apply(event("user/alice", "begin"));
+        assertEquals(1, this.reported.size());
+        assertEquals(Typing.State.BEGIN, this.reported.get(0).get("alice").getState());
+
+        this.now[0] += TypingTracker.DEFAULT_EXPIRY_MILLIS - TypingTracker.TICK_MILLIS;
+        this.tracker.tick();
+        assertEquals(1, this.reported.size());
+
+        this.now[0] += 2 * TypingTracker.TICK_MILLIS;
+        this.tracker.tick();
+        assertEquals(2, this.reported.size());
+        assertEquals(Typing.State.FINISHED, this.reported.get(1).get("alice").getState());
+    }
+
+    @Test
+    public void laterBeginPostponesExpiry() throws JSONException {
+        this.tracker.apply(event("user/alice", "begin"));
+
+        this.now[0] += TypingTracker.DEFAULT_EXPIRY_MILLIS / 2;
+        this.tracker.tick();
+        this.tracker.apply(event("user/alice", "begin", "2017-05-01T10:00:05Z"));
+
+        this.now[0] += TypingTracker.DEFAULT_EXPIRY_MILLIS / 2 + TypingTracker.TICK_MILLIS;
+        this.tracker.tick();
+        assertEquals(Typing.State.BEGIN, this.reported.get(this.reported.size() - 1).get("alice").getState());
+
+        this.now[0] += TypingTracker.DEFAULT_EXPIRY_MILLIS / 2;
+        this.tracker.tick();
+        assertEquals(Typing.State.FINISHED, this.reported.get(this.reported.size() - 1).get("alice").getState());
+    }
+
+    @Test
+    public void pausedStateDoesNotExpire() throws JSONException {
+        this.tracker.apply(event("user/alice", "begin"));
+        this.tracker.apply(event("user/alice", "pause"));
+        int reportedCount = this.reported.size();
+
+        this.now[0] += 2 * TypingTracker.DEFAULT_EXPIRY_MILLIS;
+        this.tracker.tick();
+        assertEquals(reportedCount, this.reported.size());
+        assertEquals(Typing.State.PAUSE, this.reported.get(reportedCount - 1).get("alice").getState());
+    }
+
+    private static JSONObject event(String userKey, String state) throws JSONException {
+        return event(userKey, state, "2017-05-01T10:00:00Z");
+    }
+
+    private static JSONObject event(String userKey, String state, String at) throws JSONException {
+        JSONObject typing = new JSONObject();
+        typing.put("event", state);
+        typing.put("at", at);
+
+        JSONObject event = new JSONObject();
+        event.put(userKey, typing);
+        return event;
+    }
+}
@@ -12,6 +12,7 @@ import android.view.Menu
 import android.view.MenuItem
 import io.skygear.plugins.chat.*
 import io.skygear.plugins.chat.ui.ConversationActivity
+import io.skygear.plugins.chat.ui.utils.DevicePrefetchPolicy
 import io.skygear.skygear.Container
 import io.skygear.skygear.Error
 import io.skygear.skygear.LambdaResponseHandler
@@ -42,10 +43,17 @@ class ConversationsActivity : AppCompatActivity() {
         mAdapter.setOnClickListener {
             c -> showOptions(c)
         }
+
+        // prefetch messages of the top conversations only under good conditions
+        mChatContainer.messagePrefetcher.policy = DevicePrefetchPolicy(this)
     }
 
     override fun onResume() {
         super.onResume()
+        if (mAdapter.itemCount == 0) {
+            // show the last conversation list until the network refresh returns
+            mAdapter.setConversations(mChatContainer.cachedConversations)
+        }
         getAllConversations()
     }
 
@@ -110,6 +118,7 @@ class ConversationsActivity : AppCompatActivity() {
     }
 
     fun logoutSuccess() {
+        mChatContainer.clearCachedData()
         startActivity(Intent(this, MainActivity::class.java))
         finish()
     }
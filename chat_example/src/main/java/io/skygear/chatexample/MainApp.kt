@@ -1,9 +1,22 @@
 package io.skygear.chatexample
 
 import android.text.TextUtils
+import io.skygear.plugins.chat.ChatContainer
+import io.skygear.skygear.Container
 import io.skygear.skygear.SkygearApplication
+import java.io.File
 
 class MainApp() : SkygearApplication() {
+    override fun onCreate() {
+        super.onCreate()
+
+        // restore the warm start snapshot as early as possible
+        ChatContainer.getInstance(
+                Container.defaultContainer(this),
+                File(filesDir, "skygear-chat-snapshot.bin")
+        )
+    }
+
     override fun getSkygearEndpoint(): String? {
         return "https://carmenlau.staging.skygeario.com/"
     }
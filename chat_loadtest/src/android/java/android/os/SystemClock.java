@@ -0,0 +1,21 @@
+package android.os;
+
+
+/**
+ * The subset of the Android SystemClock used by the SDK classes driven
+ * by the load test, on the JVM.
+ */
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    /**
+     * Gets the milliseconds since an arbitrary origin, which never jumps
+     * with the wall clock.
+     *
+     * @return the milliseconds
+     */
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+}
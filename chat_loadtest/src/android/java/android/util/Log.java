@@ -0,0 +1,26 @@
+package android.util;
+
+
+/**
+ * The subset of the Android Log used by the SDK classes driven by the
+ * load test, printing to the standard error.
+ */
+public final class Log {
+    private Log() {
+    }
+
+    public static int w(String tag, String msg) {
+        System.err.println("W/" + tag + ": " + msg);
+        return 0;
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        System.err.println("W/" + tag + ": " + msg + ": " + tr);
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println("E/" + tag + ": " + msg);
+        return 0;
+    }
+}
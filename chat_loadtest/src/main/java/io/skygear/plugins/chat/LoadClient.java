@@ -0,0 +1,322 @@
+package io.skygear.plugins.chat;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A simulated client of the load test, which sends its requests through
+ * the request pipeline of the SDK.
+ *
+ * Page loads are coalesced and scheduled as interactive requests, receipt
+ * lookups go through the receipt cache, and loaded and received messages
+ * are indexed for search, the same way the chat container does. Responses
+ * are parsed on the transport thread and delivered on the delivery
+ * executor of the client.
+ */
+public final class LoadClient {
+    /**
+     * The transport sending lambda calls to the backend.
+     */
+    public interface Transport {
+        /**
+         * Calls a chat lambda.
+         *
+         * @param lambda   the lambda name
+         * @param args     the arguments
+         * @param callback the callback, with the result or the error message
+         */
+        void callLambda(@NonNull String lambda,
+                        @NonNull List<Object> args,
+                        @NonNull GetCallback<JSONObject> callback);
+    }
+
+    private final Transport transport;
+    private final Executor deliveryExecutor;
+    private final RequestScheduler requestScheduler = new RequestScheduler();
+    private final RequestCoalescer requestCoalescer = new RequestCoalescer();
+    private final MessageSearchIndex messageSearchIndex = new MessageSearchIndex();
+    private final ReceiptCache receiptCache;
+
+    private final AtomicLong pageLoadCount = new AtomicLong();
+    private final AtomicLong coalescedPageLoadCount = new AtomicLong();
+    private final AtomicLong receiptLookupCount = new AtomicLong();
+    private final AtomicLong receiptFetchCount = new AtomicLong();
+
+    /**
+     * Instantiates a new load client.
+     *
+     * @param transport        the transport
+     * @param deliveryExecutor the executor delivering results, standing in for the main thread
+     */
+    public LoadClient(@NonNull final Transport transport, @NonNull final Executor deliveryExecutor) {
+        super();
+
+        this.transport = transport;
+        this.deliveryExecutor = deliveryExecutor;
+        this.receiptCache = new ReceiptCache(new ReceiptCache.Source() {
+            @NonNull
+            @Override
+            public Executor getDeliveryExecutor() {
+                return LoadClient.this.deliveryExecutor;
+            }
+
+            @Override
+            public void fetchMessageReceipts(@NonNull String messageId,
+                                             @NonNull GetCallback<List<MessageReceipt>> callback) {
+                LoadClient.this.fetchMessageReceipts(messageId, callback);
+            }
+
+            @Override
+            public void onReceiptsLoaded(@NonNull String messageId, @NonNull List<MessageReceipt> receipts) {
+                // statuses are not tracked by the load test
+            }
+        });
+    }
+
+    /**
+     * Sets how long results of read requests are reused by identical
+     * requests, as the chat container does.
+     *
+     * @param millis the time to live in milliseconds, 0 to disable
+     */
+    public void setReadResponseCacheTTL(final long millis) {
+        this.requestCoalescer.setCacheTTL(millis);
+    }
+
+    /**
+     * Loads a page of messages of a conversation.
+     *
+     * @param conversationId the conversation id
+     * @param limit          the page size
+     * @param before         the ISO 8601 time to load messages before
+     * @param callback       the callback
+     */
+    public void getMessages(@NonNull final String conversationId,
+                            final int limit,
+                            @NonNull final String before,
+                            @Nullable final GetCallback<List<Message>> callback) {
+        this.pageLoadCount.incrementAndGet();
+
+        final List<Object> args = Arrays.<Object>asList(conversationId, limit, before, null);
+        final String requestKey = RequestCoalescer.keyOf("chat:get_messages", args.toArray());
+        if (!this.requestCoalescer.join(requestKey, callback)) {
+            this.coalescedPageLoadCount.incrementAndGet();
+            return;
+        }
+
+        final GetCallback<List<Message>> completion = this.requestCoalescer.completion(requestKey);
+        this.callLambda("chat:get_messages", args, RequestPriority.INTERACTIVE, requestKey, new GetCallback<JSONObject>() {
+            @Override
+            public void onSucc(@Nullable JSONObject result) {
+                if (LoadClient.this.requestCoalescer.isAbandoned(requestKey)) {
+                    LoadClient.this.deliverFailure(completion, ChatRequest.CANCELLED_REASON);
+                    return;
+                }
+
+                JSONArray results = result == null ? null : result.optJSONArray("results");
+                final List<Message> messages = new ArrayList<>(results == null ? 0 : results.length());
+                try {
+                    for (int i = 0; results != null && i < results.length(); i++) {
+                        messages.add(Message.fromJson(results.getJSONObject(i)));
+                    }
+                } catch (JSONException e) {
+                    LoadClient.this.deliverFailure(completion, e.getMessage());
+                    return;
+                }
+
+                LoadClient.this.messageSearchIndex.addMessages(messages);
+                LoadClient.this.deliveryExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        completion.onSucc(messages);
+                    }
+                });
+            }
+
+            @Override
+            public void onFail(@Nullable String failReason) {
+                LoadClient.this.deliverFailure(completion, failReason);
+            }
+        });
+    }
+
+    /**
+     * Loads receipts of messages, from the receipt cache if they are fresh.
+     *
+     * @param messageIds the message ids
+     * @param callback   the callback
+     */
+    public void getReceipts(@NonNull final List<String> messageIds,
+                            @Nullable final GetCallback<Map<String, List<MessageReceipt>>> callback) {
+        this.receiptLookupCount.addAndGet(messageIds.size());
+        this.receiptCache.load(messageIds, callback);
+    }
+
+    /**
+     * Message created or updated event callback, with the message record
+     * of the event.
+     *
+     * @param recordJson the message record
+     * @param isUpdate   true if the message is updated
+     * @return the message
+     * @throws JSONException if the record is malformed
+     */
+    @NonNull
+    public Message onMessageEvent(@NonNull final JSONObject recordJson, final boolean isUpdate)
+            throws JSONException {
+        Message message = Message.fromJson(recordJson);
+        this.messageSearchIndex.addMessage(message);
+        if (isUpdate) {
+            this.receiptCache.onMessageUpdated(message);
+        }
+
+        return message;
+    }
+
+    /**
+     * Searches the messages loaded or received by the client.
+     *
+     * @param query the query
+     * @param limit the maximum number of results
+     * @return the results
+     */
+    @NonNull
+    public List<MessageSearchIndex.Result> search(@NonNull final String query, final int limit) {
+        return this.messageSearchIndex.search(query, null, limit);
+    }
+
+    /**
+     * Gets the number of page loads, including coalesced ones.
+     *
+     * @return the count
+     */
+    public long getPageLoadCount() {
+        return this.pageLoadCount.get();
+    }
+
+    /**
+     * Gets the number of page loads served by an in-flight or cached request.
+     *
+     * @return the count
+     */
+    public long getCoalescedPageLoadCount() {
+        return this.coalescedPageLoadCount.get();
+    }
+
+    /**
+     * Gets the number of messages whose receipts are looked up.
+     *
+     * @return the count
+     */
+    public long getReceiptLookupCount() {
+        return this.receiptLookupCount.get();
+    }
+
+    /**
+     * Gets the number of receipt requests sent.
+     *
+     * @return the count
+     */
+    public long getReceiptFetchCount() {
+        return this.receiptFetchCount.get();
+    }
+
+    /**
+     * Gets the number of indexed messages.
+     *
+     * @return the count
+     */
+    public int getIndexedMessageCount() {
+        return this.messageSearchIndex.size();
+    }
+
+    private void fetchMessageReceipts(@NonNull final String messageId,
+                                      @NonNull final GetCallback<List<MessageReceipt>> callback) {
+        final List<Object> args = Arrays.<Object>asList(messageId);
+        final String requestKey = RequestCoalescer.keyOf("chat:get_receipt", args.toArray());
+        if (!this.requestCoalescer.join(requestKey, callback)) {
+            return;
+        }
+
+        this.receiptFetchCount.incrementAndGet();
+        final GetCallback<List<MessageReceipt>> completion = this.requestCoalescer.completion(requestKey);
+        this.callLambda("chat:get_receipt", args, RequestPriority.BACKGROUND, null, new GetCallback<JSONObject>() {
+            @Override
+            public void onSucc(@Nullable JSONObject result) {
+                if (LoadClient.this.requestCoalescer.isAbandoned(requestKey)) {
+                    LoadClient.this.deliverFailure(completion, ChatRequest.CANCELLED_REASON);
+                    return;
+                }
+
+                final List<MessageReceipt> receipts = new ArrayList<>();
+                try {
+                    JSONArray receiptsJSON = result == null ? new JSONArray() : result.getJSONArray("receipts");
+                    for (int idx = 0; idx < receiptsJSON.length(); idx++) {
+                        receipts.add(MessageReceipt.fromJSON(receiptsJSON.getJSONObject(idx)));
+                    }
+                } catch (JSONException e) {
+                    LoadClient.this.deliverFailure(completion, e.getMessage());
+                    return;
+                }
+
+                LoadClient.this.deliveryExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        completion.onSucc(receipts);
+                    }
+                });
+            }
+
+            @Override
+            public void onFail(@Nullable String failReason) {
+                LoadClient.this.deliverFailure(completion, failReason);
+            }
+        });
+    }
+
+    private void callLambda(@NonNull final String lambda,
+                            @NonNull final List<Object> args,
+                            @NonNull final RequestPriority priority,
+                            @Nullable final String key,
+                            @NonNull final GetCallback<JSONObject> callback) {
+        this.requestScheduler.submit(priority, key, new RequestScheduler.Task() {
+            @Override
+            public void run(@NonNull final Runnable done) {
+                LoadClient.this.transport.callLambda(lambda, args, new GetCallback<JSONObject>() {
+                    @Override
+                    public void onSucc(@Nullable JSONObject result) {
+                        done.run();
+                        callback.onSucc(result);
+                    }
+
+                    @Override
+                    public void onFail(@Nullable String failReason) {
+                        done.run();
+                        callback.onFail(failReason);
+                    }
+                });
+            }
+        });
+    }
+
+    private <T> void deliverFailure(@NonNull final GetCallback<T> callback, @Nullable final String failReason) {
+        this.deliveryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onFail(failReason);
+            }
+        });
+    }
+}
@@ -0,0 +1,1138 @@
+package io.skygear.plugins.chat.loadtest;
+
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory stand-in for a Skygear server with the chat plugin.
+ *
+ * It serves the chat:* lambdas used by the SDK, saving and querying
+ * message and user channel records, asset uploads, and the pubsub fanout
+ * of message and typing events to the user channels of participants.
+ * Responses and events use the JSON shapes the SDK parses.
+ *
+ * Requests are answered asynchronously after the delay of the network
+ * profile, and fail with its failure rate. Each conversation is locked
+ * on its own, so that load spread across conversations scales with
+ * the number of cores.
+ */
+public final class FakeChatBackend {
+    public static final String ERROR_NOT_FOUND = "ResourceNotFound";
+    public static final String ERROR_PERMISSION_DENIED = "PermissionDenied";
+    public static final String ERROR_INVALID_ARGUMENT = "InvalidArgument";
+    public static final String ERROR_NOT_SUPPORTED = "NotSupported";
+    public static final String ERROR_UNAVAILABLE = "ServiceUnavailable";
+
+    private static final String STATUS_DELIVERED = "delivered";
+    private static final String STATUS_SOME_READ = "some_read";
+    private static final String STATUS_ALL_READ = "all_read";
+
+    /**
+     * The callback of a request.
+     */
+    public interface Callback {
+        /**
+         * Request success callback
+         *
+         * @param result the result
+         */
+        void onSuccess(Object result);
+
+        /**
+         * Request error callback
+         *
+         * @param name    the error name
+         * @param message the error message
+         */
+        void onError(String name, String message);
+    }
+
+    /**
+     * The listener of events published to a pubsub channel.
+     */
+    public interface PubsubListener {
+        /**
+         * Event published callback
+         *
+         * @param channel the channel
+         * @param event   the event, with the event type and data
+         */
+        void onEvent(String channel, Map<String, Object> event);
+    }
+
+    private static final ThreadLocal<SimpleDateFormat> ISO_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+
+    private final NetworkProfile profile;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong publishedEventCount = new AtomicLong();
+    private final AtomicLong failedRequestCount = new AtomicLong();
+    private volatile String assetBaseUrl = "http://localhost/files/";
+
+    private final Map<String, ConversationState> conversations = new ConcurrentHashMap<>();
+    private final Map<String, MessageState> messages = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> userConversationIds = new ConcurrentHashMap<>();
+    private final Map<String, String> userChannels = new ConcurrentHashMap<>();
+    private final Map<String, Long> assetSizes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, List<PubsubListener>> channelListeners = new ConcurrentHashMap<>();
+
+    /**
+     * Instantiates a new fake chat backend.
+     *
+     * @param profile     the network profile
+     * @param threadCount the number of threads serving requests
+     */
+    public FakeChatBackend(final NetworkProfile profile, final int threadCount) {
+        super();
+
+        this.profile = profile;
+        final AtomicInteger threadIndex = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(Math.max(1, threadCount), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "fake-chat-backend-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Gets the network profile.
+     *
+     * @return the network profile
+     */
+    public NetworkProfile getProfile() {
+        return this.profile;
+    }
+
+    /**
+     * Sets the URL prefix of uploaded assets.
+     *
+     * @param assetBaseUrl the URL prefix
+     */
+    public void setAssetBaseUrl(final String assetBaseUrl) {
+        this.assetBaseUrl = assetBaseUrl;
+    }
+
+    /**
+     * Gets the number of events delivered to pubsub listeners.
+     *
+     * @return the count
+     */
+    public long getPublishedEventCount() {
+        return this.publishedEventCount.get();
+    }
+
+    /**
+     * Gets the number of requests failed by injection.
+     *
+     * @return the count
+     */
+    public long getFailedRequestCount() {
+        return this.failedRequestCount.get();
+    }
+
+    /**
+     * Stops serving requests and events.
+     */
+    public void shutdown() {
+        this.scheduler.shutdownNow();
+    }
+
+    /**
+     * Registers a user, creating its user channel.
+     *
+     * @param userId the user id
+     * @return the user channel name
+     */
+    public String registerUser(final String userId) {
+        String channel = this.userChannels.get(userId);
+        if (channel == null) {
+            channel = UUID.randomUUID().toString();
+            this.userChannels.put(userId, channel);
+        }
+
+        return channel;
+    }
+
+    /* --- Pubsub --- */
+
+    /**
+     * Subscribes to a pubsub channel.
+     *
+     * @param channel  the channel
+     * @param listener the listener
+     */
+    public void subscribe(final String channel, final PubsubListener listener) {
+        List<PubsubListener> listeners = this.channelListeners.get(channel);
+        if (listeners == null) {
+            listeners = new CopyOnWriteArrayList<>();
+            List<PubsubListener> existing = this.channelListeners.putIfAbsent(channel, listeners);
+            if (existing != null) {
+                listeners = existing;
+            }
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Unsubscribes from a pubsub channel.
+     *
+     * @param channel  the channel
+     * @param listener the listener
+     */
+    public void unsubscribe(final String channel, final PubsubListener listener) {
+        List<PubsubListener> listeners = this.channelListeners.get(channel);
+        if (listeners != null) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Publishes an event to a channel, delivered after a network delay.
+     *
+     * @param channel   the channel
+     * @param eventType the event type
+     * @param data      the event data
+     */
+    public void publish(final String channel, final String eventType, final Object data) {
+        final List<PubsubListener> listeners = this.channelListeners.get(channel);
+        if (listeners == null || listeners.isEmpty()) {
+            return;
+        }
+
+        final Map<String, Object> event = new LinkedHashMap<>();
+        event.put("event", eventType);
+        event.put("data", data);
+        this.runAfter(this.profile.nextDelayMillis(), new Runnable() {
+            @Override
+            public void run() {
+                for (PubsubListener eachListener : listeners) {
+                    FakeChatBackend.this.publishedEventCount.incrementAndGet();
+                    eachListener.onEvent(channel, event);
+                }
+            }
+        });
+    }
+
+    /* --- Requests --- */
+
+    /**
+     * Sends a request of a Skygear action, e.g. a chat lambda or
+     * record:save, on behalf of a user.
+     *
+     * @param userId   the user id
+     * @param action   the action
+     * @param payload  the payload, with "args" for lambdas
+     * @param callback the callback
+     */
+    public void call(final String userId,
+                     final String action,
+                     final Map<String, Object> payload,
+                     final Callback callback) {
+        final long responseDelay = this.profile.nextDelayMillis();
+        this.runAfter(this.profile.nextDelayMillis(), new Runnable() {
+            @Override
+            public void run() {
+                if (FakeChatBackend.this.profile.nextFailure()) {
+                    FakeChatBackend.this.failedRequestCount.incrementAndGet();
+                    FakeChatBackend.this.respondError(
+                            responseDelay, callback, ERROR_UNAVAILABLE, "Injected failure");
+                    return;
+                }
+
+                final Object result;
+                try {
+                    result = FakeChatBackend.this.handle(userId, action, payload);
+                } catch (BackendException e) {
+                    FakeChatBackend.this.respondError(responseDelay, callback, e.name, e.getMessage());
+                    return;
+                } catch (RuntimeException e) {
+                    FakeChatBackend.this.respondError(
+                            responseDelay, callback, ERROR_INVALID_ARGUMENT, String.valueOf(e));
+                    return;
+                }
+
+                FakeChatBackend.this.runAfter(responseDelay, new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSuccess(result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Calls a chat lambda on behalf of a user.
+     *
+     * @param userId   the user id
+     * @param lambda   the lambda name
+     * @param args     the arguments
+     * @param callback the callback
+     */
+    public void callLambda(final String userId,
+                           final String lambda,
+                           final List<Object> args,
+                           final Callback callback) {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("args", args);
+        this.call(userId, lambda, payload, callback);
+    }
+
+    private void respondError(long delay, final Callback callback, final String name, final String message) {
+        this.runAfter(delay, new Runnable() {
+            @Override
+            public void run() {
+                callback.onError(name, message);
+            }
+        });
+    }
+
+    private void runAfter(long delayMillis, Runnable task) {
+        if (delayMillis <= 0) {
+            this.scheduler.execute(task);
+        } else {
+            this.scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Handles an action synchronously.
+     *
+     * @param userId  the user id
+     * @param action  the action
+     * @param payload the payload
+     * @return the result
+     */
+    Object handle(String userId, String action, Map<String, Object> payload) {
+        if (action.startsWith("chat:")) {
+            Object args = payload == null ? null : payload.get("args");
+            return this.handleLambda(userId, action, args instanceof List
+                    ? (List<?>) args
+                    : Collections.emptyList());
+        } else if ("record:save".equals(action)) {
+            return this.saveRecords(userId, listOf(payload.get("records")));
+        } else if ("record:query".equals(action)) {
+            return this.queryRecords(userId, (String) payload.get("record_type"));
+        } else if ("asset:put".equals(action)) {
+            return this.putAsset(payload);
+        }
+
+        throw new BackendException(ERROR_NOT_SUPPORTED, "Unknown action: " + action);
+    }
+
+    private Object handleLambda(String userId, String lambda, List<?> args) {
+        switch (lambda) {
+            case "chat:create_conversation":
+                return this.createConversation(userId, args);
+            case "chat:get_conversation":
+                return singleton("conversation", this.conversationJson(
+                        this.participatingConversation(userId, stringAt(args, 0)), userId, boolAt(args, 1)));
+            case "chat:get_conversations":
+                return this.getConversations(userId, args);
+            case "chat:add_participants":
+            case "chat:remove_participants":
+            case "chat:add_admins":
+            case "chat:remove_admins":
+                return this.updateMembership(userId, lambda, stringAt(args, 0), listOf(args.get(1)));
+            case "chat:leave_conversation":
+                this.leaveConversation(userId, stringAt(args, 0));
+                return new HashMap<String, Object>();
+            case "chat:delete_conversation":
+                this.deleteConversation(userId, stringAt(args, 0));
+                return new HashMap<String, Object>();
+            case "chat:get_messages":
+                return this.getMessages(userId, args);
+            case "chat:get_receipt":
+                return this.getReceipts(userId, stringAt(args, 0));
+            case "chat:mark_as_delivered":
+                this.markMessages(userId, listOf(args.get(0)), false);
+                return new HashMap<String, Object>();
+            case "chat:mark_as_read":
+                this.markMessages(userId, listOf(args.get(0)), true);
+                return new HashMap<String, Object>();
+            case "chat:delete_message":
+                return singleton("message", this.deleteMessage(userId, stringAt(args, 0)));
+            case "chat:total_unread":
+                return this.getTotalUnread(userId);
+            case "chat:typing":
+                this.publishTyping(userId, stringAt(args, 0), stringAt(args, 1), stringAt(args, 2));
+                return new HashMap<String, Object>();
+            default:
+                throw new BackendException(ERROR_NOT_SUPPORTED, "Unknown lambda: " + lambda);
+        }
+    }
+
+    /* --- Conversations --- */
+
+    private Object createConversation(String userId, List<?> args) {
+        Set<String> participantIds = new LinkedHashSet<>();
+        for (Object eachId : listOf(args.get(0))) {
+            participantIds.add((String) eachId);
+        }
+        participantIds.add(userId);
+
+        Map<?, ?> options = args.size() > 3 && args.get(3) instanceof Map ? (Map<?, ?>) args.get(3) : null;
+        boolean isDistinct = options != null && Boolean.TRUE.equals(options.get("distinctByParticipants"));
+        if (isDistinct) {
+            for (ConversationState eachConversation : this.conversations.values()) {
+                synchronized (eachConversation) {
+                    if (eachConversation.isDistinct && eachConversation.participantIds.equals(participantIds)) {
+                        return singleton("conversation", this.conversationJson(eachConversation, userId, false));
+                    }
+                }
+            }
+        }
+
+        ConversationState conversation = new ConversationState(UUID.randomUUID().toString());
+        synchronized (conversation) {
+            conversation.participantIds.addAll(participantIds);
+            conversation.title = args.size() > 1 ? (String) args.get(1) : null;
+            conversation.metadata = args.size() > 2 ? args.get(2) : null;
+            conversation.isDistinct = isDistinct;
+
+            List<?> adminIds = options == null ? null : listOf(options.get("admin_ids"));
+            if (adminIds == null || adminIds.isEmpty()) {
+                conversation.adminIds.addAll(participantIds);
+            } else {
+                for (Object eachId : adminIds) {
+                    conversation.adminIds.add((String) eachId);
+                }
+            }
+        }
+
+        this.conversations.put(conversation.id, conversation);
+        for (String eachId : participantIds) {
+            this.userConversationIdsOf(eachId).add(conversation.id);
+        }
+
+        synchronized (conversation) {
+            return singleton("conversation", this.conversationJson(conversation, userId, false));
+        }
+    }
+
+    private Object getConversations(String userId, List<?> args) {
+        int page = Math.max(1, intAt(args, 0, 1));
+        int pageSize = Math.max(1, intAt(args, 1, 50));
+        boolean includeLastMessage = boolAt(args, 2);
+
+        List<ConversationState> userConversations = new ArrayList<>();
+        for (String eachId : this.userConversationIdsOf(userId)) {
+            ConversationState conversation = this.conversations.get(eachId);
+            if (conversation != null) {
+                userConversations.add(conversation);
+            }
+        }
+        Collections.sort(userConversations, new Comparator<ConversationState>() {
+            @Override
+            public int compare(ConversationState lhs, ConversationState rhs) {
+                long lhsTime = lhs.updatedAt;
+                long rhsTime = rhs.updatedAt;
+                return lhsTime == rhsTime ? 0 : (lhsTime > rhsTime ? -1 : 1);
+            }
+        });
+
+        List<Object> results = new ArrayList<>();
+        int from = (page - 1) * pageSize;
+        for (int i = from; i < Math.min(userConversations.size(), from + pageSize); i++) {
+            ConversationState conversation = userConversations.get(i);
+            synchronized (conversation) {
+                results.add(this.conversationJson(conversation, userId, includeLastMessage));
+            }
+        }
+
+        return singleton("conversations", results);
+    }
+
+    private Object updateMembership(String userId, String lambda, String conversationId, List<?> userIds) {
+        ConversationState conversation = this.participatingConversation(userId, conversationId);
+        synchronized (conversation) {
+            if (!conversation.adminIds.contains(userId)) {
+                throw new BackendException(ERROR_PERMISSION_DENIED, "Only admins can change members");
+            }
+
+            for (Object eachId : userIds) {
+                String memberId = (String) eachId;
+                switch (lambda) {
+                    case "chat:add_participants":
+                        conversation.participantIds.add(memberId);
+                        this.userConversationIdsOf(memberId).add(conversation.id);
+                        break;
+                    case "chat:remove_participants":
+                        conversation.participantIds.remove(memberId);
+                        conversation.adminIds.remove(memberId);
+                        this.userConversationIdsOf(memberId).remove(conversation.id);
+                        break;
+                    case "chat:add_admins":
+                        conversation.participantIds.add(memberId);
+                        conversation.adminIds.add(memberId);
+                        this.userConversationIdsOf(memberId).add(conversation.id);
+                        break;
+                    default:
+                        conversation.adminIds.remove(memberId);
+                }
+            }
+
+            return singleton("conversation", this.conversationJson(conversation, userId, false));
+        }
+    }
+
+    private void leaveConversation(String userId, String conversationId) {
+        ConversationState conversation = this.participatingConversation(userId, conversationId);
+        synchronized (conversation) {
+            conversation.participantIds.remove(userId);
+            conversation.adminIds.remove(userId);
+        }
+        this.userConversationIdsOf(userId).remove(conversationId);
+    }
+
+    private void deleteConversation(String userId, String conversationId) {
+        ConversationState conversation = this.participatingConversation(userId, conversationId);
+        List<String> participantIds;
+        synchronized (conversation) {
+            if (!conversation.adminIds.contains(userId)) {
+                throw new BackendException(ERROR_PERMISSION_DENIED, "Only admins can delete the conversation");
+            }
+
+            participantIds = new ArrayList<>(conversation.participantIds);
+            for (MessageState eachMessage : conversation.messages) {
+                this.messages.remove(eachMessage.id);
+            }
+        }
+
+        this.conversations.remove(conversationId);
+        for (String eachId : participantIds) {
+            this.userConversationIdsOf(eachId).remove(conversationId);
+        }
+    }
+
+    /* --- Messages --- */
+
+    private Object getMessages(String userId, List<?> args) {
+        ConversationState conversation = this.participatingConversation(userId, stringAt(args, 0));
+        int limit = Math.max(1, intAt(args, 1, 50));
+        String beforeString = stringAt(args, 2);
+        long before = beforeString == null ? Long.MAX_VALUE : parseTime(beforeString);
+        boolean isByEditTime = "edited_at".equals(stringAt(args, 3));
+
+        List<Object> results = new ArrayList<>(limit);
+        synchronized (conversation) {
+            if (!isByEditTime) {
+                // messages are kept in creation order, so walk back from the newest
+                for (int i = conversation.messages.size() - 1; i >= 0 && results.size() < limit; i--) {
+                    MessageState message = conversation.messages.get(i);
+                    if (message.createdAt < before && !message.isDeleted) {
+                        results.add(this.messageJson(message));
+                    }
+                }
+            } else {
+                List<MessageState> edited = new ArrayList<>();
+                for (MessageState eachMessage : conversation.messages) {
+                    if (eachMessage.updatedAt < before && !eachMessage.isDeleted) {
+                        edited.add(eachMessage);
+                    }
+                }
+                Collections.sort(edited, new Comparator<MessageState>() {
+                    @Override
+                    public int compare(MessageState lhs, MessageState rhs) {
+                        return lhs.updatedAt == rhs.updatedAt ? 0 : (lhs.updatedAt > rhs.updatedAt ? -1 : 1);
+                    }
+                });
+                for (int i = 0; i < Math.min(limit, edited.size()); i++) {
+                    results.add(this.messageJson(edited.get(i)));
+                }
+            }
+        }
+
+        return singleton("results", results);
+    }
+
+    private Object getReceipts(String userId, String messageId) {
+        MessageState message = this.messageOf(messageId);
+        ConversationState conversation = this.participatingConversation(userId, message.conversationId);
+
+        List<Object> receipts = new ArrayList<>();
+        synchronized (conversation) {
+            for (Map.Entry<String, long[]> eachReceipt : message.receipts.entrySet()) {
+                Map<String, Object> receipt = new LinkedHashMap<>();
+                receipt.put("user", eachReceipt.getKey());
+                long[] times = eachReceipt.getValue();
+                if (times[0] != 0) {
+                    receipt.put("delivered_at", formatTime(times[0]));
+                }
+                if (times[1] != 0) {
+                    receipt.put("read_at", formatTime(times[1]));
+                }
+                receipts.add(receipt);
+            }
+        }
+
+        return singleton("receipts", receipts);
+    }
+
+    private void markMessages(String userId, List<?> messageIds, boolean isRead) {
+        long now = this.nextTime();
+        for (Object eachId : messageIds) {
+            MessageState message = this.messages.get((String) eachId);
+            if (message == null) {
+                continue;
+            }
+
+            ConversationState conversation = this.conversations.get(message.conversationId);
+            if (conversation == null) {
+                continue;
+            }
+
+            Map<String, Object> updatedJson = null;
+            List<String> participantIds = null;
+            synchronized (conversation) {
+                if (!conversation.participantIds.contains(userId) || userId.equals(message.ownerId)) {
+                    continue;
+                }
+
+                long[] times = message.receipts.get(userId);
+                if (times == null) {
+                    times = new long[2];
+                    message.receipts.put(userId, times);
+                }
+                if (times[0] == 0) {
+                    times[0] = now;
+                }
+                if (isRead && times[1] == 0) {
+                    times[1] = now;
+                    message.readCount++;
+                    conversation.markRead(userId, message);
+                }
+
+                String status = message.statusOf(conversation.participantIds.size() - 1);
+                if (!status.equals(message.status)) {
+                    message.status = status;
+                    message.updatedAt = now;
+                    updatedJson = this.messageJson(message);
+                    participantIds = new ArrayList<>(conversation.participantIds);
+                }
+            }
+
+            if (updatedJson != null) {
+                this.publishRecord(participantIds, "update", updatedJson);
+            }
+        }
+    }
+
+    private Object deleteMessage(String userId, String messageId) {
+        MessageState message = this.messageOf(messageId);
+        ConversationState conversation = this.participatingConversation(userId, message.conversationId);
+
+        Map<String, Object> json;
+        List<String> participantIds;
+        synchronized (conversation) {
+            if (!userId.equals(message.ownerId)) {
+                throw new BackendException(ERROR_PERMISSION_DENIED, "Only the owner can delete a message");
+            }
+
+            message.isDeleted = true;
+            message.updatedAt = this.nextTime();
+            json = this.messageJson(message);
+            participantIds = new ArrayList<>(conversation.participantIds);
+        }
+
+        this.publishRecord(participantIds, "delete", json);
+        return json;
+    }
+
+    private Object getTotalUnread(String userId) {
+        int conversationCount = 0;
+        int messageCount = 0;
+        for (String eachId : this.userConversationIdsOf(userId)) {
+            ConversationState conversation = this.conversations.get(eachId);
+            if (conversation == null) {
+                continue;
+            }
+
+            synchronized (conversation) {
+                int unreadCount = conversation.unreadCountOf(userId);
+                if (unreadCount > 0) {
+                    conversationCount++;
+                    messageCount += unreadCount;
+                }
+            }
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("conversation", conversationCount);
+        result.put("message", messageCount);
+        return result;
+    }
+
+    private void publishTyping(String userId, String conversationId, String event, String at) {
+        ConversationState conversation = this.participatingConversation(userId, conversationId);
+        List<String> participantIds;
+        synchronized (conversation) {
+            participantIds = new ArrayList<>(conversation.participantIds);
+        }
+
+        Map<String, Object> userTyping = new LinkedHashMap<>();
+        userTyping.put("event", event);
+        userTyping.put("at", at == null ? formatTime(System.currentTimeMillis()) : at);
+        Map<String, Object> typing = singleton("user/" + userId, userTyping);
+        Map<String, Object> data = singleton("conversation/" + conversationId, typing);
+
+        for (String eachId : participantIds) {
+            String channel = this.userChannels.get(eachId);
+            if (channel != null && !eachId.equals(userId)) {
+                this.publish(channel, "typing", data);
+            }
+        }
+    }
+
+    /* --- Records --- */
+
+    private Object saveRecords(String userId, List<?> records) {
+        List<Object> results = new ArrayList<>(records.size());
+        for (Object eachRecord : records) {
+            Map<?, ?> record = (Map<?, ?>) eachRecord;
+            String recordId = (String) record.get("_id");
+            if (recordId == null || recordId.indexOf('/') < 0) {
+                throw new BackendException(ERROR_INVALID_ARGUMENT, "Invalid record ID: " + recordId);
+            }
+
+            String recordType = recordId.substring(0, recordId.indexOf('/'));
+            String id = recordId.substring(recordId.indexOf('/') + 1);
+            if ("message".equals(recordType)) {
+                results.add(this.saveMessage(userId, id, record));
+            } else if ("user_channel".equals(recordType)) {
+                this.userChannels.put(userId, (String) record.get("name"));
+                results.add(this.userChannelJson(userId, id));
+            } else {
+                throw new BackendException(ERROR_NOT_SUPPORTED, "Unknown record type: " + recordType);
+            }
+        }
+
+        return results;
+    }
+
+    private Object saveMessage(String userId, String messageId, Map<?, ?> record) {
+        String conversationId = referencedId(record.get("conversation"));
+        ConversationState conversation = this.participatingConversation(userId, conversationId);
+
+        Map<String, Object> json;
+        List<String> participantIds;
+        String eventType;
+        synchronized (conversation) {
+            MessageState message = this.messages.get(messageId);
+            long now = this.nextTime();
+            if (message == null) {
+                message = new MessageState(messageId, conversationId, userId, now);
+                message.seq = conversation.messages.size() + 1;
+                conversation.messages.add(message);
+                conversation.addUnread(userId);
+                this.messages.put(messageId, message);
+                eventType = "create";
+            } else if (!userId.equals(message.ownerId)) {
+                throw new BackendException(ERROR_PERMISSION_DENIED, "Only the owner can edit a message");
+            } else {
+                eventType = "update";
+            }
+
+            message.body = record.get("body");
+            message.metadata = record.get("metadata");
+            message.attachment = record.get("attachment");
+            message.updatedAt = now;
+            conversation.updatedAt = now;
+            conversation.lastMessage = message;
+
+            json = this.messageJson(message);
+            participantIds = new ArrayList<>(conversation.participantIds);
+        }
+
+        this.publishRecord(participantIds, eventType, json);
+        return json;
+    }
+
+    private Object queryRecords(String userId, String recordType) {
+        List<Object> results = new ArrayList<>();
+        if ("user_channel".equals(recordType)) {
+            String channel = this.userChannels.get(userId);
+            if (channel != null) {
+                Map<String, Object> record = this.userChannelJson(userId, userId);
+                results.add(record);
+            }
+        } else if ("user".equals(recordType)) {
+            for (String eachId : this.userChannels.keySet()) {
+                Map<String, Object> user = new LinkedHashMap<>();
+                user.put("_id", "user/" + eachId);
+                user.put("username", eachId);
+                results.add(user);
+            }
+        }
+
+        return results;
+    }
+
+    private Object putAsset(Map<String, Object> payload) {
+        String name = UUID.randomUUID().toString() + "-" + payload.get("filename");
+        Object size = payload.get("content-size");
+        this.assetSizes.put(name, size instanceof Number ? ((Number) size).longValue() : 0L);
+
+        Map<String, Object> asset = new LinkedHashMap<>();
+        asset.put("$type", "asset");
+        asset.put("$name", name);
+        asset.put("$content_type", payload.get("content-type"));
+        asset.put("$url", this.assetBaseUrl + name);
+
+        Map<String, Object> postRequest = new LinkedHashMap<>();
+        postRequest.put("action", this.assetBaseUrl + name);
+        postRequest.put("extra-fields", new LinkedHashMap<String, Object>());
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("asset", asset);
+        result.put("post-request", postRequest);
+        return result;
+    }
+
+    /**
+     * Records the size of an uploaded asset.
+     *
+     * @param name the asset name
+     * @param size the size in bytes
+     * @return false if the asset was not prepared by asset:put
+     */
+    boolean uploadAsset(String name, long size) {
+        if (!this.assetSizes.containsKey(name)) {
+            return false;
+        }
+
+        this.assetSizes.put(name, size);
+        return true;
+    }
+
+    private void publishRecord(List<String> participantIds, String eventType, Map<String, Object> record) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("type", "record");
+        data.put("record_type", "message");
+        data.put("record", record);
+
+        for (String eachId : participantIds) {
+            String channel = this.userChannels.get(eachId);
+            if (channel != null) {
+                this.publish(channel, eventType, data);
+            }
+        }
+    }
+
+    /* --- JSON --- */
+
+    private Map<String, Object> conversationJson(ConversationState conversation,
+                                                 String userId,
+                                                 boolean includeLastMessage) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("_id", "conversation/" + conversation.id);
+        json.put("_created_at", formatTime(conversation.createdAt));
+        json.put("_updated_at", formatTime(conversation.updatedAt));
+        json.put("title", conversation.title);
+        json.put("metadata", conversation.metadata);
+        json.put("participant_ids", new ArrayList<>(conversation.participantIds));
+        json.put("admin_ids", new ArrayList<>(conversation.adminIds));
+        json.put("distinct_by_participants", conversation.isDistinct);
+        json.put("participant_count", conversation.participantIds.size());
+        json.put("unread_count", conversation.unreadCountOf(userId));
+
+        if (conversation.lastMessage != null) {
+            json.put("last_message_ref", referenceJson("message", conversation.lastMessage.id));
+            if (includeLastMessage) {
+                json.put("last_message", this.messageJson(conversation.lastMessage));
+            }
+        }
+
+        MessageState lastReadMessage = conversation.lastReadMessages.get(userId);
+        if (lastReadMessage != null) {
+            json.put("last_read_message_ref", referenceJson("message", lastReadMessage.id));
+            if (includeLastMessage) {
+                json.put("last_read_message", this.messageJson(lastReadMessage));
+            }
+        }
+
+        return json;
+    }
+
+    private Map<String, Object> messageJson(MessageState message) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("_id", "message/" + message.id);
+        json.put("_created_at", formatTime(message.createdAt));
+        json.put("_updated_at", formatTime(message.updatedAt));
+        json.put("_ownerID", message.ownerId);
+        json.put("_created_by", message.ownerId);
+        json.put("_updated_by", message.ownerId);
+        json.put("_access", null);
+        json.put("conversation", referenceJson("conversation", message.conversationId));
+        json.put("body", message.body);
+        json.put("metadata", message.metadata);
+        if (message.attachment != null) {
+            json.put("attachment", message.attachment);
+        }
+        json.put("message_status", message.status);
+        json.put("seq", message.seq);
+        json.put("deleted", message.isDeleted);
+        return json;
+    }
+
+    private Map<String, Object> userChannelJson(String userId, String id) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("_id", "user_channel/" + id);
+        json.put("_ownerID", userId);
+        json.put("name", this.userChannels.get(userId));
+        return json;
+    }
+
+    private static Map<String, Object> referenceJson(String recordType, String id) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("$type", "ref");
+        json.put("$id", recordType + "/" + id);
+        json.put("$recordType", recordType);
+        json.put("$recordID", id);
+        return json;
+    }
+
+    /* --- Helpers --- */
+
+    private ConversationState participatingConversation(String userId, String conversationId) {
+        ConversationState conversation = conversationId == null ? null : this.conversations.get(conversationId);
+        if (conversation == null) {
+            throw new BackendException(ERROR_NOT_FOUND, "Conversation not found: " + conversationId);
+        }
+
+        synchronized (conversation) {
+            if (!conversation.participantIds.contains(userId)) {
+                throw new BackendException(ERROR_PERMISSION_DENIED, "Not a participant: " + userId);
+            }
+        }
+
+        return conversation;
+    }
+
+    private MessageState messageOf(String messageId) {
+        MessageState message = messageId == null ? null : this.messages.get(messageId);
+        if (message == null) {
+            throw new BackendException(ERROR_NOT_FOUND, "Message not found: " + messageId);
+        }
+
+        return message;
+    }
+
+    private Set<String> userConversationIdsOf(String userId) {
+        Set<String> ids = this.userConversationIds.get(userId);
+        if (ids == null) {
+            ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            Set<String> existing = this.userConversationIds.putIfAbsent(userId, ids);
+            if (existing != null) {
+                ids = existing;
+            }
+        }
+
+        return ids;
+    }
+
+    /**
+     * Gets a strictly increasing time, so that messages never share a
+     * creation time and "before" cursors are exact.
+     */
+    private long nextTime() {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long last = this.clock.get();
+            long next = Math.max(now, last + 1);
+            if (this.clock.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    static String formatTime(long millis) {
+        return ISO_FORMAT.get().format(new Date(millis));
+    }
+
+    static long parseTime(String time) {
+        try {
+            return ISO_FORMAT.get().parse(time).getTime();
+        } catch (ParseException e) {
+            throw new BackendException(ERROR_INVALID_ARGUMENT, "Invalid time: " + time);
+        }
+    }
+
+    private static String referencedId(Object reference) {
+        if (reference instanceof Map) {
+            Object id = ((Map<?, ?>) reference).get("$id");
+            if (id instanceof String && ((String) id).indexOf('/') >= 0) {
+                return ((String) id).substring(((String) id).indexOf('/') + 1);
+            }
+        }
+
+        throw new BackendException(ERROR_INVALID_ARGUMENT, "Invalid reference: " + reference);
+    }
+
+    private static Map<String, Object> singleton(String key, Object value) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put(key, value);
+        return map;
+    }
+
+    private static List<?> listOf(Object value) {
+        if (value == null) {
+            return Collections.emptyList();
+        } else if (value instanceof List) {
+            return (List<?>) value;
+        }
+
+        throw new BackendException(ERROR_INVALID_ARGUMENT, "Expected a list: " + value);
+    }
+
+    private static String stringAt(List<?> args, int index) {
+        return args.size() > index && args.get(index) != null ? String.valueOf(args.get(index)) : null;
+    }
+
+    private static int intAt(List<?> args, int index, int fallback) {
+        return args.size() > index && args.get(index) instanceof Number
+                ? ((Number) args.get(index)).intValue()
+                : fallback;
+    }
+
+    private static boolean boolAt(List<?> args, int index) {
+        return args.size() > index && Boolean.TRUE.equals(args.get(index));
+    }
+
+    /**
+     * An error answered to a request.
+     */
+    static final class BackendException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final String name;
+
+        BackendException(String name, String message) {
+            super(message);
+            this.name = name;
+        }
+    }
+
+    /**
+     * A conversation with its messages, guarded by its own lock.
+     */
+    private static final class ConversationState {
+        final String id;
+        final long createdAt = System.currentTimeMillis();
+        final Set<String> participantIds = new LinkedHashSet<>();
+        final Set<String> adminIds = new LinkedHashSet<>();
+        final List<MessageState> messages = new ArrayList<>();
+        final Map<String, MessageState> lastReadMessages = new HashMap<>();
+        final Map<String, Integer> unreadCounts = new HashMap<>();
+        String title;
+        Object metadata;
+        boolean isDistinct = false;
+        MessageState lastMessage;
+        volatile long updatedAt = this.createdAt;
+
+        ConversationState(String id) {
+            this.id = id;
+        }
+
+        void addUnread(String senderId) {
+            for (String eachId : this.participantIds) {
+                if (!eachId.equals(senderId)) {
+                    this.unreadCounts.put(eachId, this.unreadCountOf(eachId) + 1);
+                }
+            }
+        }
+
+        int unreadCountOf(String userId) {
+            Integer count = this.unreadCounts.get(userId);
+            return count == null ? 0 : count;
+        }
+
+        void markRead(String userId, MessageState message) {
+            MessageState lastRead = this.lastReadMessages.get(userId);
+            if (lastRead != null && lastRead.createdAt >= message.createdAt) {
+                return;
+            }
+            this.lastReadMessages.put(userId, message);
+
+            // count the messages of others after the last read one
+            int unreadCount = 0;
+            for (int i = this.messages.size() - 1; i >= 0; i--) {
+                MessageState eachMessage = this.messages.get(i);
+                if (eachMessage.createdAt <= message.createdAt) {
+                    break;
+                }
+                if (!eachMessage.isDeleted && !userId.equals(eachMessage.ownerId)) {
+                    unreadCount++;
+                }
+            }
+            this.unreadCounts.put(userId, unreadCount);
+        }
+    }
+
+    /**
+     * A message with the receipts of recipients.
+     */
+    private static final class MessageState {
+        final String id;
+        final String conversationId;
+        final String ownerId;
+        final long createdAt;
+        final Map<String, long[]> receipts = new HashMap<>();
+        long updatedAt;
+        int seq;
+        int readCount = 0;
+        Object body;
+        Object metadata;
+        Object attachment;
+        String status = STATUS_DELIVERED;
+        boolean isDeleted = false;
+
+        MessageState(String id, String conversationId, String ownerId, long createdAt) {
+            this.id = id;
+            this.conversationId = conversationId;
+            this.ownerId = ownerId;
+            this.createdAt = createdAt;
+            this.updatedAt = createdAt;
+        }
+
+        String statusOf(int recipientCount) {
+            if (this.readCount == 0) {
+                return STATUS_DELIVERED;
+            }
+
+            return this.readCount >= recipientCount ? STATUS_ALL_READ : STATUS_SOME_READ;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package io.skygear.plugins.chat.loadtest;
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a {@link FakeChatBackend} over HTTP, so that an app built with
+ * the SDK, e.g. on an emulator, can use it as its Skygear endpoint.
+ *
+ * Requests carry the action and its payload in a JSON body, and are
+ * answered with the result or the error in a JSON body. Sign up and log
+ * in accept any user name. Assets are uploaded to /files/.
+ *
+ * Pubsub over WebSocket is not served, events are only delivered to
+ * listeners in the same process.
+ */
+public final class FakeSkygearServer {
+    private static final String FILES_PATH = "/files/";
+
+    private final FakeChatBackend backend;
+    private final HttpServer server;
+    private final Map<String, String> accessTokens = new ConcurrentHashMap<>();
+
+    /**
+     * Instantiates a new fake Skygear server.
+     *
+     * @param backend the backend
+     * @param port    the port, 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public FakeSkygearServer(final FakeChatBackend backend, final int port) throws IOException {
+        super();
+
+        this.backend = backend;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                FakeSkygearServer.this.handleAction(exchange);
+            }
+        });
+        this.server.createContext(FILES_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                FakeSkygearServer.this.handleFile(exchange);
+            }
+        });
+
+        backend.setAssetBaseUrl("http://127.0.0.1:" + this.getPort() + FILES_PATH);
+    }
+
+    /**
+     * Gets the bound port.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Starts serving.
+     */
+    public void start() {
+        this.server.start();
+    }
+
+    /**
+     * Stops serving.
+     */
+    public void stop() {
+        this.server.stop(0);
+    }
+
+    private void handleAction(final HttpExchange exchange) throws IOException {
+        final Map<String, Object> payload;
+        try {
+            Object body = Json.parse(new String(readAll(exchange.getRequestBody()), "UTF-8"));
+            if (!(body instanceof Map)) {
+                throw new IllegalArgumentException("Expected an object");
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> bodyObject = (Map<String, Object>) body;
+            payload = bodyObject;
+        } catch (IllegalArgumentException e) {
+            respondError(exchange, FakeChatBackend.ERROR_INVALID_ARGUMENT, e.getMessage());
+            return;
+        }
+
+        Object action = payload.get("action");
+        if (!(action instanceof String)) {
+            respondError(exchange, FakeChatBackend.ERROR_INVALID_ARGUMENT, "Missing action");
+            return;
+        }
+
+        if ("auth:signup".equals(action) || "auth:login".equals(action)) {
+            respond(exchange, 200, this.logIn(payload));
+            return;
+        }
+
+        String userId = this.accessTokens.get(String.valueOf(payload.get("access_token")));
+        if (userId == null) {
+            respondError(exchange, FakeChatBackend.ERROR_PERMISSION_DENIED, "Invalid access token");
+            return;
+        }
+
+        if ("me".equals(action)) {
+            respond(exchange, 200, resultOf(this.authResultOf(userId, (String) payload.get("access_token"))));
+            return;
+        }
+
+        this.backend.call(userId, (String) action, payload, new FakeChatBackend.Callback() {
+            @Override
+            public void onSuccess(Object result) {
+                respond(exchange, 200, resultOf(result));
+            }
+
+            @Override
+            public void onError(String name, String message) {
+                respondError(exchange, name, message);
+            }
+        });
+    }
+
+    private void handleFile(HttpExchange exchange) throws IOException {
+        String name = exchange.getRequestURI().getPath().substring(FILES_PATH.length());
+        long size = readAll(exchange.getRequestBody()).length;
+        if ("GET".equals(exchange.getRequestMethod())) {
+            respond(exchange, 200, new LinkedHashMap<String, Object>());
+        } else if (this.backend.uploadAsset(name, size)) {
+            respond(exchange, 200, new LinkedHashMap<String, Object>());
+        } else {
+            respondError(exchange, FakeChatBackend.ERROR_NOT_FOUND, "Unknown asset: " + name);
+        }
+    }
+
+    private Map<String, Object> logIn(Map<String, Object> payload) {
+        Object authData = payload.get("auth_data");
+        Object username = authData instanceof Map ? ((Map<?, ?>) authData).get("username") : payload.get("username");
+        String userId = username == null ? UUID.randomUUID().toString() : String.valueOf(username);
+        String accessToken = UUID.randomUUID().toString();
+
+        this.accessTokens.put(accessToken, userId);
+        this.backend.registerUser(userId);
+        return resultOf(this.authResultOf(userId, accessToken));
+    }
+
+    private Map<String, Object> authResultOf(String userId, String accessToken) {
+        Map<String, Object> profile = new LinkedHashMap<>();
+        profile.put("_id", "user/" + userId);
+        profile.put("_type", "record");
+        profile.put("_ownerID", userId);
+        profile.put("username", userId);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("user_id", userId);
+        result.put("access_token", accessToken);
+        result.put("profile", profile);
+        return result;
+    }
+
+    private static Map<String, Object> resultOf(Object result) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("result", result);
+        return body;
+    }
+
+    private static void respondError(HttpExchange exchange, String name, String message) {
+        int status;
+        switch (name) {
+            case FakeChatBackend.ERROR_NOT_FOUND:
+                status = 404;
+                break;
+            case FakeChatBackend.ERROR_PERMISSION_DENIED:
+                status = 403;
+                break;
+            case FakeChatBackend.ERROR_UNAVAILABLE:
+                status = 503;
+                break;
+            default:
+                status = 400;
+        }
+
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("name", name);
+        error.put("code", status);
+        error.put("message", message);
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("error", error);
+        respond(exchange, status, body);
+    }
+
+    private static void respond(HttpExchange exchange, int status, Map<String, Object> body) {
+        try {
+            byte[] bytes = Json.stringify(body).getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream output = exchange.getResponseBody();
+            output.write(bytes);
+            output.close();
+        } catch (IOException e) {
+            exchange.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        input.close();
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Runs a fake Skygear server.
+     *
+     * Options: --port, --latency, --jitter (milliseconds) and --failure-rate.
+     *
+     * @param args the options
+     * @throws IOException if the port cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        Options options = Options.parseOrExit(
+                args,
+                "Usage: FakeSkygearServer [--port=3000] [--latency=0] [--jitter=0] [--failure-rate=0]",
+                "port", "latency", "jitter", "failure-rate"
+        );
+        FakeChatBackend backend = new FakeChatBackend(
+                new NetworkProfile(
+                        options.getLong("latency", 0),
+                        options.getLong("jitter", 0),
+                        options.getDouble("failure-rate", 0)
+                ),
+                Runtime.getRuntime().availableProcessors()
+        );
+
+        FakeSkygearServer server = new FakeSkygearServer(backend, options.getInt("port", 3000));
+        server.start();
+        System.out.println("Fake Skygear server listening on http://127.0.0.1:" + server.getPort() + "/");
+    }
+}
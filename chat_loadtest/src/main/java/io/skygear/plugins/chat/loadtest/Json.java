@@ -0,0 +1,298 @@
+package io.skygear.plugins.chat.loadtest;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes JSON, as maps, lists, strings, numbers, booleans and
+ * null, so that the fake backend runs without dependencies.
+ */
+final class Json {
+    private final String text;
+    private int position = 0;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parses a JSON text.
+     *
+     * @param text the text
+     * @return the value
+     * @throws IllegalArgumentException if the text is not valid JSON
+     */
+    static Object parse(String text) {
+        Json parser = new Json(text);
+        Object value = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.position != text.length()) {
+            throw parser.error("Unexpected trailing characters");
+        }
+
+        return value;
+    }
+
+    /**
+     * Writes a value as JSON text.
+     *
+     * @param value the value
+     * @return the text
+     */
+    static String stringify(Object value) {
+        StringBuilder builder = new StringBuilder();
+        write(builder, value);
+        return builder.toString();
+    }
+
+    private static void write(StringBuilder builder, Object value) {
+        if (value == null) {
+            builder.append("null");
+        } else if (value instanceof String) {
+            writeString(builder, (String) value);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            builder.append(value.toString());
+        } else if (value instanceof Map) {
+            builder.append('{');
+            boolean isFirst = true;
+            for (Object eachEntry : ((Map<?, ?>) value).entrySet()) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) eachEntry;
+                if (!isFirst) {
+                    builder.append(',');
+                }
+                isFirst = false;
+                writeString(builder, String.valueOf(entry.getKey()));
+                builder.append(':');
+                write(builder, entry.getValue());
+            }
+            builder.append('}');
+        } else if (value instanceof Iterable) {
+            builder.append('[');
+            Iterator<?> items = ((Iterable<?>) value).iterator();
+            while (items.hasNext()) {
+                write(builder, items.next());
+                if (items.hasNext()) {
+                    builder.append(',');
+                }
+            }
+            builder.append(']');
+        } else if (value instanceof Object[]) {
+            List<Object> items = new ArrayList<>();
+            for (Object eachItem : (Object[]) value) {
+                items.add(eachItem);
+            }
+            write(builder, items);
+        } else {
+            writeString(builder, value.toString());
+        }
+    }
+
+    private static void writeString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+
+    private Object readValue() {
+        this.skipWhitespace();
+        if (this.position >= this.text.length()) {
+            throw this.error("Unexpected end of text");
+        }
+
+        char c = this.text.charAt(this.position);
+        switch (c) {
+            case '{':
+                return this.readObject();
+            case '[':
+                return this.readArray();
+            case '"':
+                return this.readString();
+            case 't':
+                this.expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                this.expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                this.expect("null");
+                return null;
+            default:
+                return this.readNumber();
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        Map<String, Object> object = new LinkedHashMap<>();
+        this.position++;
+        this.skipWhitespace();
+        if (this.peek() == '}') {
+            this.position++;
+            return object;
+        }
+
+        while (true) {
+            this.skipWhitespace();
+            if (this.peek() != '"') {
+                throw this.error("Expected a key");
+            }
+            String key = this.readString();
+            this.skipWhitespace();
+            if (this.peek() != ':') {
+                throw this.error("Expected ':'");
+            }
+            this.position++;
+            object.put(key, this.readValue());
+
+            this.skipWhitespace();
+            char c = this.peek();
+            this.position++;
+            if (c == '}') {
+                return object;
+            } else if (c != ',') {
+                throw this.error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private List<Object> readArray() {
+        List<Object> array = new ArrayList<>();
+        this.position++;
+        this.skipWhitespace();
+        if (this.peek() == ']') {
+            this.position++;
+            return array;
+        }
+
+        while (true) {
+            array.add(this.readValue());
+
+            this.skipWhitespace();
+            char c = this.peek();
+            this.position++;
+            if (c == ']') {
+                return array;
+            } else if (c != ',') {
+                throw this.error("Expected ',' or ']'");
+            }
+        }
+    }
+
+    private String readString() {
+        StringBuilder builder = new StringBuilder();
+        this.position++;
+        while (true) {
+            if (this.position >= this.text.length()) {
+                throw this.error("Unterminated string");
+            }
+
+            char c = this.text.charAt(this.position++);
+            if (c == '"') {
+                return builder.toString();
+            } else if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+
+            char escaped = this.text.charAt(this.position++);
+            switch (escaped) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    builder.append((char) Integer.parseInt(
+                            this.text.substring(this.position, this.position + 4), 16));
+                    this.position += 4;
+                    break;
+                default:
+                    builder.append(escaped);
+            }
+        }
+    }
+
+    private Number readNumber() {
+        int start = this.position;
+        boolean isDecimal = false;
+        while (this.position < this.text.length()) {
+            char c = this.text.charAt(this.position);
+            if (c == '.' || c == 'e' || c == 'E') {
+                isDecimal = true;
+            } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                break;
+            }
+            this.position++;
+        }
+
+        String number = this.text.substring(start, this.position);
+        try {
+            return isDecimal ? (Number) Double.parseDouble(number) : (Number) Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            throw this.error("Invalid number");
+        }
+    }
+
+    private void expect(String literal) {
+        if (!this.text.startsWith(literal, this.position)) {
+            throw this.error("Expected " + literal);
+        }
+        this.position += literal.length();
+    }
+
+    private char peek() {
+        if (this.position >= this.text.length()) {
+            throw this.error("Unexpected end of text");
+        }
+        return this.text.charAt(this.position);
+    }
+
+    private void skipWhitespace() {
+        while (this.position < this.text.length()
+                && Character.isWhitespace(this.text.charAt(this.position))) {
+            this.position++;
+        }
+    }
+
+    private IllegalArgumentException error(String reason) {
+        return new IllegalArgumentException(reason + " at " + this.position);
+    }
+}
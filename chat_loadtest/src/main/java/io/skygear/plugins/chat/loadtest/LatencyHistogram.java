@@ -0,0 +1,87 @@
+package io.skygear.plugins.chat.loadtest;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies into log-linear buckets, so that percentiles can be
+ * read with at most about 6% error from any number of threads without
+ * locking.
+ *
+ * Latencies below 32 microseconds are exact, and each power of two above
+ * is split into 16 buckets.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    void record(long nanos) {
+        this.counts.incrementAndGet(indexOf(Math.max(0, nanos / 1000)));
+    }
+
+    /**
+     * Gets the number of recorded latencies.
+     *
+     * @return the count
+     */
+    long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += this.counts.get(i);
+        }
+
+        return count;
+    }
+
+    /**
+     * Gets a percentile of the recorded latencies.
+     *
+     * @param percentile the percentile, from 0 to 100
+     * @return the latency in microseconds, 0 if nothing is recorded
+     */
+    long getPercentileMicros(double percentile) {
+        long count = this.getCount();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += this.counts.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return upperBoundOf(i);
+            }
+        }
+
+        return upperBoundOf(BUCKET_COUNT - 1);
+    }
+
+    private static int indexOf(long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (micros >>> magnitude) - SUB_BUCKET_COUNT / 2;
+        return Math.min(BUCKET_COUNT - 1, magnitude * SUB_BUCKET_COUNT / 2 + SUB_BUCKET_COUNT / 2 + subBucket);
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int magnitude = (index - SUB_BUCKET_COUNT / 2) / (SUB_BUCKET_COUNT / 2);
+        int subBucket = (index - SUB_BUCKET_COUNT / 2) % (SUB_BUCKET_COUNT / 2) + SUB_BUCKET_COUNT / 2;
+        return ((long) (subBucket + 1) << magnitude) - 1;
+    }
+}
@@ -0,0 +1,581 @@
+package io.skygear.plugins.chat.loadtest;
+
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.skygear.plugins.chat.GetCallback;
+import io.skygear.plugins.chat.LoadClient;
+import io.skygear.plugins.chat.Message;
+import io.skygear.plugins.chat.MessageReceipt;
+
+/**
+ * Drives chat traffic through a {@link FakeChatBackend} and reports the
+ * throughput, latency percentiles and allocation rate.
+ *
+ * Simulated users send messages to random conversations they are in at
+ * a fixed rate, and receive them through their user channels. A share
+ * of messages is followed by typing events, page loads, receipt lookups,
+ * searches and read receipts, in the same request shapes the SDK sends.
+ *
+ * Every user has a {@link LoadClient}, which runs page loads, receipt
+ * lookups and received messages through the request scheduler, request
+ * coalescer, receipt cache and search index of the SDK.
+ *
+ * Options (with defaults):
+ * --users=1000 --conversations=200 --participants=5 --rate=2000 (messages
+ * per second) --duration=30 (seconds) --latency=0 --jitter=0 (milliseconds)
+ * --failure-rate=0 --typing-ratio=0.3 --page-ratio=0.05 --receipt-ratio=0.5
+ * (of page loads) --search-ratio=0.01 --read-ratio=0.1 --read-cache-ttl=0
+ * (milliseconds) --max-in-flight=20000 --threads=(cores)
+ */
+public final class LoadDriver {
+    private static final String USAGE = "Usage: LoadDriver [--users=1000] [--conversations=200] "
+            + "[--participants=5] [--rate=2000] [--duration=30] [--latency=0] [--jitter=0] "
+            + "[--failure-rate=0] [--typing-ratio=0.3] [--page-ratio=0.05] [--receipt-ratio=0.5] "
+            + "[--search-ratio=0.01] [--read-ratio=0.1] [--read-cache-ttl=0] [--max-in-flight=20000] "
+            + "[--threads=cores]";
+    private static final String[] OPTION_NAMES = {
+            "users", "conversations", "participants", "rate", "duration", "latency", "jitter",
+            "failure-rate", "typing-ratio", "page-ratio", "receipt-ratio", "search-ratio",
+            "read-ratio", "read-cache-ttl", "max-in-flight", "threads"
+    };
+    private static final int PAGE_SIZE = 50;
+    private static final int RECEIPT_LOOKUP_SIZE = 10;
+    private static final int SEARCH_LIMIT = 20;
+    private static final String[] WORDS = {
+            "lunch", "meeting", "release", "coffee", "deadline",
+            "weekend", "review", "build", "travel", "budget"
+    };
+
+    private final int userCount;
+    private final int conversationCount;
+    private final int participantCount;
+    private final int rate;
+    private final int durationSeconds;
+    private final double typingRatio;
+    private final double pageRatio;
+    private final double receiptRatio;
+    private final double searchRatio;
+    private final double readRatio;
+    private final long readCacheTTL;
+
+    private final FakeChatBackend backend;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final ConcurrentHashMap<String, LatencyHistogram> requestLatencies = new ConcurrentHashMap<>();
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final AtomicLong succeededCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong receivedEventCount = new AtomicLong();
+    private final ExecutorService[] deliveryExecutors;
+    private final Map<String, LoadClient> clients = new ConcurrentHashMap<>();
+
+    private String[] userIds;
+    private String[] conversationIds;
+    private String[][] conversationParticipants;
+
+    private LoadDriver(Options options) {
+        this.userCount = options.getInt("users", 1000);
+        this.conversationCount = options.getInt("conversations", 200);
+        this.participantCount = Math.max(2, Math.min(this.userCount, options.getInt("participants", 5)));
+        this.rate = options.getInt("rate", 2000);
+        this.durationSeconds = options.getInt("duration", 30);
+        this.typingRatio = options.getDouble("typing-ratio", 0.3);
+        this.pageRatio = options.getDouble("page-ratio", 0.05);
+        this.receiptRatio = options.getDouble("receipt-ratio", 0.5);
+        this.searchRatio = options.getDouble("search-ratio", 0.01);
+        this.readRatio = options.getDouble("read-ratio", 0.1);
+        this.readCacheTTL = options.getLong("read-cache-ttl", 0);
+        this.maxInFlight = options.getInt("max-in-flight", 20000);
+        this.inFlight = new Semaphore(this.maxInFlight);
+
+        int threadCount = Math.max(1, options.getInt("threads", Runtime.getRuntime().availableProcessors()));
+        this.backend = new FakeChatBackend(
+                new NetworkProfile(
+                        options.getLong("latency", 0),
+                        options.getLong("jitter", 0),
+                        options.getDouble("failure-rate", 0)
+                ),
+                threadCount
+        );
+
+        // each stands in for the main thread of the clients assigned to it
+        this.deliveryExecutors = new ExecutorService[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            this.deliveryExecutors[i] = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    /**
+     * Runs a load test.
+     *
+     * @param args the options
+     * @throws InterruptedException if interrupted
+     */
+    public static void main(String[] args) throws InterruptedException {
+        LoadDriver driver = new LoadDriver(Options.parseOrExit(args, USAGE, OPTION_NAMES));
+        try {
+            driver.setUp();
+            driver.run();
+        } finally {
+            driver.backend.shutdown();
+            for (ExecutorService eachExecutor : driver.deliveryExecutors) {
+                eachExecutor.shutdownNow();
+            }
+        }
+    }
+
+    /* --- Set Up --- */
+
+    private void setUp() throws InterruptedException {
+        this.userIds = new String[this.userCount];
+        for (int i = 0; i < this.userCount; i++) {
+            final String userId = "load-user-" + i;
+            this.userIds[i] = userId;
+            LoadClient client = new LoadClient(
+                    this.transportOf(userId),
+                    this.deliveryExecutors[i % this.deliveryExecutors.length]
+            );
+            client.setReadResponseCacheTTL(this.readCacheTTL);
+            this.clients.put(userId, client);
+
+            String channel = this.backend.registerUser(userId);
+            this.backend.subscribe(channel, new FakeChatBackend.PubsubListener() {
+                @Override
+                public void onEvent(String channel, Map<String, Object> event) {
+                    LoadDriver.this.onEvent(userId, event);
+                }
+            });
+        }
+
+        this.conversationIds = new String[this.conversationCount];
+        this.conversationParticipants = new String[this.conversationCount][];
+        final CountDownLatch latch = new CountDownLatch(this.conversationCount);
+        for (int i = 0; i < this.conversationCount; i++) {
+            final int index = i;
+            final String[] participants = this.pickParticipants();
+            this.conversationParticipants[i] = participants;
+            this.backend.callLambda(
+                    participants[0],
+                    "chat:create_conversation",
+                    Arrays.<Object>asList(Arrays.asList(participants), "Load " + i, null, null),
+                    new FakeChatBackend.Callback() {
+                        @Override
+                        public void onSuccess(Object result) {
+                            Map<?, ?> conversation = (Map<?, ?>) ((Map<?, ?>) result).get("conversation");
+                            String recordId = (String) conversation.get("_id");
+                            LoadDriver.this.conversationIds[index] = recordId.substring(recordId.indexOf('/') + 1);
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onError(String name, String message) {
+                            // retry, as failures may be injected
+                            LoadDriver.this.backend.callLambda(
+                                    participants[0],
+                                    "chat:create_conversation",
+                                    Arrays.<Object>asList(Arrays.asList(participants), "Load " + index, null, null),
+                                    this
+                            );
+                        }
+                    });
+        }
+
+        latch.await();
+    }
+
+    private String[] pickParticipants() {
+        List<String> picked = new ArrayList<>(this.participantCount);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (picked.size() < this.participantCount) {
+            String userId = this.userIds[random.nextInt(this.userCount)];
+            if (!picked.contains(userId)) {
+                picked.add(userId);
+            }
+        }
+
+        return picked.toArray(new String[picked.size()]);
+    }
+
+    /* --- Run --- */
+
+    private void run() throws InterruptedException {
+        System.out.println(String.format(
+                "Driving %d messages/s for %d s: %d users, %d conversations of %d, "
+                        + "latency %d+%d ms, failure rate %.3f",
+                this.rate, this.durationSeconds, this.userCount, this.conversationCount,
+                this.participantCount, this.backend.getProfile().getLatencyMillis(),
+                this.backend.getProfile().getJitterMillis(), this.backend.getProfile().getFailureRate()
+        ));
+
+        long allocatedBefore = allocatedBytes();
+        long[] gcBefore = gcCountAndTime();
+        long startedAt = System.nanoTime();
+        long endAt = startedAt + TimeUnit.SECONDS.toNanos(this.durationSeconds);
+        long nextReportAt = startedAt + TimeUnit.SECONDS.toNanos(5);
+        long sentCount = 0;
+
+        long now = startedAt;
+        while (now < endAt) {
+            long dueCount = (now - startedAt) * this.rate / TimeUnit.SECONDS.toNanos(1);
+            while (sentCount < dueCount) {
+                this.sendRandomMessage();
+                sentCount++;
+            }
+
+            if (now >= nextReportAt) {
+                System.out.println(String.format(
+                        "  %3d s: %d sent, %d succeeded, %d failed, %d dropped, %d events received",
+                        TimeUnit.NANOSECONDS.toSeconds(now - startedAt), sentCount,
+                        this.succeededCount.get(), this.failedCount.get(), this.droppedCount.get(),
+                        this.receivedEventCount.get()
+                ));
+                nextReportAt += TimeUnit.SECONDS.toNanos(5);
+            }
+
+            Thread.sleep(1);
+            now = System.nanoTime();
+        }
+
+        // let the requests in flight complete
+        long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (this.inFlight.availablePermits() < this.maxInFlight && System.nanoTime() < drainUntil) {
+            Thread.sleep(10);
+        }
+
+        long elapsed = System.nanoTime() - startedAt;
+        this.report(sentCount, elapsed, allocatedBytes() - allocatedBefore, gcCountAndTime(), gcBefore);
+    }
+
+    private void sendRandomMessage() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int index = random.nextInt(this.conversationCount);
+        String conversationId = this.conversationIds[index];
+        String[] participants = this.conversationParticipants[index];
+        String senderId = participants[random.nextInt(participants.length)];
+
+        if (random.nextDouble() < this.typingRatio) {
+            this.request(senderId, "chat:typing", Arrays.<Object>asList(
+                    conversationId, "begin", FakeChatBackend.formatTime(System.currentTimeMillis())));
+        }
+
+        Map<String, Object> conversationRef = new LinkedHashMap<>();
+        conversationRef.put("$type", "ref");
+        conversationRef.put("$id", "conversation/" + conversationId);
+
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("_id", "message/" + UUID.randomUUID().toString());
+        record.put("conversation", conversationRef);
+        // the send time, for measuring the delivery latency, and a word to search for
+        record.put("body", System.nanoTime() + " " + WORDS[random.nextInt(WORDS.length)]);
+
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("database_id", "_public");
+        payload.put("records", Collections.singletonList(record));
+        this.request(senderId, "record:save", payload);
+
+        if (random.nextDouble() < this.pageRatio) {
+            String readerId = participants[random.nextInt(participants.length)];
+            this.loadPage(this.clients.get(readerId), conversationId);
+        }
+
+        if (random.nextDouble() < this.searchRatio) {
+            String searcherId = participants[random.nextInt(participants.length)];
+            String query = WORDS[random.nextInt(WORDS.length)].substring(0, 3);
+            long startedAt = System.nanoTime();
+            this.clients.get(searcherId).search(query, SEARCH_LIMIT);
+            this.histogramOf("sdk search").record(System.nanoTime() - startedAt);
+        }
+    }
+
+    private void loadPage(final LoadClient client, String conversationId) {
+        final LatencyHistogram histogram = this.histogramOf("sdk get_messages");
+        final long sentAt = System.nanoTime();
+        // rounded up to the second, so that loads of a conversation close
+        // together are identical requests, which the client coalesces
+        long before = (System.currentTimeMillis() / 1000 + 1) * 1000;
+        client.getMessages(conversationId, PAGE_SIZE, FakeChatBackend.formatTime(before), new GetCallback<List<Message>>() {
+            @Override
+            public void onSucc(List<Message> messages) {
+                histogram.record(System.nanoTime() - sentAt);
+                if (messages.isEmpty() || ThreadLocalRandom.current().nextDouble() >= LoadDriver.this.receiptRatio) {
+                    return;
+                }
+
+                // the receipts of the messages on screen
+                List<String> messageIds = new ArrayList<>(RECEIPT_LOOKUP_SIZE);
+                for (int i = 0; i < Math.min(RECEIPT_LOOKUP_SIZE, messages.size()); i++) {
+                    messageIds.add(messages.get(i).getId());
+                }
+                LoadDriver.this.lookUpReceipts(client, messageIds);
+            }
+
+            @Override
+            public void onFail(String failReason) {
+                // counted by the transport
+            }
+        });
+    }
+
+    private void lookUpReceipts(LoadClient client, List<String> messageIds) {
+        final LatencyHistogram histogram = this.histogramOf("sdk receipts");
+        final long sentAt = System.nanoTime();
+        client.getReceipts(messageIds, new GetCallback<Map<String, List<MessageReceipt>>>() {
+            @Override
+            public void onSucc(Map<String, List<MessageReceipt>> receipts) {
+                histogram.record(System.nanoTime() - sentAt);
+            }
+
+            @Override
+            public void onFail(String failReason) {
+                // counted by the transport
+            }
+        });
+    }
+
+    private void onEvent(String userId, Map<String, Object> event) {
+        this.receivedEventCount.incrementAndGet();
+        Object eventType = event.get("event");
+        boolean isUpdate = "update".equals(eventType);
+        if (!isUpdate && !"create".equals(eventType)) {
+            return;
+        }
+
+        Map<?, ?> data = (Map<?, ?>) event.get("data");
+        if (!"message".equals(data.get("record_type"))) {
+            return;
+        }
+
+        Map<?, ?> record = (Map<?, ?>) data.get("record");
+        try {
+            this.clients.get(userId).onMessageEvent(new JSONObject(Json.stringify(record)), isUpdate);
+        } catch (JSONException e) {
+            throw new IllegalStateException("Malformed message record", e);
+        }
+
+        if (isUpdate || userId.equals(record.get("_ownerID"))) {
+            return;
+        }
+
+        Object body = record.get("body");
+        if (body instanceof String) {
+            String sentAt = (String) body;
+            int separator = sentAt.indexOf(' ');
+            this.deliveryLatency.record(
+                    System.nanoTime() - Long.parseLong(separator < 0 ? sentAt : sentAt.substring(0, separator)));
+        }
+
+        if (ThreadLocalRandom.current().nextDouble() < this.readRatio) {
+            String recordId = (String) record.get("_id");
+            List<Object> messageIds = Collections.<Object>singletonList(
+                    recordId.substring(recordId.indexOf('/') + 1));
+            this.request(userId, "chat:mark_as_read", Collections.<Object>singletonList(messageIds));
+        }
+    }
+
+    /**
+     * Makes the transport of a client, sending its lambda calls as the
+     * user and passing the results as parsed JSON, as the SDK receives them.
+     */
+    private LoadClient.Transport transportOf(final String userId) {
+        return new LoadClient.Transport() {
+            @Override
+            public void callLambda(String lambda, List<Object> args, final GetCallback<JSONObject> callback) {
+                Map<String, Object> payload = new LinkedHashMap<>();
+                payload.put("args", args);
+                LoadDriver.this.request(userId, lambda, payload, new FakeChatBackend.Callback() {
+                    @Override
+                    public void onSuccess(Object result) {
+                        JSONObject json;
+                        try {
+                            json = new JSONObject(Json.stringify(result));
+                        } catch (JSONException e) {
+                            callback.onFail(e.getMessage());
+                            return;
+                        }
+
+                        callback.onSucc(json);
+                    }
+
+                    @Override
+                    public void onError(String name, String message) {
+                        callback.onFail(message);
+                    }
+                });
+            }
+        };
+    }
+
+    private void request(String userId, String lambda, List<Object> args) {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("args", args);
+        this.request(userId, lambda, payload);
+    }
+
+    private void request(String userId, String action, Map<String, Object> payload) {
+        this.request(userId, action, payload, null);
+    }
+
+    private void request(String userId,
+                         final String action,
+                         Map<String, Object> payload,
+                         final FakeChatBackend.Callback callback) {
+        if (!this.inFlight.tryAcquire()) {
+            // the backend is falling behind, shed the load rather than queue it
+            this.droppedCount.incrementAndGet();
+            if (callback != null) {
+                callback.onError(FakeChatBackend.ERROR_UNAVAILABLE, "Dropped by the load driver");
+            }
+            return;
+        }
+
+        final LatencyHistogram histogram = this.histogramOf(action);
+        final long sentAt = System.nanoTime();
+        this.backend.call(userId, action, payload, new FakeChatBackend.Callback() {
+            @Override
+            public void onSuccess(Object result) {
+                histogram.record(System.nanoTime() - sentAt);
+                LoadDriver.this.succeededCount.incrementAndGet();
+                LoadDriver.this.inFlight.release();
+                if (callback != null) {
+                    callback.onSuccess(result);
+                }
+            }
+
+            @Override
+            public void onError(String name, String message) {
+                LoadDriver.this.failedCount.incrementAndGet();
+                LoadDriver.this.inFlight.release();
+                if (callback != null) {
+                    callback.onError(name, message);
+                }
+            }
+        });
+    }
+
+    private LatencyHistogram histogramOf(String action) {
+        LatencyHistogram histogram = this.requestLatencies.get(action);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = this.requestLatencies.putIfAbsent(action, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+
+        return histogram;
+    }
+
+    /* --- Report --- */
+
+    private void report(long sentCount, long elapsedNanos, long allocatedBytes, long[] gcAfter, long[] gcBefore) {
+        double seconds = elapsedNanos / 1e9;
+        long requestCount = this.succeededCount.get() + this.failedCount.get();
+
+        System.out.println();
+        System.out.println(String.format("Messages sent:      %d (%.0f/s)",
+                sentCount, (double) sentCount / this.durationSeconds));
+        System.out.println(String.format("Requests completed: %d (%.0f/s), %d failed, %d dropped",
+                requestCount, requestCount / seconds, this.failedCount.get(), this.droppedCount.get()));
+        System.out.println(String.format("Events received:    %d (%.0f/s)",
+                this.receivedEventCount.get(), this.receivedEventCount.get() / seconds));
+        if (allocatedBytes >= 0) {
+            System.out.println(String.format("Allocated:          %.1f MB/s, %.0f bytes per request",
+                    allocatedBytes / seconds / (1 << 20), requestCount == 0 ? 0.0 : (double) allocatedBytes / requestCount));
+        }
+        System.out.println(String.format("GC:                 %d collections, %d ms",
+                gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]));
+
+        long pageLoadCount = 0;
+        long coalescedPageLoadCount = 0;
+        long receiptLookupCount = 0;
+        long receiptFetchCount = 0;
+        long indexedMessageCount = 0;
+        for (LoadClient eachClient : this.clients.values()) {
+            pageLoadCount += eachClient.getPageLoadCount();
+            coalescedPageLoadCount += eachClient.getCoalescedPageLoadCount();
+            receiptLookupCount += eachClient.getReceiptLookupCount();
+            receiptFetchCount += eachClient.getReceiptFetchCount();
+            indexedMessageCount += eachClient.getIndexedMessageCount();
+        }
+        System.out.println(String.format("SDK page loads:     %d, %d coalesced",
+                pageLoadCount, coalescedPageLoadCount));
+        System.out.println(String.format("SDK receipts:       %d looked up, %d fetched",
+                receiptLookupCount, receiptFetchCount));
+        System.out.println(String.format("SDK search index:   %d messages, %.0f per client",
+                indexedMessageCount, (double) indexedMessageCount / Math.max(1, this.clients.size())));
+
+        System.out.println();
+        System.out.println(String.format("%-26s %10s %9s %9s %9s %9s %9s",
+                "latency (ms)", "count", "p50", "p90", "p99", "p99.9", "max"));
+        Map<String, LatencyHistogram> sorted = new TreeMap<>(this.requestLatencies);
+        for (Map.Entry<String, LatencyHistogram> eachEntry : sorted.entrySet()) {
+            printHistogram(eachEntry.getKey(), eachEntry.getValue());
+        }
+        printHistogram("message delivery", this.deliveryLatency);
+    }
+
+    private static void printHistogram(String name, LatencyHistogram histogram) {
+        System.out.println(String.format("%-26s %10d %9.2f %9.2f %9.2f %9.2f %9.2f",
+                name, histogram.getCount(),
+                histogram.getPercentileMicros(50) / 1000.0,
+                histogram.getPercentileMicros(90) / 1000.0,
+                histogram.getPercentileMicros(99) / 1000.0,
+                histogram.getPercentileMicros(99.9) / 1000.0,
+                histogram.getPercentileMicros(100) / 1000.0));
+    }
+
+    /**
+     * Gets the bytes allocated by live threads, -1 if the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+        long total = 0;
+        for (long eachId : bean.getAllThreadIds()) {
+            long allocated = allocationBean.getThreadAllocatedBytes(eachId);
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+
+        return total;
+    }
+
+    private static long[] gcCountAndTime() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean eachBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, eachBean.getCollectionCount());
+            time += Math.max(0, eachBean.getCollectionTime());
+        }
+
+        return new long[]{count, time};
+    }
+}
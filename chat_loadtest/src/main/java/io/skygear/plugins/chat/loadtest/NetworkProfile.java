@@ -0,0 +1,89 @@
+package io.skygear.plugins.chat.loadtest;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Simulated network conditions between clients and the fake backend.
+ *
+ * Every request and every pubsub event is delayed by the latency plus a
+ * uniformly random jitter, and a request fails with the failure rate.
+ */
+public final class NetworkProfile {
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double failureRate;
+
+    /**
+     * Instantiates a new network profile.
+     *
+     * @param latencyMillis the one-way latency in milliseconds
+     * @param jitterMillis  the maximum jitter in milliseconds
+     * @param failureRate   the rate of failed requests, from 0 to 1
+     */
+    public NetworkProfile(final long latencyMillis, final long jitterMillis, final double failureRate) {
+        super();
+
+        this.latencyMillis = Math.max(0, latencyMillis);
+        this.jitterMillis = Math.max(0, jitterMillis);
+        this.failureRate = Math.max(0, Math.min(1, failureRate));
+    }
+
+    /**
+     * The profile without delay or failure.
+     *
+     * @return the profile
+     */
+    public static NetworkProfile local() {
+        return new NetworkProfile(0, 0, 0);
+    }
+
+    /**
+     * Gets the one-way latency.
+     *
+     * @return the latency in milliseconds
+     */
+    public long getLatencyMillis() {
+        return this.latencyMillis;
+    }
+
+    /**
+     * Gets the maximum jitter.
+     *
+     * @return the jitter in milliseconds
+     */
+    public long getJitterMillis() {
+        return this.jitterMillis;
+    }
+
+    /**
+     * Gets the failure rate.
+     *
+     * @return the failure rate, from 0 to 1
+     */
+    public double getFailureRate() {
+        return this.failureRate;
+    }
+
+    /**
+     * Samples the delay of one trip.
+     *
+     * @return the delay in milliseconds
+     */
+    long nextDelayMillis() {
+        if (this.jitterMillis == 0) {
+            return this.latencyMillis;
+        }
+
+        return this.latencyMillis + ThreadLocalRandom.current().nextLong(this.jitterMillis + 1);
+    }
+
+    /**
+     * Samples whether a request fails.
+     *
+     * @return true if the request should fail
+     */
+    boolean nextFailure() {
+        return this.failureRate > 0 && ThreadLocalRandom.current().nextDouble() < this.failureRate;
+    }
+}
@@ -0,0 +1,91 @@
+package io.skygear.plugins.chat.loadtest;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line options in the form of --name=value.
+ */
+final class Options {
+    private static final String HELP = "help";
+
+    private final Map<String, String> values;
+
+    private Options(Map<String, String> values) {
+        this.values = values;
+    }
+
+    /**
+     * Parses command line arguments.
+     *
+     * @param args  the arguments
+     * @param names the names of the known options
+     * @return the options
+     * @throws IllegalArgumentException if an argument is not a known option
+     */
+    static Options parse(String[] args, String... names) {
+        List<String> knownNames = Arrays.asList(names);
+        Map<String, String> values = new HashMap<>();
+        for (String eachArg : args) {
+            if (!eachArg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + eachArg);
+            }
+
+            int separator = eachArg.indexOf('=');
+            String name = separator < 0 ? eachArg.substring(2) : eachArg.substring(2, separator);
+            if (!knownNames.contains(name) && !HELP.equals(name)) {
+                throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+
+            values.put(name, separator < 0 ? "true" : eachArg.substring(separator + 1));
+        }
+
+        return new Options(values);
+    }
+
+    /**
+     * Parses command line arguments, printing the usage and exiting on
+     * --help or an argument that is not a known option.
+     *
+     * @param args  the arguments
+     * @param usage the usage
+     * @param names the names of the known options
+     * @return the options
+     */
+    static Options parseOrExit(String[] args, String usage, String... names) {
+        Options options;
+        try {
+            options = parse(args, names);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(usage);
+            System.exit(2);
+            return null;
+        }
+
+        if (options.values.containsKey(HELP)) {
+            System.out.println(usage);
+            System.exit(0);
+        }
+
+        return options;
+    }
+
+    int getInt(String name, int fallback) {
+        String value = this.values.get(name);
+        return value == null ? fallback : Integer.parseInt(value);
+    }
+
+    long getLong(String name, long fallback) {
+        String value = this.values.get(name);
+        return value == null ? fallback : Long.parseLong(value);
+    }
+
+    double getDouble(String name, double fallback) {
+        String value = this.values.get(name);
+        return value == null ? fallback : Double.parseDouble(value);
+    }
+}